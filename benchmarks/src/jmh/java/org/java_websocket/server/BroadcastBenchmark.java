@@ -0,0 +1,152 @@
+package org.java_websocket.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.Handshakedata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link WebSocketServer#broadcast(ByteBuffer, Collection)} of an audio chunk to a number of open clients. The connections
+ * have no socket: they are opened by feeding them a client handshake, and their queued frames are dropped after every broadcast, so
+ * that only the framing and queuing are measured, along with the dropping of the frames.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class BroadcastBenchmark {
+
+	/** Size of the chunks sent by the audio streamer */
+	private static final int CHUNK_SIZE = 16384;
+
+	private static final String HANDSHAKE = "GET / HTTP/1.1\r\n" +
+			"Host: localhost\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+			"Sec-WebSocket-Version: 13\r\n" +
+			"\r\n";
+
+	@Param( { "1", "4", "16" } )
+	public int clients;
+
+	private WebSocketServer server;
+	private List<WebSocket> connections;
+	private ByteBuffer payload;
+
+	/** Listener of the connections, which have no selector to be woken up */
+	private static class DetachedListener extends WebSocketAdapter {
+		@Override
+		public void onWebsocketMessage( WebSocket conn, String message ) {
+		}
+
+		@Override
+		public void onWebsocketMessage( WebSocket conn, ByteBuffer blob ) {
+		}
+
+		@Override
+		public void onWebsocketOpen( WebSocket conn, Handshakedata d ) {
+		}
+
+		@Override
+		public void onWebsocketClose( WebSocket ws, int code, String reason, boolean remote ) {
+		}
+
+		@Override
+		public void onWebsocketClosing( WebSocket ws, int code, String reason, boolean remote ) {
+		}
+
+		@Override
+		public void onWebsocketCloseInitiated( WebSocket ws, int code, String reason ) {
+		}
+
+		@Override
+		public void onWebsocketError( WebSocket conn, Exception ex ) {
+			throw new IllegalStateException( ex );
+		}
+
+		@Override
+		public void onWriteDemand( WebSocket conn ) {
+		}
+
+		@Override
+		public InetSocketAddress getLocalSocketAddress( WebSocket conn ) {
+			return null;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteSocketAddress( WebSocket conn ) {
+			return null;
+		}
+	}
+
+	/** Server that is never started, only its broadcast is used. Its single decoder thread idles until the fork exits. */
+	private static class IdleServer extends WebSocketServer {
+		IdleServer() {
+			super( new InetSocketAddress( 0 ), 1 );
+		}
+
+		@Override
+		public void onOpen( WebSocket conn, ClientHandshake handshake ) {
+		}
+
+		@Override
+		public void onClose( WebSocket conn, int code, String reason, boolean remote ) {
+		}
+
+		@Override
+		public void onMessage( WebSocket conn, String message ) {
+		}
+
+		@Override
+		public void onError( WebSocket conn, Exception ex ) {
+		}
+	}
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		server = new IdleServer();
+		payload = ByteBuffer.allocate( CHUNK_SIZE );
+
+		List<Draft> drafts = Collections.<Draft> singletonList( new Draft_17() );
+		DetachedListener listener = new DetachedListener();
+		connections = new ArrayList<WebSocket>( clients );
+		for( int i = 0 ; i < clients ; i++ ) {
+			WebSocketImpl conn = new WebSocketImpl( listener, drafts );
+			conn.decode( ByteBuffer.wrap( HANDSHAKE.getBytes() ) );
+			if( !conn.isOpen() )
+				throw new IllegalStateException( "The handshake was rejected" );
+			conn.outQueue.clear();
+			connections.add( conn );
+		}
+	}
+
+	@Benchmark
+	public void broadcast() {
+		server.broadcast( payload, connections );
+
+		// Done here rather than in a per invocation tear down, whose timing overhead would dwarf it
+		for( WebSocket conn : connections ) {
+			( (WebSocketImpl) conn ).outQueue.clear();
+		}
+	}
+}
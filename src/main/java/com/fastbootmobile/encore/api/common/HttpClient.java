@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * HTTP client shared by the Web API clients.
+ * Connections are kept alive and reused between requests to the same host, as responses are
+ * always read to the end and connections never forcibly closed. Responses are stored in an
+ * {@link HttpResponseCache} on disk, which revalidates stale ones with conditional requests
+ * (ETag / Last-Modified) instead of downloading them again.
+ */
+public class HttpClient {
+    private static final String TAG = "HttpClient";
+
+    private static final String USER_AGENT = "OmniMusic/1.0-dev (http://www.omnirom.org)";
+    private static final long CACHE_SIZE = 100 * 1024 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Cached responses are used without being revalidated for up to this many seconds
+     */
+    private static final int MAX_STALE = 60 * 60 * 24 * 28;
+
+    /**
+     * Opens the connections of a client. Tests provide one pointing the client to a local
+     * server.
+     */
+    public interface ConnectionFactory {
+        HttpURLConnection open(URL url) throws IOException;
+    }
+
+    private static final ConnectionFactory DEFAULT_CONNECTION_FACTORY = new ConnectionFactory() {
+        @Override
+        public HttpURLConnection open(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    };
+
+    private static final HttpClient INSTANCE = new HttpClient();
+
+    private volatile ConnectionFactory mConnectionFactory = DEFAULT_CONNECTION_FACTORY;
+    private File mDownloadDir;
+
+    /**
+     * @return The default instance
+     */
+    public static HttpClient getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a client, only meant for tests: the app shares {@link #getDefault()}
+     */
+    public HttpClient() {
+    }
+
+    /**
+     * Sets the factory opening the connections of this client
+     * @param factory The factory, or null to restore the default one
+     */
+    public void setConnectionFactory(ConnectionFactory factory) {
+        mConnectionFactory = factory != null ? factory : DEFAULT_CONNECTION_FACTORY;
+    }
+
+    /**
+     * Installs the response cache in the cache directory of the app
+     */
+    public void initialize(Context ctx) {
+        try {
+            final HttpResponseCache cache = HttpResponseCache.install(
+                    new File(ctx.getCacheDir(), "http"), CACHE_SIZE);
+            Log.i(TAG, "HTTP Cache size: " + cache.size() / 1024 / 1024 + "MB");
+        } catch (IOException e) {
+            Log.w(TAG, "HTTP response cache installation failed", e);
+        }
+
+        setDownloadDirectory(new File(ctx.getCacheDir(), "downloads"));
+    }
+
+    /**
+     * Sets the directory in which {@link #download(String, String, boolean)} stores files
+     */
+    public void setDownloadDirectory(File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create download directory " + dir.getPath());
+        }
+        mDownloadDir = dir;
+    }
+
+    /**
+     * Downloads the data from the provided URL.
+     * @param inUrl The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              MUST be encoded properly.
+     * @param cached Whether or not the response may come from the cache
+     * @return A string with the data grabbed from the URL, empty if there's none
+     */
+    public String get(String inUrl, String query, boolean cached)
+            throws IOException, RateLimitException {
+        return new String(getBytes(inUrl, query, cached), "UTF-8");
+    }
+
+    /**
+     * Downloads the data from the provided URL.
+     * @param inUrl The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              MUST be encoded properly.
+     * @param cached Whether or not the response may come from the cache
+     * @return A byte array of the data, empty if there's none
+     */
+    public byte[] getBytes(String inUrl, String query, boolean cached)
+            throws IOException, RateLimitException {
+        HttpURLConnection conn = open(formatUrl(inUrl, query), cached);
+        if (conn == null) {
+            return new byte[]{};
+        }
+
+        final int contentLength = conn.getContentLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                contentLength > 0 ? contentLength : BUFFER_SIZE);
+        InputStream in = conn.getInputStream();
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Downloads the data from the provided URL to a file, without holding it in memory. Meant for
+     * large responses, such as images.
+     * @param inUrl The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              MUST be encoded properly.
+     * @param cached Whether or not the response may come from the cache
+     * @return A temporary file holding the data, that the caller must delete, or null if there's
+     * no data
+     */
+    public File download(String inUrl, String query, boolean cached)
+            throws IOException, RateLimitException {
+        HttpURLConnection conn = open(formatUrl(inUrl, query), cached);
+        if (conn == null) {
+            return null;
+        }
+
+        InputStream in = conn.getInputStream();
+        File file = null;
+        boolean success = false;
+        try {
+            file = File.createTempFile("download", null, mDownloadDir);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                copy(in, out);
+                success = true;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            if (!success && file != null && !file.delete()) {
+                Log.w(TAG, "Cannot delete partial download " + file.getPath());
+            }
+        }
+        return file;
+    }
+
+    private static String formatUrl(String inUrl, String query) {
+        return inUrl + (query.isEmpty() ? "" : ("?" + query));
+    }
+
+    /**
+     * Opens a connection to the provided URL, following redirects
+     * @return A connection whose response is ready to be read, or null if there's no data
+     */
+    private HttpURLConnection open(String formattedUrl, boolean cached)
+            throws IOException, RateLimitException {
+        String location = formattedUrl;
+
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; ++redirects) {
+            Log.d(TAG, "Formatted URL: " + location);
+
+            HttpURLConnection conn = mConnectionFactory.open(new URL(location));
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setUseCaches(cached);
+            // Redirects are followed below, also across protocols
+            conn.setInstanceFollowRedirects(false);
+            if (cached) {
+                conn.addRequestProperty("Cache-Control", "max-stale=" + MAX_STALE);
+            }
+
+            final int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK) {
+                return conn;
+            }
+
+            // Read the rest of the response so that the connection can be reused
+            release(conn);
+
+            if (status == HttpURLConnection.HTTP_MOVED_TEMP
+                    || status == HttpURLConnection.HTTP_MOVED_PERM
+                    || status == 307 /* HTTP/1.1 TEMPORARY REDIRECT */
+                    || status == 308 /* PERMANENT REDIRECT */
+                    || status == HttpURLConnection.HTTP_SEE_OTHER) {
+                final String followUrl = conn.getHeaderField("Location");
+                if (followUrl == null) {
+                    Log.e(TAG, "Redirect without location from " + location);
+                    return null;
+                }
+                // The location may be relative
+                location = new URL(new URL(location), followUrl).toString();
+                Log.d(TAG, "Redirected to: " + location);
+            } else if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                // MusicBrainz returns 503 Unavailable on rate limit errors
+                throw new RateLimitException();
+            } else {
+                if (status != HttpURLConnection.HTTP_NOT_FOUND
+                        && status != HttpURLConnection.HTTP_FORBIDDEN) {
+                    Log.e(TAG, "Error when fetching: " + location + " (" + status + ")");
+                }
+                return null;
+            }
+        }
+
+        throw new IOException("Too many redirects for " + formattedUrl);
+    }
+
+    private static void release(HttpURLConnection conn) {
+        InputStream in = conn.getErrorStream();
+        if (in == null) {
+            try {
+                in = conn.getInputStream();
+            } catch (IOException ignore) {
+                return;
+            }
+        }
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Drain
+            }
+        } catch (IOException ignore) {
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
@@ -36,6 +36,6 @@ public class JsonGet {
      */
     public static JSONObject getObject(String url, String query, boolean cached)
             throws IOException, JSONException, RateLimitException {
-        return new JSONObject(HttpGet.get(url, query, cached));
+        return new JSONObject(HttpClient.getDefault().get(url, query, cached));
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket limiting the rate of requests made to a Web API. Tokens are refilled at a fixed
+ * rate up to a burst capacity, and each request takes one. When the API rate-limits us anyway,
+ * requests are blocked for a backoff period that doubles on each consecutive rate limit.
+ */
+public class TokenBucket {
+    private static final long INITIAL_BACKOFF = 30 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    private final double mTokensPerMs;
+    private final int mCapacity;
+    private double mTokens;
+    private long mLastRefill;
+    private long mBackoff;
+    private long mBlockedUntil;
+
+    /**
+     * @param requestsPerSecond The sustained rate of requests allowed
+     * @param capacity The number of requests allowed in a burst
+     */
+    public TokenBucket(double requestsPerSecond, int capacity) {
+        mTokensPerMs = requestsPerSecond / 1000.0;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a token if one is available
+     * @return true if a request can be made now, false if it should be skipped
+     */
+    public synchronized boolean tryAcquire() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now < mBlockedUntil) {
+            return false;
+        }
+
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerMs);
+        mLastRefill = now;
+
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Notifies that the API answered a request normally, resetting the backoff
+     */
+    public synchronized void onSuccess() {
+        mBackoff = 0;
+    }
+
+    /**
+     * Notifies that the API rate-limited a request, blocking requests for a while
+     */
+    public synchronized void onRateLimited() {
+        mBackoff = mBackoff == 0 ? INITIAL_BACKOFF : Math.min(MAX_BACKOFF, mBackoff * 2);
+        mBlockedUntil = SystemClock.elapsedRealtime() + mBackoff;
+        mTokens = 0;
+    }
+
+    /**
+     * @return true if requests are currently blocked after a rate limit
+     */
+    public synchronized boolean isBackingOff() {
+        return SystemClock.elapsedRealtime() < mBlockedUntil;
+    }
+}
@@ -48,9 +48,13 @@ public class MusicBrainzClient {
      * @param artist The name of the artist. Must be filled.
      * @param album The name of the album. May be empty.
      * @return An {@link com.fastbootmobile.encore.api.musicbrainz.AlbumInfo} filled with the information
-     * from musicbrainz, or null in case of error
+     * from musicbrainz, or null if none was found
+     * @throws RateLimitException If the API rate-limited us
+     * @throws IOException If the API couldn't be reached
+     * @throws JSONException If the API sent back something we can't parse, e.g. on server errors
      */
-    public static AlbumInfo[] getAlbum(String artist, String album) throws RateLimitException {
+    public static AlbumInfo[] getAlbum(String artist, String album)
+            throws RateLimitException, IOException, JSONException {
         if (mAlbumInfoCache.containsKey(Pair.create(artist, album))) {
             return mAlbumInfoCache.get(Pair.create(artist, album));
         }
@@ -59,57 +63,48 @@ public class MusicBrainzClient {
             return null;
         }
 
-        try {
-            String query = "";
-            if (artist != null) {
-                query += URLEncoder.encode("artist:\"" + artist + "\"", "UTF-8");
-            }
-            if (album != null && !album.isEmpty()) {
-                query += URLEncoder.encode(" AND release:\"" + album + "\"", "UTF-8");
-            }
-            JSONObject object = JsonGet.getObject(MAIN_EP + "/release/", "fmt=json&query=" + query, true);
-
-            if (object.has("releases")) {
-                JSONArray releases = object.getJSONArray("releases");
-                final int releasesCount = releases.length();
-                if (releasesCount > 0) {
-                    AlbumInfo[] infoArray = new AlbumInfo[releasesCount];
+        String query = "";
+        if (artist != null) {
+            query += URLEncoder.encode("artist:\"" + artist + "\"", "UTF-8");
+        }
+        if (album != null && !album.isEmpty()) {
+            query += URLEncoder.encode(" AND release:\"" + album + "\"", "UTF-8");
+        }
+        JSONObject object = JsonGet.getObject(MAIN_EP + "/release/", "fmt=json&query=" + query, true);
 
-                    for (int i = 0; i < releasesCount; i++) {
-                        AlbumInfo info = new AlbumInfo();
+        if (object.has("releases")) {
+            JSONArray releases = object.getJSONArray("releases");
+            final int releasesCount = releases.length();
+            if (releasesCount > 0) {
+                AlbumInfo[] infoArray = new AlbumInfo[releasesCount];
 
-                        JSONObject release = releases.getJSONObject(i);
+                for (int i = 0; i < releasesCount; i++) {
+                    AlbumInfo info = new AlbumInfo();
 
-                        info.id = release.getString("id");
-                        try {
-                            info.track_count = release.getInt("track-count");
-                        } catch (JSONException e) {
-                            // No track count info, too bad
-                            info.track_count = 0;
-                        }
+                    JSONObject release = releases.getJSONObject(i);
 
-                        infoArray[i] = info;
+                    info.id = release.getString("id");
+                    try {
+                        info.track_count = release.getInt("track-count");
+                    } catch (JSONException e) {
+                        // No track count info, too bad
+                        info.track_count = 0;
                     }
 
-                    mAlbumInfoCache.put(Pair.create(artist, album), infoArray);
-                    return infoArray;
+                    infoArray[i] = info;
                 }
-            } else if (object.has("error")) {
-                Log.w(TAG, "Rate limited by the API, will retry later");
-                throw new RateLimitException();
-            }
 
-            // AlbumArtCache will retry with something else if needed
-            mAlbumInfoCache.put(Pair.create(artist, album), null);
-            return null;
-        } catch (IOException e) {
-            Log.e(TAG, "Unable to get album info (rate limit?)", e);
-            throw new RateLimitException();
-        } catch (JSONException e) {
-            // May happen due to an API error, e.g. error 502
-            Log.e(TAG, "JSON error while parsing album info", e);
+                mAlbumInfoCache.put(Pair.create(artist, album), infoArray);
+                return infoArray;
+            }
+        } else if (object.has("error")) {
+            Log.w(TAG, "Rate limited by the API, will retry later");
             throw new RateLimitException();
         }
+
+        // AlbumArtCache will retry with something else if needed
+        mAlbumInfoCache.put(Pair.create(artist, album), null);
+        return null;
     }
 
     /**
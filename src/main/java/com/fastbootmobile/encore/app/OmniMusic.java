@@ -17,11 +17,12 @@ package com.fastbootmobile.encore.app;
 
 import android.app.Application;
 import android.content.Context;
-import android.net.http.HttpResponseCache;
 import android.os.Build;
 import android.util.Log;
 
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.echonest.AutoMixManager;
+import com.fastbootmobile.encore.art.ArtResolver;
 import com.fastbootmobile.encore.art.ImageCache;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
@@ -33,9 +34,6 @@ import com.squareup.leakcanary.RefWatcher;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
-import java.io.IOException;
-
 import uk.co.chrisjenx.calligraphy.CalligraphyConfig;
 
 /**
@@ -100,18 +98,11 @@ public class OmniMusic extends Application {
              * a hacked jEN library that doesn't cache these requests.
              */
             // Setup network cache
-            try {
-                final File httpCacheDir = new File(getCacheDir(), "http");
-                final long httpCacheSize = 100 * 1024 * 1024; // 100 MiB
-                final HttpResponseCache cache = HttpResponseCache.install(httpCacheDir, httpCacheSize);
-
-                Log.i(TAG, "HTTP Cache size: " + cache.size() / 1024 / 1024 + "MB");
-            } catch (IOException e) {
-                Log.w(TAG, "HTTP response cache installation failed", e);
-            }
+            HttpClient.getDefault().initialize(getApplicationContext());
 
             // Setup image cache
             ImageCache.getDefault().initialize(getApplicationContext());
+            ArtResolver.getDefault().initialize(getApplicationContext());
 
             // Setup Automix system
             AutoMixManager.getDefault().initialize(getApplicationContext());
@@ -107,7 +107,7 @@ public class SearchActivity extends AppActivity {
                     public void run() {
                         mActiveFragment.resetResults();
                         mActiveFragment.setArguments(query);
-                        ProviderAggregator.getDefault().startSearch(query);
+                        ProviderAggregator.getDefault().getSearchPlanner().submit(query);
                     }
                 }, 200);
 
@@ -23,7 +23,6 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Build;
 import android.os.Handler;
-import android.support.v7.graphics.Palette;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,10 +30,14 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.utils.Utils;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
 import java.util.ArrayList;
@@ -46,7 +49,7 @@ import java.util.List;
 /**
  * Adapter for ListView to show a list of albums
  */
-public class AlbumsAdapter extends BaseAdapter {
+public class AlbumsAdapter extends BaseAdapter implements ArtPrefetcher.Source {
     private final List<Album> mAlbums;
     private final Handler mHandler;
     private final int mDefaultArtColor;
@@ -54,22 +57,14 @@ public class AlbumsAdapter extends BaseAdapter {
     private AlbumArtImageView.OnArtLoadedListener mArtListener = new AlbumArtImageView.OnArtLoadedListener() {
         @Override
         public void onArtLoaded(final AlbumArtImageView view, final BitmapDrawable drawable) {
-            Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
+            PaletteCache.getDefault().get(drawable, new PaletteCache.PaletteListener() {
                 @Override
-                public void onGenerated(final Palette palette) {
-                    final Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    final Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
+                public void onPaletteLoaded(final ArtPalette palette) {
                     mHandler.post(new Runnable() {
                         public void run() {
-                            int targetColor = mDefaultArtColor;
                             ViewHolder tag = (ViewHolder) view.getTag();
-
-                            if (darkVibrantColor != null) {
-                                targetColor = darkVibrantColor.getRgb();
-                            } else if (darkMutedColor != null) {
-                                targetColor = darkMutedColor.getRgb();
-                            }
+                            int targetColor = palette.getDarkVibrantColor(
+                                    palette.getDarkMutedColor(mDefaultArtColor));
 
                             if (targetColor != mDefaultArtColor) {
                                 Drawable bg = tag.vRoot.getBackground();
@@ -245,6 +240,20 @@ public class AlbumsAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BoundEntity getArtEntity(int position) {
+        if (position >= getCount()) {
+            return null;
+        }
+
+        // Art is only loaded for albums that have their name
+        final Album album = getItem(position);
+        return album.getName() != null && !album.getName().isEmpty() ? album : null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -27,7 +27,6 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Build;
 import android.os.Handler;
-import android.support.v7.graphics.Palette;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -38,7 +37,11 @@ import android.widget.TextView;
 import com.fastbootmobile.encore.app.ArtistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.utils.Utils;
 
 import java.util.ArrayList;
@@ -51,7 +54,8 @@ import java.util.List;
 /**
  * Adapter for RecyclerView to display artists in a grid
  */
-public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHolder> {
+public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHolder>
+        implements ArtPrefetcher.Source {
 
     /**
      * ViewHolder
@@ -107,21 +111,12 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         public void onArtLoaded(final AlbumArtImageView view, final BitmapDrawable drawable) {
             final Resources res = view.getResources();
 
-            Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
+            PaletteCache.getDefault().get(drawable, new PaletteCache.PaletteListener() {
                 @Override
-                public void onGenerated(Palette palette) {
+                public void onPaletteLoaded(ArtPalette palette) {
                     final int defaultColor = res.getColor(R.color.default_album_art_background);
-
-                    final Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    final Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-                    int targetColor = defaultColor;
-
-                    if (darkVibrantColor != null) {
-                        targetColor = darkVibrantColor.getRgb();
-                    } else if (darkMutedColor != null) {
-                        targetColor = darkMutedColor.getRgb();
-                    }
+                    final int targetColor = palette.getDarkVibrantColor(
+                            palette.getDarkMutedColor(defaultColor));
 
                     final TransitionDrawable transition = new TransitionDrawable(new Drawable[]{
                             new ColorDrawable(res.getColor(R.color.default_album_art_background)),
@@ -328,4 +323,14 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
             return mArtists.get(position);
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BoundEntity getArtEntity(int position) {
+        synchronized (mArtists) {
+            return position < mArtists.size() ? mArtists.get(position) : null;
+        }
+    }
 }
\ No newline at end of file
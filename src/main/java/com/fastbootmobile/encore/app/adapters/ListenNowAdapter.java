@@ -26,7 +26,6 @@ import android.os.Bundle;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v7.graphics.Palette;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,6 +42,8 @@ import com.fastbootmobile.encore.app.PlaylistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.BoundEntity;
@@ -516,9 +517,9 @@ public class ListenNowAdapter extends BaseAdapter {
                 @Override
                 public void onArtLoaded(AlbumArtImageView view, BitmapDrawable drawable) {
                     if (drawable != null) {
-                        Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
+                        PaletteCache.getDefault().get(drawable, new PaletteCache.PaletteListener() {
                             @Override
-                            public void onGenerated(Palette palette) {
+                            public void onPaletteLoaded(ArtPalette palette) {
                                 int color = palette.getDarkMutedColor(0xFF333333);
                                 TransitionDrawable td = new TransitionDrawable(new Drawable[] {
                                         llLnItemCard.getBackground(),
@@ -27,6 +27,7 @@ import android.widget.TextView;
 import org.json.JSONException;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.framework.PlaylistOrderer;
 import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Playlist;
@@ -40,7 +41,7 @@ import java.util.Map;
 /**
  * Adapter to display a list of {@link com.fastbootmobile.encore.model.Playlist} in a GridView
  */
-public class PlaylistGridAdapter extends BaseAdapter {
+public class PlaylistGridAdapter extends BaseAdapter implements ArtPrefetcher.Source {
     private static final String TAG = "PlaylistGridAdapter";
 
     /**
@@ -165,6 +166,14 @@ public class PlaylistGridAdapter extends BaseAdapter {
         return mPlaylists.get(position);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BoundEntity getArtEntity(int position) {
+        return position < mPlaylists.size() ? mPlaylists.get(position) : null;
+    }
+
     /**
      * {@inheritDoc}
      */
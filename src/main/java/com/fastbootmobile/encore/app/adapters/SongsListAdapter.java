@@ -29,6 +29,7 @@ import android.widget.TextView;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.BoundEntity;
@@ -45,7 +46,7 @@ import java.util.List;
 /**
  * Adapter allowing to display a list of songs in a ListView
  */
-public class SongsListAdapter extends BaseAdapter {
+public class SongsListAdapter extends BaseAdapter implements ArtPrefetcher.Source {
     /**
      * ViewHolder for the list items
      */
@@ -154,6 +155,14 @@ public class SongsListAdapter extends BaseAdapter {
         return mSongs.get(i);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BoundEntity getArtEntity(int position) {
+        return mShowAlbumArt && position < mSongs.size() ? mSongs.get(position) : null;
+    }
+
     /**
      * {@inheritDoc}
      */
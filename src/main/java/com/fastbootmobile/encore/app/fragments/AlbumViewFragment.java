@@ -24,7 +24,6 @@ import android.os.Handler;
 import android.os.RemoteException;
 import android.support.v4.graphics.ColorUtils;
 import android.support.v7.app.ActionBar;
-import android.support.v7.graphics.Palette;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.util.Log;
@@ -46,7 +45,10 @@ import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.app.ui.ParallaxScrollListView;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
 import com.fastbootmobile.encore.app.ui.ScrollStatusBarColorListener;
+import com.fastbootmobile.encore.art.AlbumArtCache;
 import com.fastbootmobile.encore.art.AlbumArtHelper;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
@@ -506,22 +508,18 @@ public class AlbumViewFragment extends MaterialReelBaseFragment implements ILoca
     }
 
     private void generateHeroPalette() {
-        Palette.from(mHeroImage).generate(new Palette.PaletteAsyncListener() {
+        final String key = mAlbum != null ? AlbumArtCache.getDefault().getEntityArtKey(mAlbum) : null;
+        PaletteCache.getDefault().get(key, mHeroImage, new PaletteCache.PaletteListener() {
             @Override
-            public void onGenerated(final Palette palette) {
-                final Palette.Swatch normalColor = palette.getDarkMutedSwatch();
-                final Palette.Swatch pressedColor = palette.getDarkVibrantSwatch();
-                if (normalColor != null && mRootView != null) {
-                    mBackgroundColor = normalColor.getRgb();
+            public void onPaletteLoaded(final ArtPalette palette) {
+                if (palette.hasDarkMuted() && mRootView != null) {
+                    final int normalColor = palette.getDarkMutedColor(0);
+                    mBackgroundColor = normalColor;
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mPlayFab.setNormalColor(normalColor.getRgb());
-                            if (pressedColor != null) {
-                                mPlayFab.setPressedColor(pressedColor.getRgb());
-                            } else {
-                                mPlayFab.setPressedColor(normalColor.getRgb());
-                            }
+                            mPlayFab.setNormalColor(normalColor);
+                            mPlayFab.setPressedColor(palette.getDarkVibrantColor(normalColor));
                         }
                     });
                 }
@@ -33,6 +33,7 @@ import android.widget.ImageView;
 import com.fastbootmobile.encore.app.AlbumActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.AlbumsAdapter;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -93,6 +94,7 @@ public class AlbumsFragment extends Fragment implements ILocalCallback, Provider
         final View root = inflater.inflate(R.layout.fragment_albums, container, false);
         mGridView = (GridView) root.findViewById(R.id.gvAlbums);
         mGridView.setFastScrollEnabled(true);
+        ArtPrefetcher.attach(mGridView, mAdapter);
 
         // Get the albums
         new GetAlbumsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
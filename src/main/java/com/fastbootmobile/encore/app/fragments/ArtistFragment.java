@@ -34,7 +34,6 @@ import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.view.PagerTabStrip;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBar;
-import android.support.v7.graphics.Palette;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -62,7 +61,10 @@ import com.fastbootmobile.encore.app.ui.ObservableScrollView;
 import com.fastbootmobile.encore.app.ui.ParallaxScrollView;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
 import com.fastbootmobile.encore.app.ui.WrapContentHeightViewPager;
+import com.fastbootmobile.encore.art.AlbumArtCache;
 import com.fastbootmobile.encore.art.AlbumArtHelper;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
@@ -76,6 +78,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderCache;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
@@ -88,7 +91,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Fragment showing artist information: Tracks, similar artists, and biography
@@ -259,15 +264,14 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
                 return;
             }
 
-            Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
+            PaletteCache.getDefault().get(drawable, new PaletteCache.PaletteListener() {
                 @Override
-                public void onGenerated(Palette palette) {
-                    Palette.Swatch vibrant = palette.getVibrantSwatch();
+                public void onPaletteLoaded(ArtPalette palette) {
+                    if (palette.hasVibrant() && mRootView != null) {
+                        final int vibrant = palette.getVibrantColor(0);
+                        mRootView.setBackgroundColor(vibrant);
 
-                    if (vibrant != null && mRootView != null) {
-                        mRootView.setBackgroundColor(vibrant.getRgb());
-
-                        float luminance = vibrant.getHsl()[2];
+                        float luminance = ArtPalette.getLightness(vibrant);
 
                         final TextView tvArtist = (TextView) mRootView.findViewById(R.id.tvArtistSuggestionArtist);
                         final TextView tvTitle = (TextView) mRootView.findViewById(R.id.tvArtistSuggestionTitle);
@@ -440,22 +444,18 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
 
     private void generateHeroPalette() {
         if (mHeroImage != null && !mHeroImage.isRecycled()) {
-            Palette.from(mHeroImage).generate(new Palette.PaletteAsyncListener() {
+            final String key = AlbumArtCache.getDefault().getEntityArtKey(mArtist);
+            PaletteCache.getDefault().get(key, mHeroImage, new PaletteCache.PaletteListener() {
                 @Override
-                public void onGenerated(final Palette palette) {
-                    final Palette.Swatch normalColor = palette.getDarkMutedSwatch();
-                    if (normalColor != null && mRootView != null) {
+                public void onPaletteLoaded(final ArtPalette palette) {
+                    if (palette.hasDarkMuted() && mRootView != null) {
                         mHandler.post(new Runnable() {
                             @Override
                             public void run() {
                                 if (mRootView != null) {
-                                    final Palette.Swatch pressedColor = palette.getDarkVibrantSwatch();
-                                    mFabPlay.setNormalColor(normalColor.getRgb());
-                                    if (pressedColor != null) {
-                                        mFabPlay.setPressedColor(pressedColor.getRgb());
-                                    } else {
-                                        mFabPlay.setPressedColor(normalColor.getRgb());
-                                    }
+                                    final int normalColor = palette.getDarkMutedColor(0);
+                                    mFabPlay.setNormalColor(normalColor);
+                                    mFabPlay.setPressedColor(palette.getDarkVibrantColor(normalColor));
                                 }
                             }
                         });
@@ -772,19 +772,11 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
     @Override
     public void onAlbumUpdate(List<Album> a) {
         boolean hasThisArtist = false;
-        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        final ProviderCache cache = ProviderAggregator.getDefault().getCache();
         for (Album album : a) {
-            Iterator<String> songs = album.songs();
-            while (songs.hasNext()) {
-                String songRef = songs.next();
-                Song song = aggregator.retrieveSong(songRef, album.getProvider());
-                if (song != null && mArtist != null && mArtist.getRef().equals(song.getArtist())) {
-                    hasThisArtist = true;
-                    break;
-                }
-            }
-
-            if (hasThisArtist) {
+            // The aggregator links the album to the artists of its songs before notifying us
+            if (mArtist != null && cache.isAlbumOfArtist(mArtist.getRef(), album.getRef())) {
+                hasThisArtist = true;
                 break;
             }
         }
@@ -1170,7 +1162,14 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
             final LinearLayout llAlbums = (LinearLayout) mRootView.findViewById(R.id.llAlbums);
             llAlbums.removeAllViews();
 
-            Iterator<String> albumIt = new ArrayList<>(mParent.getArtist().getAlbums()).iterator();
+            // Include the albums linked to the artist through their songs
+            final Set<String> albumRefs = new LinkedHashSet<>(mParent.getArtist().getAlbums());
+            final String artistRef = mParent.getArtist().getRef();
+            for (Album album : aggregator.getCache().getAlbumsForArtist(artistRef)) {
+                albumRefs.add(album.getRef());
+            }
+
+            Iterator<String> albumIt = albumRefs.iterator();
             List<Album> albums = new ArrayList<>();
 
 
@@ -30,6 +30,7 @@ import android.view.ViewGroup;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.ArtistsAdapter;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.app.ui.SpaceItemDecorator;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
@@ -86,6 +87,7 @@ public class ArtistsListFragment extends Fragment implements ILocalCallback {
         mArtistLayout.setHasFixedSize(true);
         mArtistLayout.setLayoutManager(new StaggeredGridLayoutManager(2, StaggeredGridLayoutManager.VERTICAL));
         mArtistLayout.addItemDecoration(new SpaceItemDecorator(getResources().getDimensionPixelSize(R.dimen.one_dp)));
+        ArtPrefetcher.attach(mArtistLayout, mAdapter);
 
         // Get artists
         new GetArtistsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
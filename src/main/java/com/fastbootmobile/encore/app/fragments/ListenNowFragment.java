@@ -22,7 +22,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.TransactionTooLargeException;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.ActionBar;
 import android.support.v7.widget.CardView;
@@ -56,6 +55,7 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibraryLoader;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.utils.Utils;
@@ -293,40 +293,9 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
                     PluginsLookup.getDefault().resetNewPlugins();
                 }
 
-                // Get the list of songs first
+                // Get the list of songs first, through the shared library loader
                 final List<ProviderConnection> providers = plugins.getAvailableProviders();
-                for (ProviderConnection provider : providers) {
-                    int limit = 50;
-                    int offset = 0;
-
-                    while (!isInterrupted()) {
-                        try {
-                            List<Song> providerSongs = provider.getBinder().getSongs(offset, limit);
-
-                            if (providerSongs != null) {
-                                songs.addAll(providerSongs);
-                                offset += providerSongs.size();
-
-                                if (providerSongs.size() < limit) {
-                                    if (DEBUG) Log.d(TAG, "Got " + providerSongs.size() + " instead of " + limit + ", assuming end of list");
-                                    break;
-                                }
-                            } else {
-                                break;
-                            }
-                        } catch (TransactionTooLargeException e) {
-                            limit -= 5;
-                            if (limit <= 0) {
-                                Log.e(TAG, "Error getting songs from " + provider.getProviderName()
-                                        + ": transaction too large even with limit = 5");
-                                break;
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error getting songs from " + provider.getProviderName() + ": " + e.getMessage());
-                            break;
-                        }
-                    }
-                }
+                songs.addAll(LibraryLoader.getDefault().loadAllSongs());
 
                 if (isInterrupted() || isDetached()) return;
 
@@ -384,7 +353,7 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
 
                 // Add the "Recently played" section if we have recent tracks
                 final ListenLogger logger = new ListenLogger(context);
-                List<ListenLogger.LogEntry> logEntries = logger.getEntries(50);
+                List<ListenLogger.LogEntry> logEntries = logger.getRecentlyPlayed(50);
 
                 if (logEntries.size() > 0 && !isDetached()) {
                     items.add(new ListenNowAdapter.SectionHeaderItem(getString(R.string.ln_section_recents),
@@ -21,12 +21,12 @@ import android.app.ActivityOptions;
 import android.support.v4.app.Fragment;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
-import android.support.v7.graphics.Palette;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -48,6 +48,8 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.PlaybackQueueAdapter;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
@@ -76,20 +78,14 @@ public class PlaybackQueueFragment extends Fragment {
         @Override
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
         public void onClick(View view) {
-            Bitmap hero = ((MaterialTransitionDrawable) ((ImageView) view).getDrawable())
-                    .getFinalDrawable().getBitmap();
-            Palette palette = Palette.from(hero).generate();
-
-            Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-            Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-            int color;
-            if (darkVibrantColor != null) {
-                color = darkVibrantColor.getRgb();
-            } else if (darkMutedColor != null) {
-                color = darkMutedColor.getRgb();
-            } else {
-                color = getResources().getColor(R.color.default_album_art_background);
+            BitmapDrawable heroDrawable = ((MaterialTransitionDrawable) ((ImageView) view).getDrawable())
+                    .getFinalDrawable();
+            Bitmap hero = heroDrawable.getBitmap();
+            ArtPalette palette = PaletteCache.getDefault().getCached(heroDrawable);
+
+            int color = getResources().getColor(R.color.default_album_art_background);
+            if (palette != null) {
+                color = palette.getDarkVibrantColor(palette.getDarkMutedColor(color));
             }
 
             Song song = (Song) view.getTag();
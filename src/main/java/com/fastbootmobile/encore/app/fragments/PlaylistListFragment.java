@@ -40,6 +40,7 @@ import com.fastbootmobile.encore.app.PlaylistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.PlaylistGridAdapter;
 import com.fastbootmobile.encore.app.adapters.PlaylistListAdapter;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -203,6 +204,7 @@ public class PlaylistListFragment extends Fragment implements ILocalCallback {
             // We're in landscape with the grid view
             GridView root = (GridView) view.findViewById(R.id.gvPlaylists);
             root.setAdapter(mGridAdapter);
+            ArtPrefetcher.attach(root, mGridAdapter);
 
             if (!mIsStandalone) {
                 root.setPadding(0, 0, 0, 0);
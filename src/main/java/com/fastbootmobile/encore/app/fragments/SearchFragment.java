@@ -25,7 +25,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.support.v4.app.Fragment;
-import android.support.v7.graphics.Palette;
 import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
@@ -41,6 +40,8 @@ import com.fastbootmobile.encore.app.PlaylistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.SearchAdapter;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -81,9 +82,10 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             if (msg.what == MSG_UPDATE_RESULTS) {
-                mParent.get().updateSearchResults();
+                mParent.get().updateSearchResults((List<SearchResult>) msg.obj);
             } else if (msg.what == MSG_DATASET_CHANGED) {
                 mParent.get().mAdapter.notifyDataSetChanged();
             }
@@ -155,8 +157,11 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
         // Restore previous search results, in case we're rotating
         if (mSearchResults != null) {
-            mAdapter.appendResults(mSearchResults);
-            mAdapter.notifyDataSetChanged();
+            List<SearchResult> results = ProviderAggregator.getDefault().getSearchResults(mQuery);
+            if (results != null) {
+                mAdapter.appendResults(results);
+                mAdapter.notifyDataSetChanged();
+            }
         }
 
         return root;
@@ -204,19 +209,14 @@ public class SearchFragment extends Fragment implements ILocalCallback {
                         mAdapter.getGroupMaxCount(SearchAdapter.ALBUM) + 5);
             } else {
                 SearchAdapter.ViewHolder holder = (SearchAdapter.ViewHolder) v.getTag();
-                Bitmap hero = ((MaterialTransitionDrawable) holder.albumArtImageView.getDrawable()).getFinalDrawable().getBitmap();
+                BitmapDrawable heroDrawable = ((MaterialTransitionDrawable) holder.albumArtImageView.getDrawable()).getFinalDrawable();
+                Bitmap hero = heroDrawable.getBitmap();
                 int color = 0xffffff;
                 if (hero != null) {
-                    Palette palette = Palette.generate(hero);
-                    Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-                    if (darkVibrantColor != null) {
-                        color = darkVibrantColor.getRgb();
-                    } else if (darkMutedColor != null) {
-                        color = darkMutedColor.getRgb();
-                    } else {
-                        color = getResources().getColor(R.color.default_album_art_background);
+                    ArtPalette palette = PaletteCache.getDefault().getCached(heroDrawable);
+                    color = getResources().getColor(R.color.default_album_art_background);
+                    if (palette != null) {
+                        color = palette.getDarkVibrantColor(palette.getDarkMutedColor(color));
                     }
                 }
 
@@ -245,19 +245,14 @@ public class SearchFragment extends Fragment implements ILocalCallback {
             } else {
                 SearchAdapter.ViewHolder holder = (SearchAdapter.ViewHolder) v.getTag();
                 ImageView ivCover = holder.albumArtImageView;
-                Bitmap hero = ((MaterialTransitionDrawable) ivCover.getDrawable()).getFinalDrawable().getBitmap();
+                BitmapDrawable heroDrawable = ((MaterialTransitionDrawable) ivCover.getDrawable()).getFinalDrawable();
+                Bitmap hero = heroDrawable.getBitmap();
                 int color = 0xffffff;
                 if (hero != null) {
-                    Palette palette = Palette.generate(hero);
-                    Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-                    if (darkVibrantColor != null) {
-                        color = darkVibrantColor.getRgb();
-                    } else if (darkMutedColor != null) {
-                        color = darkMutedColor.getRgb();
-                    } else {
-                        color = getResources().getColor(R.color.default_album_art_background);
+                    ArtPalette palette = PaletteCache.getDefault().getCached(heroDrawable);
+                    color = getResources().getColor(R.color.default_album_art_background);
+                    if (palette != null) {
+                        color = palette.getDarkVibrantColor(palette.getDarkMutedColor(color));
                     }
                 }
                 Intent intent = new Intent(getActivity(), ArtistActivity.class);
@@ -367,30 +362,31 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     public void onSearchResult(final List<SearchResult> searchResults) {
         for (SearchResult searchResult : searchResults) {
             if (searchResult.getQuery().equals(mQuery)) {
+                // We only get the new results, the adapter accumulates them
                 mSearchResults = searchResults;
-                mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
+                mHandler.obtainMessage(MSG_UPDATE_RESULTS, searchResults).sendToTarget();
                 mNumProvidersResponse++;
                 break;
             }
         }
     }
 
-    private void updateSearchResults() {
+    private void updateSearchResults(List<SearchResult> searchResults) {
         final Activity act = getActivity();
 
         if (act != null) {
-            getActivity().setTitle("'" + mSearchResults.get(0).getQuery() + "'");
+            getActivity().setTitle("'" + searchResults.get(0).getQuery() + "'");
             getActivity().setProgressBarIndeterminateVisibility(false);
 
             if (mNumProvidersResponse >= 2) {
                 mLoadingBar.setVisibility(View.GONE);
             }
         } else {
-            mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
+            mHandler.obtainMessage(MSG_UPDATE_RESULTS, searchResults).sendToTarget();
         }
 
         if (mAdapter != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.appendResults(searchResults);
             mAdapter.notifyDataSetChanged();
         }
     }
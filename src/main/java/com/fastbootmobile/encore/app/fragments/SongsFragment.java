@@ -16,14 +16,10 @@
 package com.fastbootmobile.encore.app.fragments;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Process;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -34,11 +30,10 @@ import android.widget.ListView;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.SongsListAdapter;
+import com.fastbootmobile.encore.app.ui.ArtPrefetcher;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
-import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Song;
-import com.fastbootmobile.encore.providers.IMusicProvider;
-import com.fastbootmobile.encore.providers.ProviderConnection;
+import com.fastbootmobile.encore.providers.LibraryLoader;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.utils.Utils;
 
@@ -111,8 +106,9 @@ public class SongsFragment extends Fragment {
         mListView.setFastScrollEnabled(true);
 
         mSongsListAdapter = new SongsListAdapter(true);
+        ArtPrefetcher.attach(mListView, mSongsListAdapter);
 
-        new GetAllSongsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        LibraryLoader.getDefault().subscribe(mSongsSubscriber);
 
         mListView.setOnItemClickListener(mItemClickListener);
         return root;
@@ -128,96 +124,51 @@ public class SongsFragment extends Fragment {
     public void onDetach() {
         super.onDetach();
         PlaybackProxy.removeCallback(mPlaybackCallback);
+        LibraryLoader.getDefault().unsubscribe(mSongsSubscriber);
     }
 
-    private class GetAllSongsTask extends AsyncTask<Void, List<Song>, List<Song>> {
+    private LibraryLoader.SongsSubscriber mSongsSubscriber = new LibraryLoader.SongsSubscriber() {
         @Override
-        protected List<Song> doInBackground(Void... params) {
-            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-            List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
-            final List<Song> songsToAdd = new ArrayList<>();
-            for (ProviderConnection providerConnection : providers) {
-                try {
-                    IMusicProvider provider = providerConnection.getBinder();
-                    if (provider != null) {
-                        int limit = 100;
-                        int offset = 0;
-
-                        while (true) {
-                            try {
-                                List<Song> songs = provider.getSongs(offset, limit);
-
-                                if (songs == null || songs.size() == 0) {
-                                    // Null or empty list, stop here
-                                    break;
-                                }
-
-                                for (Song song : songs) {
-                                    if (song != null) {
-                                        songsToAdd.add(song);
-                                    }
-                                }
-
-                                publishProgress(new ArrayList<>(songsToAdd));
-                                songsToAdd.clear();
-
-                                if (songs.size() < limit) {
-                                    // Less songs than requested, assume we're at the end
-                                    Log.d(TAG, "Got " + songs.size() + " songs, limit="
-                                            + limit + ", assuming end of list");
-                                    break;
-                                } else {
-                                    offset += limit;
-                                }
-                            } catch (TransactionTooLargeException e) {
-                                limit -= 10;
-
-                                if (limit <= 0) {
-                                    Log.e(TAG, "Transaction failed even at limit = 0, bailing out", e);
-                                    break;
-                                }
-
-                                Log.w(TAG, "Transaction too large, reducing limit to " + limit);
-                            }
-                        }
-                    }
-                } catch (DeadObjectException e) {
-                    Log.e(TAG, "Provider died while getting songs");
-                } catch (RemoteException e) {
-                    Log.w(TAG, "Cannot get songs from a provider", e);
+        public void onSongsLoaded(final List<Song> songs) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onSongsAvailable(songs);
                 }
-            }
-
-            return songsToAdd;
+            });
         }
 
-        @SafeVarargs
         @Override
-        protected final void onProgressUpdate(List<Song>... values) {
-            List<Song> songs = values[0];
-            if (songs.size() > 0) {
-                onPostExecute(songs);
-            }
+        public void onLoadFinished() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Make sure we hide the progress bar even if there are no songs at all
+                    onSongsAvailable(new ArrayList<Song>());
+                }
+            });
         }
+    };
 
-        @Override
-        protected void onPostExecute(List<Song> songs) {
-            mSongsListAdapter.putAll(songs);
-            mSongsListAdapter.sortAll();
+    private void onSongsAvailable(List<Song> songs) {
+        if (mSongsListAdapter == null || mListView == null) {
+            return;
+        }
 
-            if (mAdapterSet) {
-                mSongsListAdapter.notifyDataSetChanged();
-            } else {
-                mListView.setAdapter(mSongsListAdapter);
+        mSongsListAdapter.putAll(songs);
+        mSongsListAdapter.sortAll();
 
-                View root = getView();
-                if (root != null) {
-                    root.findViewById(R.id.songsProgress).setVisibility(View.GONE);
-                }
+        if (mAdapterSet) {
+            mSongsListAdapter.notifyDataSetChanged();
+        } else {
+            mListView.setAdapter(mSongsListAdapter);
 
-                mAdapterSet = true;
+            View root = getView();
+            if (root != null) {
+                root.findViewById(R.id.songsProgress).setVisibility(View.GONE);
             }
+
+            mAdapterSet = true;
         }
     }
 }
@@ -23,7 +23,6 @@ import android.os.Looper;
 import android.support.v17.leanback.widget.ImageCardView;
 import android.support.v17.leanback.widget.Presenter;
 import android.support.v4.graphics.ColorUtils;
-import android.support.v7.graphics.Palette;
 import android.text.TextUtils;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -31,6 +30,8 @@ import android.widget.ImageView;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.art.AlbumArtHelper;
 import com.fastbootmobile.encore.art.AlbumArtTask;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.PaletteCache;
 import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -84,8 +85,8 @@ public class CardPresenter extends Presenter {
     private static void updateCardBackgroundColor(ImageCardView view, boolean selected) {
         int color = selected ? sSelectedBackgroundColor : sDefaultBackgroundColor;
 
-        if (view.getTag() != null && view.getTag() instanceof Palette) {
-            Palette palette = (Palette) view.getTag();
+        if (view.getTag() != null && view.getTag() instanceof ArtPalette) {
+            ArtPalette palette = (ArtPalette) view.getTag();
             final int darkVibColor = palette.getDarkVibrantColor(sSelectedBackgroundColor);
             final int darkVibColorDim = ColorUtils.compositeColors(0xA0FFFFFF & darkVibColor, 0xFF000000);
             color = selected ? darkVibColor : darkVibColorDim;
@@ -186,10 +187,19 @@ public class CardPresenter extends Presenter {
                     if (output != null) {
                         mHandler.post(new Runnable() {
                             public void run() {
-                                Palette palette = Palette.from(output.getBitmap()).generate();
                                 cardView.setMainImage(output, true);
-                                cardView.setTag(palette);
-                                updateCardBackgroundColor(cardView, cardView.isSelected());
+                                PaletteCache.getDefault().get(output,
+                                        new PaletteCache.PaletteListener() {
+                                    @Override
+                                    public void onPaletteLoaded(ArtPalette palette) {
+                                        // The card may have been rebound in the meantime
+                                        if (cardView.getMainImage() == output) {
+                                            cardView.setTag(palette);
+                                            updateCardBackgroundColor(cardView,
+                                                    cardView.isSelected());
+                                        }
+                                    }
+                                });
                             }
                         });
                     }
@@ -21,7 +21,6 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.RemoteException;
 import android.support.v17.leanback.app.BrowseFragment;
 import android.support.v17.leanback.widget.ArrayObjectAdapter;
 import android.support.v17.leanback.widget.ClassPresenterSelector;
@@ -34,14 +33,12 @@ import android.support.v17.leanback.widget.Presenter;
 import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.support.v4.app.ActivityOptionsCompat;
-import android.support.v7.graphics.Palette;
 import android.view.View;
 
 import com.fastbootmobile.encore.api.common.Pair;
 import com.fastbootmobile.encore.app.R;
-import com.fastbootmobile.encore.app.adapters.HistoryAdapter;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.ListenLogger;
-import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
@@ -49,8 +46,8 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibraryLoader;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
-import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.util.ArrayList;
@@ -125,8 +122,8 @@ public class TvActivity extends Activity {
                 if (item instanceof Album) {
                     Album album = (Album) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvAlbumDetailsActivity.class);
@@ -141,8 +138,8 @@ public class TvActivity extends Activity {
                 } else if (item instanceof Artist) {
                     Artist artist = (Artist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvArtistDetailsActivity.class);
@@ -157,8 +154,8 @@ public class TvActivity extends Activity {
                 } else if (item instanceof Playlist) {
                     Playlist playlist = (Playlist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvPlaylistDetailsActivity.class);
@@ -247,6 +244,7 @@ public class TvActivity extends Activity {
         // Generate rows contents
         generateRecentlyPlayedRow();
         generateRecommendations();
+        LibraryLoader.getDefault().requestLoad();
         generateMyLibraryRow();
         generatePlaylistsRow();
         generateSettingsRow();
@@ -260,7 +258,7 @@ public class TvActivity extends Activity {
 
         // First row: Recently played (10 items, randomly artist or album)
         ListenLogger logger = new ListenLogger(this);
-        List<ListenLogger.LogEntry> logEntries = HistoryAdapter.sortByTime(logger.getEntries(25));
+        List<ListenLogger.LogEntry> logEntries = logger.getRecentlyPlayed(25);
         ArrayObjectAdapter logEntriesRowAdapter = new ArrayObjectAdapter(new CardPresenter());
         int entriesCount = 0;
 
@@ -308,7 +306,6 @@ public class TvActivity extends Activity {
 
         // Get all the available tracks to build Recommendations
         final List<Pair<String, ProviderIdentifier>> availableReferences = new ArrayList<>();
-        final List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
 
         final List<Playlist> playlists = aggregator.getAllPlaylists();
         for (Playlist p : playlists) {
@@ -322,35 +319,12 @@ public class TvActivity extends Activity {
             }
         }
 
-        for (ProviderConnection provider : providers) {
-            IMusicProvider binder = provider.getBinder();
-            if (binder != null) {
-                int limit = 50;
-                int offset = 0;
-                boolean goAhead = true;
-                try {
-                    while (goAhead) {
-                        List<Song> songs = binder.getSongs(offset, limit);
-                        if (songs == null) {
-                            goAhead = false;
-                            continue;
-                        }
-
-                        if (songs.size() < limit) {
-                            goAhead = false;
-                        }
-
-                        offset += songs.size();
-
-                        for (Song song : songs) {
-                            Pair<String, ProviderIdentifier> pair = Pair.create(song.getRef(), song.getProvider());
-                            if (!availableReferences.contains(pair)) {
-                                availableReferences.add(pair);
-                            }
-                        }
-                    }
-                } catch (RemoteException ignore) {
-                }
+        // Use the songs we already know about. The library is refreshed once when the rows are
+        // built, and our callback regenerates the recommendations while we have too few of them.
+        for (Song song : aggregator.getCache().getAllSongs()) {
+            Pair<String, ProviderIdentifier> pair = Pair.create(song.getRef(), song.getProvider());
+            if (!availableReferences.contains(pair)) {
+                availableReferences.add(pair);
             }
         }
 
@@ -39,13 +39,13 @@ import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.support.v17.leanback.widget.SparseArrayObjectAdapter;
 import android.support.v4.app.ActivityOptionsCompat;
-import android.support.v7.graphics.Palette;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.art.AlbumArtHelper;
 import com.fastbootmobile.encore.art.AlbumArtTask;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
@@ -260,8 +260,8 @@ public class TvArtistDetailsFragment extends DetailsFragment {
                 Album album = (Album) item;
 
                 int color = getResources().getColor(R.color.primary);
-                if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                    color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                    color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                 }
 
                 Intent intent = new Intent(getActivity(), TvAlbumDetailsActivity.class);
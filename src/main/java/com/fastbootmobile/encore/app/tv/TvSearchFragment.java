@@ -21,7 +21,6 @@ import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.v17.leanback.app.SearchFragment;
@@ -37,12 +36,12 @@ import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.support.v17.leanback.widget.SpeechRecognitionCallback;
 import android.support.v4.app.ActivityOptionsCompat;
-import android.support.v7.graphics.Palette;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.fastbootmobile.encore.app.BuildConfig;
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -52,6 +51,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.SearchPlanner;
 
 import java.util.List;
 
@@ -60,19 +60,12 @@ public class TvSearchFragment extends SearchFragment
     private static final String TAG = "TvSearchFragment";
     private static final boolean DEBUG = BuildConfig.DEBUG;
 
-    private static final int SEARCH_DELAY_MS = 1000;
     private static final boolean FINISH_ON_RECOGNIZER_CANCELED = true;
     private static final int REQUEST_SPEECH = 0x00000010;
 
     private ArrayObjectAdapter mRowsAdapter;
     private String mQuery;
     private Handler mHandler = new Handler();
-    private final Runnable mDelayedLoad = new Runnable() {
-        @Override
-        public void run() {
-            loadRows();
-        }
-    };
     private final Runnable mUpdateAdapter = new Runnable() {
         @Override
         public void run() {
@@ -98,8 +91,8 @@ public class TvSearchFragment extends SearchFragment
                 if (item instanceof Album) {
                     Album album = (Album) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvAlbumDetailsActivity.class);
@@ -114,8 +107,8 @@ public class TvSearchFragment extends SearchFragment
                 } else if (item instanceof Artist) {
                     Artist artist = (Artist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvArtistDetailsActivity.class);
@@ -130,8 +123,8 @@ public class TvSearchFragment extends SearchFragment
                 } else if (item instanceof Playlist) {
                     Playlist playlist = (Playlist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvPlaylistDetailsActivity.class);
@@ -217,35 +210,17 @@ public class TvSearchFragment extends SearchFragment
     @Override
     public boolean onQueryTextChange(String newQuery) {
         Log.i(TAG, String.format("Search Query Text Change %s", newQuery));
-        loadQuery(newQuery);
+        loadQuery(newQuery, false);
         return true;
     }
 
     @Override
     public boolean onQueryTextSubmit(String query) {
         Log.i(TAG, String.format("Search Query Text Submit %s", query));
-        loadQuery(query);
+        loadQuery(query, true);
         return true;
     }
 
-    private void loadRows() {
-        // offload processing from the UI thread
-        new AsyncTask<String, Void, ListRow>() {
-            private final String query = mQuery;
-
-            @Override
-            protected void onPreExecute() {
-                mRowsAdapter.clear();
-            }
-
-            @Override
-            protected ListRow doInBackground(String... params) {
-                ProviderAggregator.getDefault().startSearch(query);
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-    }
-
     private boolean hasPermission(final String permission) {
         final Context context = getActivity();
         return PackageManager.PERMISSION_GRANTED == context.getPackageManager().checkPermission(
@@ -256,11 +231,21 @@ public class TvSearchFragment extends SearchFragment
         return mRowsAdapter.size() > 0;
     }
 
-    private void loadQuery(String query) {
-        mHandler.removeCallbacks(mDelayedLoad);
+    private void loadQuery(String query, boolean submit) {
         if (!TextUtils.isEmpty(query) && !query.equals("nil")) {
+            if (!query.equals(mQuery)) {
+                mRowsAdapter.clear();
+            }
             mQuery = query;
-            mHandler.postDelayed(mDelayedLoad, SEARCH_DELAY_MS);
+
+            // The planner answers from the known results right away, and debounces the
+            // provider searches while the user is typing
+            final SearchPlanner planner = ProviderAggregator.getDefault().getSearchPlanner();
+            if (submit) {
+                planner.submit(query);
+            } else {
+                planner.onQueryChanged(query);
+            }
         }
     }
 
@@ -304,7 +289,18 @@ public class TvSearchFragment extends SearchFragment
         }
 
         @Override
-        public void onSearchResult(List<SearchResult> searchResult) {
+        public void onSearchResult(List<SearchResult> newResults) {
+            if (newResults.isEmpty() || !newResults.get(0).getQuery().equals(mQuery)) {
+                return;
+            }
+
+            // We only receive the new results, rebuild the rows from all of them
+            final List<SearchResult> searchResult =
+                    ProviderAggregator.getDefault().getSearchResults(mQuery);
+            if (searchResult == null) {
+                return;
+            }
+
             final ArrayObjectAdapter artistRowAdapter = new ArrayObjectAdapter(new CardPresenter());
             final ArrayObjectAdapter albumRowAdapter = new ArrayObjectAdapter(new CardPresenter());
             final ArrayObjectAdapter songsRowAdapter = new ArrayObjectAdapter(new CardPresenter());
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.app.ui;
+
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+
+import com.fastbootmobile.encore.art.AlbumArtCache;
+import com.fastbootmobile.encore.art.AlbumArtHelper;
+import com.fastbootmobile.encore.art.AlbumArtTask;
+import com.fastbootmobile.encore.art.ArtScheduler;
+import com.fastbootmobile.encore.art.ImageCache;
+import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the art of the items a list is scrolling towards, so that it's in the memory cache by
+ * the time they're shown. The number of items loaded ahead follows the scrolling speed, within a
+ * share of the memory cache, and nothing is loaded while flinging too fast for the items to be
+ * seen anyway. Requests go through the prefetch lane of the {@link ArtScheduler}, so they never
+ * delay the art of the visible items.
+ */
+public class ArtPrefetcher {
+    /**
+     * Source of the entities whose art is displayed in a list
+     */
+    public interface Source {
+        /**
+         * @return The entity whose art is displayed at the provided position, or null if none
+         */
+        BoundEntity getArtEntity(int position);
+    }
+
+    /**
+     * Items are loaded this long ahead of the scrolling
+     */
+    private static final float LOOKAHEAD_SECONDS = 1.0f;
+
+    /**
+     * Above this speed in items per second, items fly by without being seen
+     */
+    private static final float MAX_VELOCITY = 60.0f;
+
+    /**
+     * Share of the memory cache that prefetched art may take
+     */
+    private static final float MEMORY_SHARE = 0.25f;
+
+    private static final int MAX_IN_FLIGHT = 12;
+    private static final int MIN_VELOCITY_INTERVAL = 100;
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    private final Resources mResources;
+    private final Source mSource;
+    private final Map<String, AlbumArtTask> mInFlight = new HashMap<>();
+    private int mArtSize;
+    private int mLastFirst = -1;
+    private long mLastTime;
+    private float mVelocity;
+    private int mDirection = 1;
+
+    private final AlbumArtHelper.AlbumArtListener mListener = new AlbumArtHelper.AlbumArtListener() {
+        @Override
+        public void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request) {
+            // The art is now cached, there is nothing else to do with it
+            if (request != null) {
+                mInFlight.remove(request.getRef());
+            }
+        }
+    };
+
+    private ArtPrefetcher(Resources res, Source source) {
+        mResources = res;
+        mSource = source;
+    }
+
+    /**
+     * Prefetches the art of a list or grid. This sets the scroll listener of the view.
+     */
+    public static ArtPrefetcher attach(final AbsListView view, Source source) {
+        final ArtPrefetcher prefetcher = new ArtPrefetcher(
+                view.getContext().getApplicationContext().getResources(), source);
+        view.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) {
+                    prefetcher.onIdle(view, view.getFirstVisiblePosition(),
+                            view.getChildCount(), view.getCount());
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                prefetcher.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+        });
+        return prefetcher;
+    }
+
+    /**
+     * Prefetches the art of a recycler view
+     */
+    public static ArtPrefetcher attach(final RecyclerView view, Source source) {
+        final ArtPrefetcher prefetcher = new ArtPrefetcher(
+                view.getContext().getApplicationContext().getResources(), source);
+        view.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE && recyclerView.getAdapter() != null) {
+                    prefetcher.onIdle(recyclerView, getFirstPosition(recyclerView),
+                            recyclerView.getChildCount(), recyclerView.getAdapter().getItemCount());
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (recyclerView.getAdapter() != null) {
+                    prefetcher.onScroll(recyclerView, getFirstPosition(recyclerView),
+                            recyclerView.getChildCount(), recyclerView.getAdapter().getItemCount());
+                }
+            }
+        });
+        return prefetcher;
+    }
+
+    private static int getFirstPosition(RecyclerView view) {
+        // Children may not be in adapter order (staggered grids), take the lowest position
+        int first = RecyclerView.NO_POSITION;
+        for (int i = 0; i < view.getChildCount(); ++i) {
+            int position = view.getChildAdapterPosition(view.getChildAt(i));
+            if (position != RecyclerView.NO_POSITION && (first < 0 || position < first)) {
+                first = position;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Cancels all the prefetching in progress
+     */
+    public void cancel() {
+        for (AlbumArtTask task : mInFlight.values()) {
+            task.cancel(true);
+        }
+        mInFlight.clear();
+    }
+
+    private void onScroll(ViewGroup view, int first, int visibleCount, int totalCount) {
+        if (first < 0 || visibleCount <= 0) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirst < 0) {
+            mLastFirst = first;
+            mLastTime = now;
+            return;
+        }
+
+        if (first == mLastFirst && now - mLastTime < MIN_VELOCITY_INTERVAL) {
+            return;
+        }
+
+        final float velocity = (first - mLastFirst) * 1000.0f / Math.max(1, now - mLastTime);
+        mVelocity = mVelocity * VELOCITY_SMOOTHING + velocity * (1 - VELOCITY_SMOOTHING);
+        mLastFirst = first;
+        mLastTime = now;
+
+        if (Math.abs(mVelocity) > MAX_VELOCITY) {
+            // Flinging through, the art would be dropped before being seen
+            cancel();
+            return;
+        }
+
+        if (velocity != 0) {
+            mDirection = velocity > 0 ? 1 : -1;
+        }
+
+        final int lookahead = Math.max(visibleCount,
+                Math.round(Math.abs(mVelocity) * LOOKAHEAD_SECONDS));
+        prefetch(view, first, visibleCount, totalCount, lookahead);
+    }
+
+    private void onIdle(ViewGroup view, int first, int visibleCount, int totalCount) {
+        mVelocity = 0;
+        mLastFirst = -1;
+
+        // The user is reading, get the next screen ready
+        if (first >= 0 && visibleCount > 0) {
+            prefetch(view, first, visibleCount, totalCount, visibleCount);
+        }
+    }
+
+    private void prefetch(ViewGroup view, int first, int visibleCount, int totalCount,
+                          int lookahead) {
+        final int artSize = getArtSize(view);
+        if (artSize <= 0) {
+            return;
+        }
+
+        // Stay within a share of the memory cache, so that the prefetched art doesn't evict
+        // the visible one
+        final long budget = (long) (ImageCache.getDefault().getMemoryCacheSize() * MEMORY_SHARE);
+        final long artBytes = (long) artSize * artSize * 4;
+        lookahead = (int) Math.min(lookahead, budget / artBytes);
+
+        // Items in the direction of the scroll, past the visible ones
+        final Set<String> wanted = new HashSet<>();
+        final AlbumArtCache artCache = AlbumArtCache.getDefault();
+        int position = mDirection > 0 ? first + visibleCount : first - 1;
+
+        for (int i = 0; i < lookahead && position >= 0 && position < totalCount;
+             ++i, position += mDirection) {
+            final BoundEntity entity = mSource.getArtEntity(position);
+            if (entity == null) {
+                continue;
+            }
+
+            final String ref = entity.getRef();
+            wanted.add(ref);
+
+            if (mInFlight.containsKey(ref) || mInFlight.size() >= MAX_IN_FLIGHT
+                    || artCache.getCacheStatus(entity) == AlbumArtCache.CACHE_STATUS_MEMORY) {
+                continue;
+            }
+
+            mInFlight.put(ref, AlbumArtHelper.retrieveAlbumArt(mResources, mListener, entity,
+                    artSize, ArtScheduler.PRIORITY_PREFETCH, false));
+        }
+
+        // Drop what the list is no longer heading to
+        Iterator<Map.Entry<String, AlbumArtTask>> it = mInFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AlbumArtTask> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The size at which the items display their art, as they would request it
+     */
+    private int getArtSize(ViewGroup view) {
+        if (mArtSize <= 0 && view.getChildCount() > 0) {
+            AlbumArtImageView artView = findArtView(view.getChildAt(0));
+            if (artView != null) {
+                mArtSize = Math.max(artView.getMeasuredWidth(), artView.getMeasuredHeight());
+            }
+        }
+        return mArtSize;
+    }
+
+    private static AlbumArtImageView findArtView(View view) {
+        if (view instanceof AlbumArtImageView) {
+            return (AlbumArtImageView) view;
+        } else if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); ++i) {
+                AlbumArtImageView artView = findArtView(group.getChildAt(i));
+                if (artView != null) {
+                    return artView;
+                }
+            }
+        }
+        return null;
+    }
+}
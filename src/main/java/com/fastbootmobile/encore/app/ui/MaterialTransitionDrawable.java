@@ -90,6 +90,9 @@ public class MaterialTransitionDrawable extends Drawable {
         synchronized (mDrawLock) {
             // Cancel animation
             mAnimating = false;
+            if (mTargetDrawable != null && mTargetDrawable != mBaseDrawable) {
+                mTargetDrawable.setIsDisplayed(false);
+            }
             mTargetDrawable = null;
             mShowOfflineOverdraw = false;
 
@@ -111,6 +114,13 @@ public class MaterialTransitionDrawable extends Drawable {
     public void transitionTo(final RecyclingBitmapDrawable drawable) {
         synchronized (mDrawLock) {
             if (drawable != mTargetDrawable) {
+                // Keep the display counts balanced so that bitmaps are only reused once no
+                // longer drawn
+                drawable.setIsDisplayed(true);
+                if (mTargetDrawable != null && mTargetDrawable != mBaseDrawable) {
+                    mTargetDrawable.setIsDisplayed(false);
+                }
+
                 mTargetDrawable = drawable;
                 mTargetDrawable.setBounds(getBounds());
 
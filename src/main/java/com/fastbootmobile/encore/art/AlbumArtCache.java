@@ -21,12 +21,8 @@ import android.graphics.BitmapFactory;
 import android.os.RemoteException;
 import android.util.Log;
 
-import com.fastbootmobile.encore.api.common.HttpGet;
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.RateLimitException;
-import com.fastbootmobile.encore.api.freebase.FreeBaseClient;
-import com.fastbootmobile.encore.api.gimages.GoogleImagesClient;
-import com.fastbootmobile.encore.api.musicbrainz.AlbumInfo;
-import com.fastbootmobile.encore.api.musicbrainz.MusicBrainzClient;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -40,8 +36,7 @@ import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.utils.Utils;
 
-import org.json.JSONException;
-
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
@@ -90,6 +85,7 @@ public class AlbumArtCache {
      */
     public void clear() {
         ImageCache.getDefault().clear();
+        ArtResolver.getDefault().clear();
     }
 
     /**
@@ -117,6 +113,10 @@ public class AlbumArtCache {
      * @return The art key of the entity
      */
     public String getEntityArtKey(BoundEntity ent) {
+        if (ent instanceof Playlist) {
+            // Playlist art is made of its first songs, so it's keyed by them too
+            return PlaylistArtBuilder.getCompositeKey((Playlist) ent);
+        }
         return ent.getRef();
     }
 
@@ -167,10 +167,14 @@ public class AlbumArtCache {
 
     private boolean getFreeArt(final Resources res, final BoundEntity ent,
                                final IAlbumArtCacheListener listener) {
-        new Thread() {
+        // The request waits for the download while holding a lane thread, so it can't run in
+        // the lanes, nor hold up the short callbacks of the completion pool
+        ArtScheduler.getDefault().executeDownload(new Runnable() {
+            @Override
             public void run() {
                 try {
-                    byte[] bytes = HttpGet.getBytes("http://lorempixel.com/600/600/abstract/", "", false);
+                    byte[] bytes = HttpClient.getDefault()
+                            .getBytes("http://lorempixel.com/600/600/abstract/", "", false);
                     if (bytes != null) {
                         Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
                         if (bitmap != null) {
@@ -187,7 +191,7 @@ public class AlbumArtCache {
                     listener.onArtLoaded(ent, null);
                 }
             }
-        }.start();
+        });
 
         return true;
     }
@@ -204,7 +208,8 @@ public class AlbumArtCache {
             providerprovides = result = binder.getSongArt(song, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtScheduler.getDefault().executeCompletion(new Runnable() {
+                        @Override
                         public void run() {
                             if (bitmap != null) {
                                 RecyclingBitmapDrawable rfb
@@ -214,7 +219,7 @@ public class AlbumArtCache {
                                 listener.onArtLoaded(song, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
@@ -264,7 +269,8 @@ public class AlbumArtCache {
             providerprovides = result = binder.getAlbumArt(album, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtScheduler.getDefault().executeCompletion(new Runnable() {
+                        @Override
                         public void run() {
                             if (bitmap != null) {
                                 RecyclingBitmapDrawable rcb
@@ -274,13 +280,12 @@ public class AlbumArtCache {
                                 listener.onArtLoaded(album, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
 
         if (!providerprovides) {
-            String url = null;
             final String artistRef = (album.getSongsCount() > 0 ? Utils.getMainArtist(album) : null);
             final String albumName = album.getName();
             String artistName = (hintArtist != null ? hintArtist.getName() : null);
@@ -298,66 +303,15 @@ public class AlbumArtCache {
                 return false;
             }
 
-            // Try to get from Google Images
-            try {
-                if (artistName != null && albumName != null) {
-                    url = GoogleImagesClient.getImageUrl("album " + artistName + " " + albumName);
-                } else if (artistName == null) {
-                    url = GoogleImagesClient.getImageUrl("album " + albumName);
-                } else {
-                    url = GoogleImagesClient.getImageUrl("album from " + artistName);
-                }
-            } catch (RateLimitException e) {
-                Log.w(TAG, "Rate limit hit while getting image from Google Images");
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON Error while getting image from Google Images");
-            } catch (IOException e) {
-                Log.e(TAG, "IO error while getting image from Google Images");
-            }
-
-            if (url == null) {
-                // Get from MusicBrainz as both the provider and Google Images can't provide
-                AlbumInfo[] albums = null;
+            // Look it up on the Web
+            final String url = ArtResolver.getDefault().resolve(
+                    ArtQuery.forAlbum(artistName, albumName, album.getSongsCount()));
 
-                // Query MusicBrainz
-                try {
-                    albums = MusicBrainzClient.getAlbum(artistName, albumName);
-                } catch (RateLimitException e) {
-                    Log.w(TAG, "Can't get from MusicBrainz, rate limited");
-                }
-
-                // If we have results, go and fetch one
-                if (albums != null && albums.length > 0) {
-                    AlbumInfo selection = albums[0];
-
-                    if (albums.length > 1) {
-                        // Try to find if we have an album that has the same track count, otherwise use
-                        // the first one
-                        for (AlbumInfo albumInfo : albums) {
-                            if (albumInfo.track_count == album.getSongsCount()) {
-                                selection = albumInfo;
-                                break;
-                            }
-                        }
-                    }
-
-                    // Get the URL
-                    try {
-                        url = MusicBrainzClient.getAlbumArtUrl(selection.id);
-                    } catch (RateLimitException e) {
-                        Log.w(TAG, "Can't get URL from MusicBrainz, rate limited");
-                    }
-                }
-            }
-
-            // If we have an URL from either image source, download it and pass it back
+            // If we have an URL from an image source, download it and pass it back
             if (url != null) {
                 // Download it
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap bitmap = downloadImage(url);
                     if (bitmap != null) {
                         result = true;
                         RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(listenerRef), bitmap);
@@ -390,7 +344,8 @@ public class AlbumArtCache {
             providerprovides = result = binder.getArtistArt(artist, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtScheduler.getDefault().executeCompletion(new Runnable() {
+                        @Override
                         public void run() {
                             if (bitmap != null) {
                                 RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), bitmap);
@@ -399,7 +354,7 @@ public class AlbumArtCache {
                                 listener.onArtLoaded(artist, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
@@ -411,39 +366,12 @@ public class AlbumArtCache {
                 return false;
             }
 
-            // Try to get it first from FreeBase, then from Google Image if none found or error
-            // (Google Images might return some random/unwanted images, so prefer FreeBase first)
-            String url = null;
-
-            try {
-                url = FreeBaseClient.getArtistImageUrl(artist.getName());
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON error while getting image from FreeBase");
-            } catch (RateLimitException e) {
-                Log.w(TAG, "Rate limit hit while getting image from FreeBase");
-            } catch (IOException e) {
-                Log.e(TAG, "IO error while getting image from FreeBase");
-            }
-
-            if (url == null) {
-                try {
-                    url = GoogleImagesClient.getImageUrl("Music Band " + artist.getName());
-                } catch (RateLimitException e) {
-                    Log.w(TAG, "Rate limit hit while getting image from Google Images");
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Error while getting image from Google Images");
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error while getting image from Google Images (" + e.getMessage() + ")");
-                }
-
-            }
+            // Look it up on the Web
+            String url = ArtResolver.getDefault().resolve(ArtQuery.forArtist(artist.getName()));
 
             if (url != null) {
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap image = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap image = downloadImage(url);
                     if (image != null) {
                         result = true;
                         RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), image);
@@ -477,7 +405,8 @@ public class AlbumArtCache {
             providerprovides = binder.getPlaylistArt(playlist, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtScheduler.getDefault().executeCompletion(new Runnable() {
+                        @Override
                         public void run() {
                             if (bitmap != null) {
                                 RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
@@ -486,7 +415,7 @@ public class AlbumArtCache {
                                 listener.onArtLoaded(playlist, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
             result = providerprovides;
@@ -500,13 +429,14 @@ public class AlbumArtCache {
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
                     if (bitmap == null) return;
 
-                    new Thread() {
+                    ArtScheduler.getDefault().executeCompletion(new Runnable() {
+                        @Override
                         public void run() {
                             RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
                             listener.onArtLoaded(playlist, rcb);
                             builder.freeMemory();
                         }
-                    }.start();
+                    });
                 }
             });
             result = true;
@@ -515,6 +445,39 @@ public class AlbumArtCache {
         return result;
     }
 
+    /**
+     * Downloads an image to a file and decodes it, subsampled if it's larger than what the cache
+     * keeps on disk anyway
+     * @return The decoded image, or null if there's none
+     */
+    private static Bitmap downloadImage(String url) throws IOException, RateLimitException {
+        final File file = HttpClient.getDefault().download(url, "", true);
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            final String path = file.getAbsolutePath();
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, opts);
+
+            final int smallestSide = Math.min(opts.outWidth, opts.outHeight);
+            opts.inSampleSize = 1;
+            while (smallestSide / (opts.inSampleSize * 2) >= ImageCache.SIZE_DISK_FULL) {
+                opts.inSampleSize *= 2;
+            }
+
+            opts.inJustDecodeBounds = false;
+            opts.inMutable = true;
+            return BitmapFactory.decodeFile(path, opts);
+        } finally {
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete downloaded image " + file.getPath());
+            }
+        }
+    }
+
     private IMusicProvider safeGetBinder(final ProviderIdentifier id) {
         final ProviderConnection conn = PluginsLookup.getDefault().getProvider(id);
         if (conn != null) {
@@ -16,50 +16,15 @@
 package com.fastbootmobile.encore.art;
 
 import android.content.res.Resources;
-import android.os.AsyncTask;
-import android.os.Build;
-import android.support.annotation.NonNull;
 
 import com.fastbootmobile.encore.model.BoundEntity;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
  * Helper class allowing to easily download and fetch an album art or artist art
  */
 public class AlbumArtHelper {
     private static final String TAG = "AlbumArtHelper";
 
-    private static final int CORE_POOL_SIZE = 2;
-    private static final int PRI_CORE_POOL_SIZE = 2;
-    private static final int MAXIMUM_POOL_SIZE = 6;
-    private static final int PRI_MAXIMUM_POOL_SIZE = 3;
-    private static final int KEEP_ALIVE = 10;
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
-
-        public Thread newThread(@NonNull Runnable r) {
-            return new Thread(r, "Art AsyncTask #" + mCount.getAndIncrement());
-        }
-    };
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<>(64);
-    private static final BlockingQueue<Runnable> sPriorityPoolWorkQueue =
-            new LinkedBlockingQueue<>(32);
-
-    static final Executor ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
-    static final Executor PRIORITY_ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(PRI_CORE_POOL_SIZE, PRI_MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPriorityPoolWorkQueue, sThreadFactory);
-
     public interface AlbumArtListener {
         void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request);
     }
@@ -70,44 +35,46 @@ public class AlbumArtHelper {
         public boolean retry;
         public AlbumArtListener listener;
         public int size;
+        public int priority;
     }
 
+    /**
+     * Retrieves the art of an entity displayed on screen
+     * @param immediate true if the art is known to be cached, to get it before the art that has
+     *                  to be downloaded
+     */
     public static AlbumArtTask retrieveAlbumArt(Resources res, AlbumArtListener listener,
                                                 BoundEntity request, int size, boolean immediate) {
+        return retrieveAlbumArt(res, listener, request, size, ArtScheduler.PRIORITY_VISIBLE,
+                immediate);
+    }
+
+    /**
+     * Retrieves the art of an entity
+     * @param priority The lane of the request, one of {@link ArtScheduler#PRIORITY_VISIBLE},
+     *                 {@link ArtScheduler#PRIORITY_PREFETCH} or
+     *                 {@link ArtScheduler#PRIORITY_BACKGROUND}
+     * @param immediate true to get the art before the other requests of the lane
+     */
+    public static AlbumArtTask retrieveAlbumArt(Resources res, AlbumArtListener listener,
+                                                BoundEntity request, int size, int priority,
+                                                boolean immediate) {
         AlbumArtRequest requestStructure = new AlbumArtRequest();
         requestStructure.entity = request;
         requestStructure.listener = listener;
         requestStructure.requestedSize = size;
+        requestStructure.priority = priority;
         requestStructure.res = res;
         AlbumArtTask task = new AlbumArtTask();
 
-        // On Android 4.2+, we use our custom executor. Android 4.1 and below uses the predefined
-        // pool, as the custom one causes the app to just crash without any kind of error message
-        // for no reason (at least in the emulator).
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            if (immediate) {
-                if (sPriorityPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPriorityPoolWorkQueue.remove(sPriorityPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(PRIORITY_ART_POOL_EXECUTOR, requestStructure);
-            } else {
-                if (sPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPoolWorkQueue.remove(sPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(ART_POOL_EXECUTOR, requestStructure);
-            }
-        } else {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, requestStructure);
-        }
+        task.executeOnExecutor(ArtScheduler.getDefault().getExecutor(priority, immediate),
+                requestStructure);
 
         return task;
     }
 
     public static void clearAlbumArtRequests() {
-        sPriorityPoolWorkQueue.clear();
-        sPoolWorkQueue.clear();
+        ArtScheduler.getDefault().clear();
     }
 
 
@@ -115,6 +82,7 @@ public class AlbumArtHelper {
         Resources res;
         AlbumArtHelper.AlbumArtListener listener;
         int requestedSize;
+        int priority;
         BoundEntity entity;
     }
 }
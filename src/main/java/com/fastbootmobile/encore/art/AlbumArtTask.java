@@ -69,6 +69,7 @@ public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void
         output.request = request.entity;
         output.listener = request.listener;
         output.size = request.requestedSize;
+        output.priority = request.priority;
 
         final AlbumArtCache artCache = AlbumArtCache.getDefault();
 
@@ -135,10 +136,12 @@ public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void
                 request.listener = result.listener;
                 request.entity = result.request;
                 request.requestedSize = result.size;
+                request.priority = result.priority;
                 request.res = Resources.getSystem();
 
                 try {
-                    task.executeOnExecutor(AlbumArtHelper.ART_POOL_EXECUTOR, request);
+                    task.executeOnExecutor(ArtScheduler.getDefault().getExecutor(result.priority,
+                            false), request);
                 } catch (RejectedExecutionException e) {
                     Log.w(TAG, "Request restart has been denied", e);
                 }
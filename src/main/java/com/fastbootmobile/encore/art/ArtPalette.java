@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.support.v7.graphics.Palette;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The swatch colors of a piece of art, as extracted by {@link Palette}. Unlike a Palette, it is
+ * small enough to be cached and stored alongside the art.
+ */
+public class ArtPalette {
+    private static final int VERSION = 1;
+
+    /**
+     * Color of a swatch the palette doesn't have. Swatch colors are always opaque.
+     */
+    private static final int NO_COLOR = 0;
+
+    private final int mVibrant;
+    private final int mDarkVibrant;
+    private final int mLightVibrant;
+    private final int mMuted;
+    private final int mDarkMuted;
+    private final int mLightMuted;
+
+    private ArtPalette(int vibrant, int darkVibrant, int lightVibrant,
+                       int muted, int darkMuted, int lightMuted) {
+        mVibrant = vibrant;
+        mDarkVibrant = darkVibrant;
+        mLightVibrant = lightVibrant;
+        mMuted = muted;
+        mDarkMuted = darkMuted;
+        mLightMuted = lightMuted;
+    }
+
+    /**
+     * Keeps the swatch colors of a palette
+     */
+    public static ArtPalette from(Palette palette) {
+        return new ArtPalette(palette.getVibrantColor(NO_COLOR),
+                palette.getDarkVibrantColor(NO_COLOR),
+                palette.getLightVibrantColor(NO_COLOR),
+                palette.getMutedColor(NO_COLOR),
+                palette.getDarkMutedColor(NO_COLOR),
+                palette.getLightMutedColor(NO_COLOR));
+    }
+
+    /**
+     * Reads a palette written by {@link #writeTo(DataOutputStream)}
+     * @return The palette, or null if it was written by an incompatible version
+     */
+    public static ArtPalette readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+        return new ArtPalette(in.readInt(), in.readInt(), in.readInt(),
+                in.readInt(), in.readInt(), in.readInt());
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(mVibrant);
+        out.writeInt(mDarkVibrant);
+        out.writeInt(mLightVibrant);
+        out.writeInt(mMuted);
+        out.writeInt(mDarkMuted);
+        out.writeInt(mLightMuted);
+    }
+
+    public int getVibrantColor(int defaultColor) {
+        return mVibrant != NO_COLOR ? mVibrant : defaultColor;
+    }
+
+    public int getDarkVibrantColor(int defaultColor) {
+        return mDarkVibrant != NO_COLOR ? mDarkVibrant : defaultColor;
+    }
+
+    public int getLightVibrantColor(int defaultColor) {
+        return mLightVibrant != NO_COLOR ? mLightVibrant : defaultColor;
+    }
+
+    public int getMutedColor(int defaultColor) {
+        return mMuted != NO_COLOR ? mMuted : defaultColor;
+    }
+
+    public int getDarkMutedColor(int defaultColor) {
+        return mDarkMuted != NO_COLOR ? mDarkMuted : defaultColor;
+    }
+
+    public int getLightMutedColor(int defaultColor) {
+        return mLightMuted != NO_COLOR ? mLightMuted : defaultColor;
+    }
+
+    public boolean hasVibrant() {
+        return mVibrant != NO_COLOR;
+    }
+
+    public boolean hasDarkVibrant() {
+        return mDarkVibrant != NO_COLOR;
+    }
+
+    public boolean hasDarkMuted() {
+        return mDarkMuted != NO_COLOR;
+    }
+
+    /**
+     * @return The HSL lightness of a color, between 0 and 1
+     */
+    public static float getLightness(int color) {
+        final int r = (color >> 16) & 0xFF;
+        final int g = (color >> 8) & 0xFF;
+        final int b = color & 0xFF;
+        return (Math.max(r, Math.max(g, b)) + Math.min(r, Math.min(g, b))) / (2 * 255.0f);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+/**
+ * Describes the art looked up from the Web for an entity that its provider can't give art for
+ */
+public class ArtQuery {
+    /**
+     * The art of an album
+     */
+    public static final int TYPE_ALBUM = 0;
+
+    /**
+     * The picture of an artist
+     */
+    public static final int TYPE_ARTIST = 1;
+
+    public final int type;
+    public final String artistName;
+    public final String albumName;
+    public final int trackCount;
+
+    private ArtQuery(int type, String artistName, String albumName, int trackCount) {
+        this.type = type;
+        this.artistName = artistName;
+        this.albumName = albumName;
+        this.trackCount = trackCount;
+    }
+
+    /**
+     * @param artistName The name of the artist, or null if unknown
+     * @param albumName The name of the album, or null if unknown
+     * @param trackCount The number of tracks of the album, or 0 if unknown
+     */
+    public static ArtQuery forAlbum(String artistName, String albumName, int trackCount) {
+        return new ArtQuery(TYPE_ALBUM, artistName, albumName, trackCount);
+    }
+
+    /**
+     * @param artistName The name of the artist
+     */
+    public static ArtQuery forArtist(String artistName) {
+        return new ArtQuery(TYPE_ARTIST, artistName, null, 0);
+    }
+
+    /**
+     * @return A key identifying the query, whatever the provider of the entity is
+     */
+    public String getKey() {
+        return type + "|" + artistName + "|" + albumName;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
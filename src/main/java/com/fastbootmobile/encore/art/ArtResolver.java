@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.api.common.TokenBucket;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Looks up the art of entities their provider can't give art for, by trying a chain of Web
+ * sources in turn. Requests to each host go through a token bucket, and hosts that rate-limit us
+ * are left alone for a while. Sources that answered a query without art are remembered in a
+ * {@link NegativeArtCache}, so that only the sources that were skipped or failed are asked
+ * again on the next display.
+ */
+public class ArtResolver {
+    private static final String TAG = "ArtResolver";
+
+    /**
+     * How long to remember that a source, or every source, has no art for a query
+     */
+    private static final long TTL_NOT_FOUND = 7 * 24 * 3600 * 1000L;
+
+    private static final ArtResolver INSTANCE = new ArtResolver();
+
+    private final List<ArtSource> mAlbumSources = new CopyOnWriteArrayList<>();
+    private final List<ArtSource> mArtistSources = new CopyOnWriteArrayList<>();
+    private final Map<String, TokenBucket> mBuckets = new HashMap<>();
+    private final NegativeArtCache mNegativeCache = new NegativeArtCache();
+
+    /**
+     * @return The default instance
+     */
+    public static ArtResolver getDefault() {
+        return INSTANCE;
+    }
+
+    private ArtResolver() {
+        // MusicBrainz asks for no more than one request per second
+        setRateLimit("musicbrainz.org", 1, 1);
+        setRateLimit("ajax.googleapis.com", 2, 5);
+        setRateLimit("www.googleapis.com", 2, 5);
+
+        // Google Images first for albums, then MusicBrainz. For artists, prefer FreeBase as
+        // Google Images might return some random/unwanted images.
+        addSource(ArtQuery.TYPE_ALBUM, new GoogleImagesArtSource());
+        addSource(ArtQuery.TYPE_ALBUM, new MusicBrainzArtSource());
+        addSource(ArtQuery.TYPE_ARTIST, new FreeBaseArtSource());
+        addSource(ArtQuery.TYPE_ARTIST, new GoogleImagesArtSource());
+    }
+
+    /**
+     * Loads the queries known to have no art
+     */
+    public void initialize(Context ctx) {
+        mNegativeCache.initialize(ctx);
+    }
+
+    /**
+     * Appends a source to the chain of a type of query
+     * @param type One of {@link ArtQuery#TYPE_ALBUM} or {@link ArtQuery#TYPE_ARTIST}
+     * @param source The source
+     */
+    public void addSource(int type, ArtSource source) {
+        getSources(type).add(source);
+    }
+
+    /**
+     * Sets the rate at which a host may be queried
+     * @param host The host
+     * @param requestsPerSecond The sustained rate of requests
+     * @param burst The number of requests allowed in a burst
+     */
+    public void setRateLimit(String host, double requestsPerSecond, int burst) {
+        synchronized (mBuckets) {
+            mBuckets.put(host, new TokenBucket(requestsPerSecond, burst));
+        }
+    }
+
+    /**
+     * Forgets about the queries known to have no art
+     */
+    public void clear() {
+        mNegativeCache.clear();
+    }
+
+    /**
+     * Looks up the URL of the art matching a query. This method is synchronous.
+     * @param query The query
+     * @return The URL of the art, or null if none was found
+     */
+    public String resolve(ArtQuery query) {
+        final String key = query.getKey();
+        if (mNegativeCache.contains(key)) {
+            return null;
+        }
+
+        final List<ArtSource> sources = getSources(query.type);
+        int answered = 0;
+
+        for (ArtSource source : sources) {
+            final String host = source.getHost();
+            final String sourceKey = key + "@" + host;
+            if (mNegativeCache.contains(sourceKey)) {
+                // This source already told us it has no art for this query
+                answered++;
+                continue;
+            }
+
+            final TokenBucket bucket = getBucket(host);
+            if (!bucket.tryAcquire()) {
+                // Don't wait for the host, the query will be looked up again next time
+                continue;
+            }
+
+            try {
+                String url = source.getArtUrl(query);
+                bucket.onSuccess();
+                if (url != null) {
+                    return url;
+                }
+                answered++;
+                mNegativeCache.put(sourceKey, TTL_NOT_FOUND);
+            } catch (RateLimitException e) {
+                Log.w(TAG, "Rate limit hit on " + host + ", backing off");
+                bucket.onRateLimited();
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON error while getting image from " + host);
+            } catch (IOException e) {
+                Log.e(TAG, "IO error while getting image from " + host + " (" + e.getMessage() + ")");
+            }
+        }
+
+        if (answered == sources.size()) {
+            mNegativeCache.put(key, TTL_NOT_FOUND);
+        }
+
+        return null;
+    }
+
+    private List<ArtSource> getSources(int type) {
+        return type == ArtQuery.TYPE_ARTIST ? mArtistSources : mAlbumSources;
+    }
+
+    private TokenBucket getBucket(String host) {
+        synchronized (mBuckets) {
+            TokenBucket bucket = mBuckets.get(host);
+            if (bucket == null) {
+                // Hosts without a known limit still shouldn't be hammered
+                bucket = new TokenBucket(2, 5);
+                mBuckets.put(host, bucket);
+            }
+            return bucket;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all the art work of the app on a bounded set of threads. Requests are queued in priority
+ * lanes, the most recent request first within a lane, and each lane only keeps a limited number
+ * of requests: the oldest ones are dropped when it's full. Requests cancelled while queued (for
+ * instance because their view got recycled) are skipped without running.
+ * Completions of requests (storing and delivering the art a provider sent back) and downloads
+ * run on their own threads, as requests wait for them while holding a thread.
+ */
+public class ArtScheduler {
+    private static final String TAG = "ArtScheduler";
+
+    /**
+     * Art displayed on screen right now
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * Art that is likely to be displayed soon
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Art that nothing is waiting for yet
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int[] LANE_CAPACITY = {32, 48, 16};
+
+    private static final int POOL_SIZE = 5;
+    private static final int COMPLETION_POOL_SIZE = 2;
+    private static final int DOWNLOAD_POOL_SIZE = 2;
+    private static final int KEEP_ALIVE = 10;
+
+    private static final ArtScheduler INSTANCE = new ArtScheduler();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mCompletionExecutor;
+    private final ThreadPoolExecutor mDownloadExecutor;
+    private final ArrayDeque<Job>[] mLanes;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private class Job implements Runnable, Comparable<Job> {
+        final Runnable task;
+        final int priority;
+        final boolean urgent;
+        final long sequence;
+
+        Job(Runnable task, int priority, boolean urgent) {
+            this.task = task;
+            this.priority = priority;
+            this.urgent = urgent;
+            this.sequence = mSequence.incrementAndGet();
+        }
+
+        boolean isCancelled() {
+            return task instanceof Future && ((Future) task).isCancelled();
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLanes) {
+                mLanes[priority].remove(this);
+            }
+
+            if (!isCancelled()) {
+                task.run();
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            if (urgent != other.urgent) {
+                return urgent ? -1 : 1;
+            }
+            // Most recent first
+            return sequence > other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, name + " #" + mCount.getAndIncrement());
+            }
+        };
+    }
+
+    /**
+     * @return The default instance
+     */
+    public static ArtScheduler getDefault() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArtScheduler() {
+        mLanes = new ArrayDeque[LANE_CAPACITY.length];
+        for (int i = 0; i < mLanes.length; ++i) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), createThreadFactory("Art"));
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mCompletionExecutor = new ThreadPoolExecutor(COMPLETION_POOL_SIZE, COMPLETION_POOL_SIZE,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory("Art completion"));
+        mCompletionExecutor.allowCoreThreadTimeOut(true);
+
+        mDownloadExecutor = new ThreadPoolExecutor(DOWNLOAD_POOL_SIZE, DOWNLOAD_POOL_SIZE,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory("Art download"));
+        mDownloadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns an executor queueing its tasks in the provided lane
+     * @param priority One of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} or
+     *                 {@link #PRIORITY_BACKGROUND}
+     * @param urgent true to run the tasks before the other ones of the lane, for instance when
+     *               the art is known to be cached
+     */
+    public Executor getExecutor(final int priority, final boolean urgent) {
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                schedule(command, priority, urgent);
+            }
+        };
+    }
+
+    /**
+     * Queues a task in the provided lane
+     * @param task The task. If it's a {@link Future}, it is skipped once cancelled.
+     * @param priority One of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} or
+     *                 {@link #PRIORITY_BACKGROUND}
+     * @param urgent true to run the task before the other ones of the lane
+     */
+    public void schedule(Runnable task, int priority, boolean urgent) {
+        final Job job = new Job(task, priority, urgent);
+
+        synchronized (mLanes) {
+            final ArrayDeque<Job> lane = mLanes[priority];
+
+            // Drop the cancelled requests first, then the oldest ones if still full
+            Iterator<Job> it = lane.iterator();
+            while (it.hasNext()) {
+                Job queued = it.next();
+                if (queued.isCancelled()) {
+                    it.remove();
+                    mExecutor.remove(queued);
+                }
+            }
+
+            while (lane.size() >= LANE_CAPACITY[priority]) {
+                Job dropped = lane.pollFirst();
+                mExecutor.remove(dropped);
+                Log.d(TAG, "Lane " + priority + " full, dropped a request");
+            }
+
+            lane.addLast(job);
+        }
+
+        mExecutor.execute(job);
+    }
+
+    /**
+     * Runs the completion of a request, for instance storing and delivering the art sent back
+     * by a provider
+     */
+    public void executeCompletion(Runnable completion) {
+        mCompletionExecutor.execute(completion);
+    }
+
+    /**
+     * Runs a blocking download that a request waits for
+     */
+    public void executeDownload(Runnable download) {
+        mDownloadExecutor.execute(download);
+    }
+
+    /**
+     * Drops all the queued requests
+     */
+    public void clear() {
+        synchronized (mLanes) {
+            for (ArrayDeque<Job> lane : mLanes) {
+                for (Job job : lane) {
+                    mExecutor.remove(job);
+                }
+                lane.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import com.fastbootmobile.encore.api.common.RateLimitException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * A Web service art can be looked up from. Sources are chained by {@link ArtResolver}, which
+ * tries them in turn until one has art.
+ */
+public interface ArtSource {
+    /**
+     * @return The host this source queries. Sources querying the same host share its rate limit.
+     */
+    String getHost();
+
+    /**
+     * Looks up the art matching a query. This method is synchronous and called from the art
+     * threads.
+     * @param query The query
+     * @return The URL of the art, or null if the source has none for this query
+     * @throws RateLimitException If the host rate-limited the request
+     * @throws IOException If the host couldn't be queried
+     * @throws JSONException If the host answered with something unexpected
+     */
+    String getArtUrl(ArtQuery query) throws RateLimitException, IOException, JSONException;
+}
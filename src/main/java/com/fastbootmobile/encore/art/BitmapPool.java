@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import com.fastbootmobile.encore.utils.ImageUtils;
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer used, to be reused for decoding (inBitmap) or drawing
+ * instead of allocating new ones. Bitmaps are strongly referenced, up to a byte budget after
+ * which the oldest ones are dropped.
+ * From KitKat onward, a bitmap can be reused for any smaller allocation, so bitmaps are grouped
+ * by config and allocation size and the smallest one large enough is picked. Before KitKat, the
+ * dimensions must match exactly, so bitmaps are grouped by config and dimensions.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /**
+     * Bitmaps larger than this many times the requested allocation aren't used, as they would
+     * keep a lot of unused memory around
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static final BitmapPool INSTANCE = new BitmapPool(
+            Math.min(8 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+
+    private final long mMaxSize;
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<>();
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> mBySize =
+            new EnumMap<>(Bitmap.Config.class);
+    private final Map<String, ArrayDeque<Bitmap>> mByDimensions = new HashMap<>();
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @return The default instance
+     */
+    public static BitmapPool getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxSize The maximum size in bytes of the pooled bitmaps
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Gives a bitmap that is no longer used to the pool. Immutable or recycled bitmaps are
+     * ignored, as they can't be reused.
+     * @param bitmap The bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null
+                || getAllocationSize(bitmap) > mMaxSize || !mBitmaps.add(bitmap)) {
+            return;
+        }
+
+        getGroup(bitmap, true).addLast(bitmap);
+        mSize += getAllocationSize(bitmap);
+        trimToSize();
+    }
+
+    /**
+     * Takes back a bitmap given to the pool if it hasn't been reused yet
+     * @param bitmap The bitmap
+     * @return true if the bitmap was still in the pool, and is no longer
+     */
+    public synchronized boolean reclaim(Bitmap bitmap) {
+        if (!mBitmaps.contains(bitmap)) {
+            return false;
+        }
+
+        remove(bitmap);
+        return true;
+    }
+
+    /**
+     * Returns a bitmap that can be used as inBitmap to decode an image
+     * @param options The decoding options, with the out* values populated
+     * @return A bitmap to decode into, or null if none fits
+     */
+    public synchronized Bitmap getReusable(BitmapFactory.Options options) {
+        final Bitmap.Config config = options.inPreferredConfig != null ?
+                options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = options.outWidth / sampleSize;
+        final int height = options.outHeight / sampleSize;
+
+        Bitmap bitmap = null;
+        if (Utils.hasKitKat()) {
+            bitmap = pollBySize(config, width * height * ImageUtils.getBytesPerPixel(config));
+        } else if (sampleSize == 1) {
+            bitmap = pollByDimensions(config, width, height);
+        }
+
+        countLookup(bitmap != null);
+        return bitmap;
+    }
+
+    /**
+     * Returns a transparent bitmap of the provided dimensions, reused from the pool if possible
+     * @return A mutable bitmap
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        synchronized (this) {
+            if (Utils.hasKitKat()) {
+                bitmap = pollBySize(config, width * height * ImageUtils.getBytesPerPixel(config));
+                if (bitmap != null) {
+                    bitmap.reconfigure(width, height, config);
+                }
+            } else {
+                bitmap = pollByDimensions(config, width, height);
+            }
+            countLookup(bitmap != null);
+        }
+
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        } else {
+            return Bitmap.createBitmap(width, height, config);
+        }
+    }
+
+    /**
+     * Drops all the pooled bitmaps
+     */
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mBySize.clear();
+        mByDimensions.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of lookups that have been given a pooled bitmap
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of lookups that haven't found a suitable pooled bitmap
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The number of bitmaps dropped to stay within the budget
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return The ratio of lookups that have been given a pooled bitmap, between 0 and 1
+     */
+    public synchronized float getHitRate() {
+        final int lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (float) mHitCount / lookups;
+    }
+
+    /**
+     * @return The size in bytes of the pooled bitmaps
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSize + "/" + mMaxSize + ", bitmaps=" + mBitmaps.size()
+                + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + "]";
+    }
+
+    private Bitmap pollBySize(Bitmap.Config config, int byteCount) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBySize.get(config);
+        if (sizes == null) {
+            return null;
+        }
+
+        // Smallest allocation large enough
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizes.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > (long) byteCount * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+
+        Bitmap bitmap = entry.getValue().peekLast();
+        remove(bitmap);
+        return bitmap;
+    }
+
+    private Bitmap pollByDimensions(Bitmap.Config config, int width, int height) {
+        ArrayDeque<Bitmap> group = mByDimensions.get(getDimensionsKey(config, width, height));
+        if (group == null) {
+            return null;
+        }
+
+        Bitmap bitmap = group.peekLast();
+        remove(bitmap);
+        return bitmap;
+    }
+
+    private ArrayDeque<Bitmap> getGroup(Bitmap bitmap, boolean create) {
+        final Bitmap.Config config = bitmap.getConfig();
+        ArrayDeque<Bitmap> group;
+
+        if (Utils.hasKitKat()) {
+            TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBySize.get(config);
+            if (sizes == null) {
+                if (!create) {
+                    return null;
+                }
+                sizes = new TreeMap<>();
+                mBySize.put(config, sizes);
+            }
+
+            final int size = getAllocationSize(bitmap);
+            group = sizes.get(size);
+            if (group == null && create) {
+                group = new ArrayDeque<>();
+                sizes.put(size, group);
+            }
+        } else {
+            final String key = getDimensionsKey(config, bitmap.getWidth(), bitmap.getHeight());
+            group = mByDimensions.get(key);
+            if (group == null && create) {
+                group = new ArrayDeque<>();
+                mByDimensions.put(key, group);
+            }
+        }
+
+        return group;
+    }
+
+    private void remove(Bitmap bitmap) {
+        mBitmaps.remove(bitmap);
+        mSize -= getAllocationSize(bitmap);
+
+        ArrayDeque<Bitmap> group = getGroup(bitmap, false);
+        if (group != null) {
+            group.remove(bitmap);
+            if (group.isEmpty()) {
+                if (Utils.hasKitKat()) {
+                    mBySize.get(bitmap.getConfig()).remove(getAllocationSize(bitmap));
+                } else {
+                    mByDimensions.remove(getDimensionsKey(bitmap.getConfig(),
+                            bitmap.getWidth(), bitmap.getHeight()));
+                }
+            }
+        }
+    }
+
+    private void trimToSize() {
+        // Iteration order is the order in which bitmaps were given, oldest first
+        while (mSize > mMaxSize && !mBitmaps.isEmpty()) {
+            remove(mBitmaps.iterator().next());
+            mEvictionCount++;
+        }
+    }
+
+    private void countLookup(boolean hit) {
+        if (hit) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG) && (mHitCount + mMissCount) % 100 == 0) {
+            Log.d(TAG, toString());
+        }
+    }
+
+    private static String getDimensionsKey(Bitmap.Config config, int width, int height) {
+        return width + "x" + height + "@" + config;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        return Utils.hasKitKat() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size-bounded disk cache of art files. Files are named after a hash of their key, and a
+ * journal persists the index along with the access order, so that opening the cache doesn't
+ * need to read every file. Files are written to a temporary file first and renamed once
+ * complete, and the least recently used files are evicted once the byte budget is exceeded.
+ * Reads are journaled lazily: losing the most recent ones in a crash only affects the order of
+ * eviction.
+ */
+public class DiskArtCache {
+    private static final String TAG = "DiskArtCache";
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "encore.art.journal";
+    private static final int JOURNAL_VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String OP_CLEAN = "CLEAN";
+    private static final String OP_READ = "READ";
+    private static final String OP_REMOVE = "REMOVE";
+
+    /**
+     * The journal is rewritten once it holds this many redundant operations, and more than
+     * there are entries
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the content of a cache entry
+     */
+    public interface EntryWriter {
+        /**
+         * @return true if the content has been written successfully
+         */
+        boolean write(OutputStream out) throws IOException;
+    }
+
+    private static class Entry {
+        final String hash;
+        long size;
+        long created;
+
+        Entry(String hash, long size, long created) {
+            this.hash = hash;
+            this.size = size;
+            this.created = created;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private final AtomicInteger mTmpCounter = new AtomicInteger();
+    private Writer mJournal;
+    private long mSize;
+    private int mRedundantOps;
+
+    /**
+     * Opens the cache in the provided directory, replaying its journal
+     * @param directory The directory of the cache
+     * @param maxSize The maximum size in bytes of the cached files
+     */
+    public DiskArtCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create the cache directory " + mDirectory.getPath());
+        }
+
+        synchronized (this) {
+            if (!readJournal()) {
+                // No usable journal, the files we may have are unknown, start afresh
+                deleteContents();
+                mEntries.clear();
+                mSize = 0;
+            } else {
+                deleteOrphans();
+            }
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * @return The hashed name of the file of the provided key
+     */
+    static String hashKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available, this should never happen
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    /**
+     * @return true if an entry exists for the provided key
+     */
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(hashKey(key));
+    }
+
+    /**
+     * Returns the file of the provided key, and marks it as recently used
+     * @return The file, or null if the key isn't cached
+     */
+    public synchronized File get(String key) {
+        final String hash = hashKey(key);
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+
+        // Not flushed, the next write or compaction takes it along
+        appendJournal(OP_READ + ' ' + hash, false);
+        mRedundantOps++;
+        compactIfNeeded();
+        return new File(mDirectory, hash);
+    }
+
+    /**
+     * @return The time at which the entry of the provided key was stored, or 0 if not cached
+     */
+    public synchronized long getCreationTime(String key) {
+        Entry entry = mEntries.get(hashKey(key));
+        return entry == null ? 0 : entry.created;
+    }
+
+    /**
+     * Stores an entry. The content is written to a temporary file outside of the cache lock,
+     * and only replaces the previous entry once completely written.
+     * @param key The key of the entry
+     * @param writer The writer of the content
+     * @return true if the entry has been stored
+     */
+    public boolean put(String key, EntryWriter writer) {
+        final String hash = hashKey(key);
+        final File tmpFile = new File(mDirectory,
+                hash + '.' + mTmpCounter.incrementAndGet() + TMP_SUFFIX);
+
+        boolean success = false;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            success = writer.write(out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write cache entry", e);
+            success = false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        if (!success) {
+            deleteFile(tmpFile);
+            return false;
+        }
+
+        synchronized (this) {
+            final File file = new File(mDirectory, hash);
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Cannot commit cache entry " + hash);
+                deleteFile(tmpFile);
+                return false;
+            }
+
+            final long size = file.length();
+            Entry entry = mEntries.get(hash);
+            if (entry == null) {
+                entry = new Entry(hash, size, System.currentTimeMillis());
+                mEntries.put(hash, entry);
+            } else {
+                mSize -= entry.size;
+                entry.size = size;
+                entry.created = System.currentTimeMillis();
+                mRedundantOps++;
+            }
+            mSize += size;
+
+            appendJournal(OP_CLEAN + ' ' + hash + ' ' + entry.size + ' ' + entry.created, true);
+            trimToSize();
+            compactIfNeeded();
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the entry of the provided key
+     */
+    public synchronized void remove(String key) {
+        removeEntry(hashKey(key));
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public synchronized void clear() {
+        deleteContents();
+        mEntries.clear();
+        mSize = 0;
+        rebuildJournal();
+    }
+
+    /**
+     * @return The total size in bytes of the cached files
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private void removeEntry(String hash) {
+        Entry entry = mEntries.remove(hash);
+        if (entry != null) {
+            mSize -= entry.size;
+            deleteFile(new File(mDirectory, hash));
+            appendJournal(OP_REMOVE + ' ' + hash, true);
+            mRedundantOps += 2;
+        }
+    }
+
+    private void trimToSize() {
+        // Iteration order is the access order, least recently used first
+        Iterator<Entry> it = mEntries.values().iterator();
+        List<String> evicted = new ArrayList<>();
+        long size = mSize;
+        while (size > mMaxSize && it.hasNext()) {
+            Entry entry = it.next();
+            evicted.add(entry.hash);
+            size -= entry.size;
+        }
+
+        for (String hash : evicted) {
+            removeEntry(hash);
+        }
+    }
+
+    private boolean readJournal() {
+        final File journal = new File(mDirectory, JOURNAL);
+        if (!journal.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+            if (!JOURNAL_MAGIC.equals(reader.readLine())
+                    || !String.valueOf(JOURNAL_VERSION).equals(reader.readLine())) {
+                Log.w(TAG, "Unknown journal format, discarding the cache");
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                if (parts.length == 4 && OP_CLEAN.equals(parts[0])) {
+                    Entry previous = mEntries.put(parts[1], new Entry(parts[1],
+                            Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    if (previous != null) {
+                        mSize -= previous.size;
+                    }
+                    mSize += Long.parseLong(parts[2]);
+                } else if (parts.length == 2 && OP_READ.equals(parts[0])) {
+                    // Touch the entry to restore the access order
+                    mEntries.get(parts[1]);
+                } else if (parts.length == 2 && OP_REMOVE.equals(parts[0])) {
+                    Entry previous = mEntries.remove(parts[1]);
+                    if (previous != null) {
+                        mSize -= previous.size;
+                    }
+                } else {
+                    // Most likely a line cut by a crash, ignore it
+                    Log.w(TAG, "Ignoring journal line: " + line);
+                }
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Cannot read the journal", e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a compact journal holding only the live entries, in access order
+     */
+    private void rebuildJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignore) {
+            }
+            mJournal = null;
+        }
+
+        final File journal = new File(mDirectory, JOURNAL);
+        final File tmpJournal = new File(mDirectory, JOURNAL_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpJournal), UTF_8));
+            writer.write(JOURNAL_MAGIC + '\n' + JOURNAL_VERSION + '\n');
+            for (Entry entry : mEntries.values()) {
+                writer.write(OP_CLEAN + ' ' + entry.hash + ' ' + entry.size + ' '
+                        + entry.created + '\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmpJournal.renameTo(journal)) {
+                Log.e(TAG, "Cannot replace the journal");
+            }
+
+            mJournal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journal, true), UTF_8));
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the journal", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void appendJournal(String line, boolean flush) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.write(line);
+            mJournal.write('\n');
+            if (flush) {
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the journal", e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mRedundantOps >= COMPACT_THRESHOLD && mRedundantOps >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Deletes the temporary files left by a crash and the files the journal doesn't know about,
+     * and forgets the entries whose file is gone
+     */
+    private void deleteOrphans() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final Set<String> names = new HashSet<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (mEntries.containsKey(name)) {
+                names.add(name);
+            } else if (!JOURNAL.equals(name)) {
+                Log.d(TAG, "Deleting orphan file " + name);
+                deleteFile(file);
+            }
+        }
+
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!names.contains(entry.hash)) {
+                mSize -= entry.size;
+                it.remove();
+            }
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file.getPath());
+        }
+    }
+}
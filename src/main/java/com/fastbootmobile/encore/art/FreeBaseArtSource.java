@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.api.freebase.FreeBaseClient;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Looks up artist pictures on FreeBase
+ */
+public class FreeBaseArtSource implements ArtSource {
+    @Override
+    public String getHost() {
+        return "www.googleapis.com";
+    }
+
+    @Override
+    public String getArtUrl(ArtQuery query) throws RateLimitException, IOException, JSONException {
+        if (query.type != ArtQuery.TYPE_ARTIST) {
+            return null;
+        }
+        return FreeBaseClient.getArtistImageUrl(query.artistName);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.api.gimages.GoogleImagesClient;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Looks up album art and artist pictures on Google Images
+ */
+public class GoogleImagesArtSource implements ArtSource {
+    @Override
+    public String getHost() {
+        return "ajax.googleapis.com";
+    }
+
+    @Override
+    public String getArtUrl(ArtQuery query) throws RateLimitException, IOException, JSONException {
+        if (query.type == ArtQuery.TYPE_ARTIST) {
+            return GoogleImagesClient.getImageUrl("Music Band " + query.artistName);
+        } else if (query.artistName != null && query.albumName != null) {
+            return GoogleImagesClient.getImageUrl("album " + query.artistName + " " + query.albumName);
+        } else if (query.artistName == null) {
+            return GoogleImagesClient.getImageUrl("album " + query.albumName);
+        } else {
+            return GoogleImagesClient.getImageUrl("album from " + query.artistName);
+        }
+    }
+}
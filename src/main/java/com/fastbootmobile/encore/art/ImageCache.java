@@ -29,33 +29,58 @@ import com.fastbootmobile.encore.utils.ImageUtils;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Image cache in the cache directory on internal storage
+ * Image cache in memory, backed by a {@link DiskArtCache} in the cache directory on internal
+ * storage
  */
 @SuppressWarnings("SynchronizeOnNonFinalField")
 public class ImageCache {
     private static final String TAG = "ImageCache";
     private static final ImageCache INSTANCE = new ImageCache();
-    private static final long EXPIRATION_TIME = TimeUnit.DAYS.toMillis(7);
+    private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
 
     private static final boolean USE_MEMORY_CACHE = true;
 
-    private final ArrayList<String> mEntries;
-    private File mCacheDir;
+    /**
+     * Size of the full resolution art in memory keys
+     */
+    private static final int SIZE_FULL = 0;
+    private static final int SIZE_MIN_BUCKET = 16;
+    private static final int SIZE_MAX_BUCKET = 1024;
+
+    /**
+     * Maximum size of the smallest side of the full resolution art on disk
+     */
+    static final int SIZE_DISK_FULL = 800;
+
+    /**
+     * Sizes of the smallest side of the scaled down copies stored on disk along with the full
+     * resolution art (thumbnails, lists and grids), ascending
+     */
+    private static final int[] SIZE_DISK_TIERS = {128, 256, 512};
+
+    /**
+     * Maximum number of memory hits waiting to be applied to the LRU order
+     */
+    private static final int MAX_PENDING_HITS = 128;
+
+    private DiskArtCache mDiskCache;
     private Bitmap mDefaultArt;
 
     private final LruCache<String, RecyclingBitmapDrawable> mMemoryCache;
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private final ConcurrentHashMap<String, RecyclingBitmapDrawable> mMemoryIndex;
+    private final ConcurrentLinkedQueue<String> mPendingHits;
+    private final AtomicInteger mPendingHitsCount;
+    private final ConcurrentHashMap<String, FutureTask<RecyclingBitmapDrawable>> mPendingDecodes;
 
     /**
      * @return The default instance
@@ -68,25 +93,17 @@ public class ImageCache {
      * Default constructor, creates an LRU cache of the specified size
      */
     public ImageCache() {
-        mEntries = new ArrayList<>();
-
         // A third of the max heap memory, or 39MB, whichever is lowest
         final int memoryCacheSize = Math.min(30000,
                 (int) (Runtime.getRuntime().maxMemory() / 1024 / 3));
         Log.d(TAG, "Maximum image cache memory: " + memoryCacheSize + " KB (maxMemory=" + (Runtime.getRuntime().maxMemory() / 1024) + "KB)");
 
-        // We create a set of reusable bitmaps that can be
-        // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-        // of SoftReferences which will actually not be very effective due to the garbage
-        // collector being aggressive clearing Soft/SoftReferences. A better approach
-        // would be to use a strongly references bitmaps, however this would require some
-        // balancing of memory usage between this set and the bitmap LruCache. It would also
-        // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-        // the size would need to be precise, from KitKat onward the size would just need to
-        // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-        mReusableBitmaps =
-                Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-
+        // The LRU cache is locked on every access, including reads. Lookups are made on an
+        // index mirroring its content instead, and hits are applied to the LRU order later on.
+        mMemoryIndex = new ConcurrentHashMap<>();
+        mPendingHits = new ConcurrentLinkedQueue<>();
+        mPendingHitsCount = new AtomicInteger();
+        mPendingDecodes = new ConcurrentHashMap<>();
 
         if (USE_MEMORY_CACHE) {
             mMemoryCache = new LruCache<String, RecyclingBitmapDrawable>(memoryCacheSize) {
@@ -99,15 +116,10 @@ public class ImageCache {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                                             final RecyclingBitmapDrawable oldBitmap, RecyclingBitmapDrawable newBitmap) {
-                    if (newBitmap != null) {
-                        newBitmap.setIsCached(true);
-                    }
+                    mMemoryIndex.remove(key, oldBitmap);
 
+                    // Gives the bitmap to the pool once no longer displayed either
                     oldBitmap.setIsCached(false);
-
-                    synchronized (mReusableBitmaps) {
-                        mReusableBitmaps.add(new SoftReference<>(oldBitmap.getBitmap()));
-                    }
                 }
             };
         } else {
@@ -120,25 +132,27 @@ public class ImageCache {
      * @param ctx A valid context
      */
     public void initialize(Context ctx) {
-        mCacheDir = new File(ctx.getCacheDir(), "albumart");
-        if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
-            Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
-        }
-
-        File[] entries = mCacheDir.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                if (System.currentTimeMillis() - entry.lastModified() > EXPIRATION_TIME
-                        && entry.getName().contains("playlist")) {
-                    // Expire playlist art regularly
-                    if (!entry.delete()) {
-                        // Couldn't delete the art... Let's load it anyway then
-                        mEntries.add(entry.getName());
+        mDiskCache = new DiskArtCache(new File(ctx.getCacheDir(), "art"), DISK_CACHE_SIZE);
+        PaletteCache.getDefault().initialize(mDiskCache);
+
+        // Art used to be stored unindexed, drop it in the background
+        final File legacyDir = new File(ctx.getCacheDir(), "albumart");
+        if (legacyDir.exists()) {
+            new Thread() {
+                public void run() {
+                    File[] files = legacyDir.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            if (!file.delete()) {
+                                Log.w(TAG, "Cannot delete legacy art " + file.getPath());
+                            }
+                        }
+                    }
+                    if (!legacyDir.delete()) {
+                        Log.w(TAG, "Cannot delete legacy art directory");
                     }
-                } else {
-                    mEntries.add(entry.getName());
                 }
-            }
+            }.start();
         }
 
         mDefaultArt = ((BitmapDrawable) ctx.getResources()
@@ -153,21 +167,12 @@ public class ImageCache {
      */
     public void clear() {
         if (USE_MEMORY_CACHE) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.evictAll();
-            }
+            mMemoryCache.evictAll();
+            mMemoryIndex.clear();
         }
 
-        synchronized (mEntries) {
-            mEntries.clear();
-        }
-
-        File[] cacheFiles = mCacheDir.listFiles();
-        for (File file : cacheFiles) {
-            if (!file.delete()) {
-                Log.e(TAG, "Cannot delete " + file.getPath());
-            }
-        }
+        PaletteCache.getDefault().evictAll();
+        mDiskCache.clear();
     }
 
     /**
@@ -176,11 +181,18 @@ public class ImageCache {
     public void evictAll() {
         AlbumArtHelper.clearAlbumArtRequests();
         if (USE_MEMORY_CACHE) {
-            synchronized (mMemoryCache) {
-                mMemoryCache.evictAll();
-            }
+            mMemoryCache.evictAll();
+            mMemoryIndex.clear();
         }
-        mReusableBitmaps.clear();
+        BitmapPool.getDefault().clear();
+    }
+
+    /**
+     * @return The maximum size in bytes of the images kept in memory
+     */
+    public long getMemoryCacheSize() {
+        // The memory cache is sized in kilobytes
+        return USE_MEMORY_CACHE ? mMemoryCache.maxSize() * 1024L : 0;
     }
 
     /**
@@ -190,12 +202,17 @@ public class ImageCache {
      */
     public boolean hasInMemory(final String key) {
         if (USE_MEMORY_CACHE) {
-            RecyclingBitmapDrawable bmp;
-            bmp = mMemoryCache.get(sanitizeKey(key));
-            return bmp != null;
-        } else {
-            return false;
+            final String cleanKey = sanitizeKey(key);
+            if (mMemoryIndex.containsKey(getMemoryKey(cleanKey, SIZE_FULL))) {
+                return true;
+            }
+            for (int size = SIZE_MIN_BUCKET; size <= SIZE_MAX_BUCKET; size *= 2) {
+                if (mMemoryIndex.containsKey(getMemoryKey(cleanKey, size))) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
     /**
@@ -204,14 +221,15 @@ public class ImageCache {
      * @return true if the image is cached on the disk (well, flash storage)
      */
     public boolean hasOnDisk(final String key) {
-        synchronized (mEntries) {
-            return mEntries.contains(sanitizeKey(key));
-        }
+        final String cleanKey = sanitizeKey(key);
+        return mDiskCache.contains(cleanKey);
     }
 
     /**
-     * Returns the image from the cache (either memory or disk)
+     * Returns the image from the cache (either memory or disk). Concurrent requests of an image
+     * that must be decoded from the disk share the same decode.
      * @param key The key of the image to get
+     * @param reqSz The size at which the image will be displayed, or 0 for the full resolution
      * @return A bitmap corresponding to the key, or null if it's not in the cache
      */
     public RecyclingBitmapDrawable get(final Resources res , final String key, final int reqSz) {
@@ -220,89 +238,188 @@ public class ImageCache {
         }
 
         final String cleanKey = sanitizeKey(key);
+        final int size = getSizeBucket(reqSz);
 
-        boolean contains;
-        synchronized (mEntries) {
-            contains = mEntries.contains(cleanKey);
+        RecyclingBitmapDrawable item = getFromMemory(cleanKey, size);
+        if (item != null) {
+            return item;
         }
 
-        if (contains) {
-            RecyclingBitmapDrawable item;
-            synchronized (mMemoryCache) {
-                // Check if we have it in memory
-                item = USE_MEMORY_CACHE ? mMemoryCache.get(cleanKey + '_' + reqSz) : null;
+        final String memoryKey = getMemoryKey(cleanKey, size);
+        final FutureTask<RecyclingBitmapDrawable> decode = new FutureTask<>(
+                new Callable<RecyclingBitmapDrawable>() {
+                    @Override
+                    public RecyclingBitmapDrawable call() {
+                        return decodeFromDisk(res, cleanKey, size);
+                    }
+                });
+
+        FutureTask<RecyclingBitmapDrawable> pending = mPendingDecodes.putIfAbsent(memoryKey, decode);
+        if (pending == null) {
+            pending = decode;
+            try {
+                decode.run();
+            } finally {
+                mPendingDecodes.remove(memoryKey, decode);
             }
+        }
 
-            if (item == null) {
-                final String filePath = mCacheDir.getAbsolutePath() + "/" + cleanKey;
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot decode art for " + cleanKey, e.getCause());
+            return null;
+        }
+    }
 
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(filePath, opts);
+    /**
+     * Looks up an image in memory without locking. The full resolution image is returned if the
+     * requested size isn't available.
+     */
+    private RecyclingBitmapDrawable getFromMemory(final String cleanKey, final int size) {
+        if (!USE_MEMORY_CACHE) {
+            return null;
+        }
 
-                opts.inJustDecodeBounds = false;
-                ImageUtils.addInBitmapOptions(opts, this, reqSz, opts.outWidth, opts.outHeight);
+        String memoryKey = getMemoryKey(cleanKey, size);
+        RecyclingBitmapDrawable item = mMemoryIndex.get(memoryKey);
+        if (item == null && size != SIZE_FULL) {
+            memoryKey = getMemoryKey(cleanKey, SIZE_FULL);
+            item = mMemoryIndex.get(memoryKey);
+        }
 
-                try {
-                    Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
-                    if (bmp != null) {
-                        item = new RecyclingBitmapDrawable(res, bmp);
+        if (item != null) {
+            if (mPendingHitsCount.get() < MAX_PENDING_HITS) {
+                mPendingHitsCount.incrementAndGet();
+                mPendingHits.offer(memoryKey);
+            }
+        }
+        return item;
+    }
 
-                        if (USE_MEMORY_CACHE) {
-                            mMemoryCache.put(cleanKey + '_' + reqSz, item);
-                        }
-                    } else {
-                        mEntries.remove(cleanKey);
-                        File f = new File(filePath);
-                        if (!f.delete()) {
-                            Log.e(TAG, "Cannot delete corrupted art at " + filePath);
-                        }
+    private RecyclingBitmapDrawable decodeFromDisk(final Resources res, final String cleanKey,
+                                                   final int size) {
+        // The image might have been decoded by a request that completed in the meantime
+        RecyclingBitmapDrawable item = getFromMemory(cleanKey, size);
+        if (item != null) {
+            return item;
+        }
+
+        // Decode the smallest copy that is large enough, falling back to the full resolution
+        String diskKey = null;
+        File file = null;
+        if (size != SIZE_FULL) {
+            for (int tier : SIZE_DISK_TIERS) {
+                if (tier >= size) {
+                    diskKey = getTierKey(cleanKey, tier);
+                    file = mDiskCache.get(diskKey);
+                    if (file != null) {
+                        break;
                     }
-                } catch (OutOfMemoryError e) {
-                    Log.e(TAG, "OutOfMemory when decoding input file", e);
-                    return null;
                 }
             }
+        }
+        if (file == null) {
+            diskKey = cleanKey;
+            file = mDiskCache.get(diskKey);
+            if (file == null) {
+                return null;
+            }
+        }
 
-            return item;
-        } else {
+        final String filePath = file.getAbsolutePath();
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, opts);
+
+        opts.inJustDecodeBounds = false;
+        ImageUtils.addInBitmapOptions(opts, BitmapPool.getDefault(), size, opts.outWidth, opts.outHeight);
+
+        try {
+            Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
+            if (bmp != null) {
+                item = new RecyclingBitmapDrawable(res, bmp);
+                item.setCacheKey(cleanKey);
+                putInMemory(getMemoryKey(cleanKey, size), item);
+                PaletteCache.getDefault().preload(cleanKey, bmp);
+            } else {
+                Log.e(TAG, "Removing corrupted art for " + diskKey);
+                mDiskCache.remove(diskKey);
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory when decoding input file", e);
             return null;
         }
+
+        return item;
+    }
+
+    private void putInMemory(final String memoryKey, final RecyclingBitmapDrawable item) {
+        if (USE_MEMORY_CACHE) {
+            // Indexed first, so that an immediate eviction also removes it from the index
+            item.setIsCached(true);
+            mMemoryIndex.put(memoryKey, item);
+            mMemoryCache.put(memoryKey, item);
+            applyPendingHits();
+        }
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
-     * @return Bitmap that case be used for inBitmap
+     * Applies the hits of the lookups to the LRU order of the memory cache
      */
-    public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
+    private void applyPendingHits() {
+        String memoryKey;
+        while ((memoryKey = mPendingHits.poll()) != null) {
+            mPendingHitsCount.decrementAndGet();
+            mMemoryCache.get(memoryKey);
+        }
+    }
 
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+    /**
+     * Removes all the resolutions of an image from memory
+     */
+    private void removeFromMemory(final String cleanKey) {
+        if (USE_MEMORY_CACHE) {
+            mMemoryCache.remove(getMemoryKey(cleanKey, SIZE_FULL));
+            for (int size = SIZE_MIN_BUCKET; size <= SIZE_MAX_BUCKET; size *= 2) {
+                mMemoryCache.remove(getMemoryKey(cleanKey, size));
+            }
+        }
+    }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (ImageUtils.canUseForInBitmap(item, options)) {
-                            bitmap = item;
+    /**
+     * Rounds a requested size up to a power of two, so that close sizes share the same decoded
+     * image. Decoding uses power of two sample sizes, so the image is as large either way.
+     * @return The size bucket, or {@link #SIZE_FULL} for sizes above the largest bucket
+     */
+    private static int getSizeBucket(final int reqSz) {
+        if (reqSz <= 0 || reqSz > SIZE_MAX_BUCKET) {
+            return SIZE_FULL;
+        }
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
+        int size = SIZE_MIN_BUCKET;
+        while (size < reqSz) {
+            size *= 2;
         }
+        return size;
+    }
 
-        return bitmap;
+    /**
+     * @return The disk cache key of the scaled down copy of an image
+     */
+    private static String getTierKey(final String cleanKey, final int tier) {
+        return cleanKey + '@' + tier;
+    }
+
+    /**
+     * @return The memory cache key of an image at the provided size bucket
+     */
+    private static String getMemoryKey(final String cleanKey, final int size) {
+        return cleanKey + '@' + size;
     }
 
     /**
@@ -353,44 +470,71 @@ public class ImageCache {
             isDefaultArt = true;
         }
 
-        if (USE_MEMORY_CACHE) {
-            mMemoryCache.put(cleanKey, bmp);
-        }
+        // Resolutions decoded from the previous image are now stale
+        removeFromMemory(cleanKey);
+        putInMemory(getMemoryKey(cleanKey, SIZE_FULL), bmp);
 
         if (!isDefaultArt) {
-            try {
-                FileOutputStream out = new FileOutputStream(mCacheDir.getAbsolutePath() + "/" + cleanKey);
-                Bitmap bitmap = bmp.getBitmap();
+            bmp.setCacheKey(cleanKey);
+            final Bitmap source = bmp.getBitmap();
+            final int smallestSide = Math.min(source.getWidth(), source.getHeight());
+
+            mDiskCache.put(cleanKey, new ScaledEntryWriter(source, SIZE_DISK_FULL, asPNG));
+
+            // Store the scaled down copies, and drop those of the previous art that may be
+            // larger than this one
+            for (int tier : SIZE_DISK_TIERS) {
+                final String tierKey = getTierKey(cleanKey, tier);
+                if (tier < smallestSide) {
+                    mDiskCache.put(tierKey, new ScaledEntryWriter(source, tier, asPNG));
+                } else {
+                    mDiskCache.remove(tierKey);
+                }
+            }
 
-                boolean shouldRecycle = false;
-                final float maxSize = 800;
+            PaletteCache.getDefault().generate(cleanKey, source);
+        }
+    }
 
-                if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
-                    float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
-                            bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
-                    final int sWidth = (int) (bitmap.getWidth() / ratio);
-                    final int sHeight = (int) (bitmap.getHeight() / ratio);
+    /**
+     * Writes a bitmap, scaled down so that its smallest side is at most the provided size
+     */
+    private static class ScaledEntryWriter implements DiskArtCache.EntryWriter {
+        private final Bitmap mSource;
+        private final float mMaxSize;
+        private final boolean mAsPNG;
+
+        ScaledEntryWriter(Bitmap source, int maxSize, boolean asPNG) {
+            mSource = source;
+            mMaxSize = maxSize;
+            mAsPNG = asPNG;
+        }
 
-                    bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
-                    shouldRecycle = true;
+        @Override
+        public boolean write(OutputStream out) throws IOException {
+            Bitmap bitmap = mSource;
+            boolean shouldRecycle = false;
 
-                    Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
-                }
+            if (bitmap.getWidth() > mMaxSize && bitmap.getHeight() > mMaxSize) {
+                float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
+                        bitmap.getWidth() / mMaxSize : bitmap.getHeight() / mMaxSize;
+                final int sWidth = (int) (bitmap.getWidth() / ratio);
+                final int sHeight = (int) (bitmap.getHeight() / ratio);
 
-                bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
-                out.close();
+                bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
+                shouldRecycle = true;
 
-                if (shouldRecycle) {
-                    // Scaled image will be used on reload
-                    bitmap.recycle();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write the file to cache", e);
+                Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
             }
 
-            synchronized (mEntries) {
-                mEntries.add(cleanKey);
+            final boolean result = bitmap.compress(mAsPNG ? Bitmap.CompressFormat.PNG
+                    : Bitmap.CompressFormat.JPEG, 90, out);
+
+            if (shouldRecycle) {
+                // Scaled image will be used on reload
+                bitmap.recycle();
             }
+            return result;
         }
     }
 
@@ -398,7 +542,7 @@ public class ImageCache {
      * Sanitizes the key to remove out unwanted characters
      * @return A sanitized copy of the key
      */
-    private String sanitizeKey(String key) {
+    static String sanitizeKey(String key) {
         return key.replaceAll("\\W", "_");
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.api.musicbrainz.AlbumInfo;
+import com.fastbootmobile.encore.api.musicbrainz.MusicBrainzClient;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Looks up album art on MusicBrainz and the Cover Art Archive
+ */
+public class MusicBrainzArtSource implements ArtSource {
+    @Override
+    public String getHost() {
+        return "musicbrainz.org";
+    }
+
+    @Override
+    public String getArtUrl(ArtQuery query)
+            throws RateLimitException, IOException, JSONException {
+        if (query.type != ArtQuery.TYPE_ALBUM) {
+            return null;
+        }
+
+        AlbumInfo[] albums = MusicBrainzClient.getAlbum(query.artistName, query.albumName);
+        if (albums == null || albums.length == 0) {
+            return null;
+        }
+
+        // Try to find if we have an album that has the same track count, otherwise use
+        // the first one
+        AlbumInfo selection = albums[0];
+        for (AlbumInfo albumInfo : albums) {
+            if (albumInfo.track_count == query.trackCount) {
+                selection = albumInfo;
+                break;
+            }
+        }
+
+        return MusicBrainzClient.getAlbumArtUrl(selection.id);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.art;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the queries no source had art for, so that they aren't looked up again on every
+ * display until their entry expires. Entries are kept in memory and persisted in an append-only
+ * log, so they survive restarts of the app without rewriting every entry on each miss. The log
+ * is compacted when it's loaded and once it holds mostly dead records.
+ */
+public class NegativeArtCache {
+    private static final String TAG = "NegativeArtCache";
+
+    private static final String FILE_NAME = "art_negative_cache.bin";
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * The log is compacted once it holds more than this many records, and more than twice the
+     * number of live entries
+     */
+    private static final int COMPACT_MIN_OPS = 256;
+
+    // Entries used to be stored in SharedPreferences, which rewrote them all on every change
+    private static final String LEGACY_PREFS = "art_negative_cache";
+
+    private final Map<String, Long> mExpirations = new ConcurrentHashMap<>();
+    private File mFile;
+    private int mOps;
+
+    /**
+     * Loads the persisted entries, dropping the expired ones
+     */
+    public synchronized void initialize(Context ctx) {
+        mFile = new File(ctx.getCacheDir(), FILE_NAME);
+
+        final File legacyPrefs = new File(ctx.getApplicationInfo().dataDir,
+                "shared_prefs/" + LEGACY_PREFS + ".xml");
+        if (legacyPrefs.exists() && !legacyPrefs.delete()) {
+            Log.w(TAG, "Cannot delete the legacy negative cache");
+        }
+
+        if (load()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return true if the query is known to have no art
+     */
+    public boolean contains(String key) {
+        Long expiration = mExpirations.get(key);
+        if (expiration == null) {
+            return false;
+        } else if (expiration > System.currentTimeMillis()) {
+            return true;
+        } else {
+            // The log drops it on the next compaction
+            mExpirations.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers that the query has no art
+     * @param key The key of the query
+     * @param ttl The time in milliseconds after which the query may be looked up again
+     */
+    public synchronized void put(String key, long ttl) {
+        final long expiration = System.currentTimeMillis() + ttl;
+        mExpirations.put(key, expiration);
+        append(OP_PUT, key, expiration);
+    }
+
+    /**
+     * Forgets about a query
+     */
+    public synchronized void remove(String key) {
+        if (mExpirations.remove(key) != null) {
+            append(OP_REMOVE, key, 0);
+        }
+    }
+
+    /**
+     * Forgets about all the queries
+     */
+    public synchronized void clear() {
+        mExpirations.clear();
+        mOps = 0;
+        if (mFile != null && mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Cannot delete " + mFile.getPath());
+        }
+    }
+
+    /**
+     * Replays the log, keeping the entries that haven't expired
+     * @return true if the log holds records that a compaction would drop
+     */
+    private boolean load() {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        final long now = System.currentTimeMillis();
+        boolean dirty = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                final byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                final String key = in.readUTF();
+                if (op == OP_PUT) {
+                    final long expiration = in.readLong();
+                    if (expiration > now) {
+                        mExpirations.put(key, expiration);
+                    } else {
+                        mExpirations.remove(key);
+                    }
+                } else if (op == OP_REMOVE) {
+                    mExpirations.remove(key);
+                } else {
+                    throw new IOException("Unknown operation " + op);
+                }
+                ++mOps;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            Log.w(TAG, "Dropping a partial record of the negative cache");
+            dirty = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read the negative cache, starting over", e);
+            mExpirations.clear();
+            dirty = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        return dirty || mOps != mExpirations.size();
+    }
+
+    private void append(byte op, String key, long expiration) {
+        if (mFile == null) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+            writeOp(out, op, key, expiration);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the negative cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        ++mOps;
+        if (mOps > COMPACT_MIN_OPS && mOps > 2 * mExpirations.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries
+     */
+    private void compact() {
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(mExpirations.entrySet());
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        int ops = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            for (Map.Entry<String, Long> entry : entries) {
+                if (entry.getValue() > now) {
+                    writeOp(out, OP_PUT, entry.getKey(), entry.getValue());
+                    ++ops;
+                }
+            }
+            out.close();
+            out = null;
+
+            if (tmpFile.renameTo(mFile)) {
+                mOps = ops;
+            } else {
+                Log.e(TAG, "Cannot replace the negative cache");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot compact the negative cache", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeOp(DataOutputStream out, byte op, String key, long expiration)
+            throws IOException {
+        out.writeByte(op);
+        out.writeUTF(key);
+        if (op == OP_PUT) {
+            out.writeLong(expiration);
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
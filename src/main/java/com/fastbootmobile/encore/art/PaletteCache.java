@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v7.graphics.Palette;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of the palettes of the art, keyed like the {@link ImageCache}. Palettes are extracted
+ * once from a downsampled copy of the art when it's stored, and kept in memory and on disk
+ * alongside the art, so that screens can read the colors without scanning any pixels.
+ */
+public class PaletteCache {
+    private static final String TAG = "PaletteCache";
+    private static final PaletteCache INSTANCE = new PaletteCache();
+
+    private static final int MEMORY_CACHE_SIZE = 512;
+
+    /**
+     * Art is downsampled to about this many pixels before being scanned, which is what Palette
+     * would scale it to anyway
+     */
+    private static final int SAMPLE_AREA = 112 * 112;
+
+    /**
+     * Extractions can be dropped from a full art lane, after which the art may be asked again
+     */
+    private static final long PENDING_TIMEOUT = 10000;
+
+    public interface PaletteListener {
+        /**
+         * Called on the main thread once the palette of the art is available
+         */
+        void onPaletteLoaded(ArtPalette palette);
+    }
+
+    private static class PendingPalette {
+        final long startTime = SystemClock.uptimeMillis();
+        final List<PaletteListener> listeners = new ArrayList<>(1);
+    }
+
+    private final LruCache<String, ArtPalette> mMemoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+    // Art that isn't in the image cache, like the default art, keyed by bitmap
+    private final Map<Bitmap, ArtPalette> mKeylessPalettes = new WeakHashMap<>();
+    // Extractions in progress, by sanitized key or by bitmap for keyless art
+    private final Map<Object, PendingPalette> mPending = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Paint mSamplePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private DiskArtCache mDiskCache;
+
+    /**
+     * @return The default instance
+     */
+    public static PaletteCache getDefault() {
+        return INSTANCE;
+    }
+
+    private PaletteCache() {
+    }
+
+    /**
+     * Stores the palettes in the provided disk cache, alongside the art
+     */
+    void initialize(DiskArtCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Returns the palette of the art if it's in memory, without touching the disk nor the
+     * pixels, so that it can be called from the UI thread. On a miss, the palette is loaded in
+     * the background for the next time.
+     * @param drawable The art, as given by the {@link ImageCache}
+     * @return The palette, or null if it isn't in memory
+     */
+    public ArtPalette getCached(BitmapDrawable drawable) {
+        final String key = getKey(drawable);
+        final String cleanKey = key != null ? ImageCache.sanitizeKey(key) : null;
+        ArtPalette palette = peek(cleanKey, drawable.getBitmap());
+
+        if (palette == null) {
+            request(cleanKey, drawable.getBitmap(), getPinnable(drawable), null);
+        }
+        return palette;
+    }
+
+    /**
+     * Gets the palette of the art, extracting it in the background if it has never been. The
+     * listener is called immediately if the palette is in memory.
+     * @param drawable The art, as given by the {@link ImageCache}
+     * @param listener The listener to call with the palette
+     */
+    public void get(BitmapDrawable drawable, PaletteListener listener) {
+        final String key = getKey(drawable);
+        final String cleanKey = key != null ? ImageCache.sanitizeKey(key) : null;
+        ArtPalette palette = peek(cleanKey, drawable.getBitmap());
+
+        if (palette != null) {
+            listener.onPaletteLoaded(palette);
+        } else {
+            request(cleanKey, drawable.getBitmap(), getPinnable(drawable), listener);
+        }
+    }
+
+    /**
+     * Gets the palette of the art, extracting it in the background if it has never been. The
+     * listener is called immediately if the palette is in memory.
+     * @param key The key of the art in the {@link ImageCache}, or null if it isn't cached
+     * @param bitmap The art, which must not be recycled until the listener is called
+     * @param listener The listener to call with the palette
+     */
+    public void get(String key, Bitmap bitmap, PaletteListener listener) {
+        final String cleanKey = key != null ? ImageCache.sanitizeKey(key) : null;
+        ArtPalette palette = peek(cleanKey, bitmap);
+
+        if (palette != null) {
+            listener.onPaletteLoaded(palette);
+        } else {
+            request(cleanKey, bitmap, null, listener);
+        }
+    }
+
+    private ArtPalette peek(String cleanKey, Bitmap bitmap) {
+        if (cleanKey != null) {
+            return mMemoryCache.get(cleanKey);
+        } else if (bitmap != null) {
+            synchronized (mKeylessPalettes) {
+                return mKeylessPalettes.get(bitmap);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads or extracts the palette of the art in the background, once for all the callers
+     * asking for the same art meanwhile
+     * @param pinned The cached drawable of the art, kept from being pooled until it's sampled
+     * @param listener The listener to call with the palette, or null
+     */
+    private void request(final String cleanKey, final Bitmap bitmap,
+                         final RecyclingBitmapDrawable pinned, PaletteListener listener) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        final Object pendingKey = cleanKey != null ? cleanKey : bitmap;
+        final PendingPalette pending;
+        synchronized (mPending) {
+            PendingPalette current = mPending.get(pendingKey);
+            if (current != null
+                    && SystemClock.uptimeMillis() - current.startTime < PENDING_TIMEOUT) {
+                if (listener != null) {
+                    current.listeners.add(listener);
+                }
+                return;
+            }
+
+            pending = new PendingPalette();
+            if (listener != null) {
+                pending.listeners.add(listener);
+            }
+            mPending.put(pendingKey, pending);
+        }
+
+        if (pinned != null) {
+            pinned.setIsDisplayed(true);
+        }
+
+        ArtScheduler.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ArtPalette palette = cleanKey != null ? load(cleanKey) : null;
+                if (palette == null && !bitmap.isRecycled()) {
+                    palette = extract(cleanKey, downsample(bitmap));
+                    if (cleanKey == null) {
+                        synchronized (mKeylessPalettes) {
+                            mKeylessPalettes.put(bitmap, palette);
+                        }
+                    }
+                }
+
+                if (pinned != null) {
+                    pinned.setIsDisplayed(false);
+                }
+
+                final List<PaletteListener> listeners;
+                synchronized (mPending) {
+                    if (mPending.get(pendingKey) == pending) {
+                        mPending.remove(pendingKey);
+                    }
+                    listeners = new ArrayList<>(pending.listeners);
+                }
+
+                final ArtPalette result = palette;
+                if (result != null && !listeners.isEmpty()) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (PaletteListener listener : listeners) {
+                                listener.onPaletteLoaded(result);
+                            }
+                        }
+                    });
+                }
+            }
+        }, ArtScheduler.PRIORITY_VISIBLE, false);
+    }
+
+    /**
+     * Extracts the palette of new art in the background
+     * @param cleanKey The sanitized key of the art
+     * @param bitmap The art
+     */
+    void generate(final String cleanKey, Bitmap bitmap) {
+        mMemoryCache.remove(cleanKey);
+
+        final Bitmap sample = downsample(bitmap);
+        ArtScheduler.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                extract(cleanKey, sample);
+            }
+        }, ArtScheduler.PRIORITY_BACKGROUND, false);
+    }
+
+    /**
+     * Makes sure the palette of art decoded from the disk is in memory. Called from the art
+     * threads.
+     * @param cleanKey The sanitized key of the art
+     * @param bitmap The art
+     */
+    void preload(String cleanKey, Bitmap bitmap) {
+        if (load(cleanKey) == null) {
+            // Art stored before palettes were
+            extract(cleanKey, downsample(bitmap));
+        }
+    }
+
+    /**
+     * Drops the palettes from memory. Those on disk go with the disk cache.
+     */
+    void evictAll() {
+        mMemoryCache.evictAll();
+        synchronized (mKeylessPalettes) {
+            mKeylessPalettes.clear();
+        }
+    }
+
+    private static RecyclingBitmapDrawable getPinnable(BitmapDrawable drawable) {
+        return drawable instanceof RecyclingBitmapDrawable ?
+                (RecyclingBitmapDrawable) drawable : null;
+    }
+
+    private static String getKey(BitmapDrawable drawable) {
+        return drawable instanceof RecyclingBitmapDrawable ?
+                ((RecyclingBitmapDrawable) drawable).getCacheKey() : null;
+    }
+
+    private static String getDiskKey(String cleanKey) {
+        return cleanKey + "@palette";
+    }
+
+    /**
+     * Looks up a palette in memory, then on disk
+     */
+    private ArtPalette load(String cleanKey) {
+        ArtPalette palette = mMemoryCache.get(cleanKey);
+        if (palette != null || mDiskCache == null) {
+            return palette;
+        }
+
+        File file = mDiskCache.get(getDiskKey(cleanKey));
+        if (file == null) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            palette = ArtPalette.readFrom(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read palette of " + cleanKey, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        if (palette != null) {
+            mMemoryCache.put(cleanKey, palette);
+        } else {
+            mDiskCache.remove(getDiskKey(cleanKey));
+        }
+        return palette;
+    }
+
+    /**
+     * Extracts the palette of a sample, stores it if it has a key, and gives the sample back to
+     * the pool
+     */
+    private ArtPalette extract(String cleanKey, Bitmap sample) {
+        final ArtPalette palette = ArtPalette.from(Palette.from(sample).generate());
+        BitmapPool.getDefault().put(sample);
+
+        if (cleanKey != null) {
+            mMemoryCache.put(cleanKey, palette);
+            if (mDiskCache != null) {
+                mDiskCache.put(getDiskKey(cleanKey), new DiskArtCache.EntryWriter() {
+                    @Override
+                    public boolean write(OutputStream out) throws IOException {
+                        DataOutputStream dataOut = new DataOutputStream(out);
+                        palette.writeTo(dataOut);
+                        dataOut.flush();
+                        return true;
+                    }
+                });
+            }
+        }
+        return palette;
+    }
+
+    /**
+     * @return A copy of the bitmap scaled down to about {@link #SAMPLE_AREA} pixels, from the
+     * {@link BitmapPool}
+     */
+    private Bitmap downsample(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final double scale = Math.min(1.0, Math.sqrt((double) SAMPLE_AREA / (width * height)));
+        final int sampleWidth = Math.max(1, (int) (width * scale));
+        final int sampleHeight = Math.max(1, (int) (height * scale));
+
+        Bitmap sample = BitmapPool.getDefault().get(sampleWidth, sampleHeight,
+                Bitmap.Config.ARGB_8888);
+        new Canvas(sample).drawBitmap(bitmap, new Rect(0, 0, width, height),
+                new Rect(0, 0, sampleWidth, sampleHeight), mSamplePaint);
+        return sample;
+    }
+}
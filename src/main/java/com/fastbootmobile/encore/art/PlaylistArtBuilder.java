@@ -22,7 +22,6 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -37,85 +36,90 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Class creating a composite image for playlist cover art
+ * Class creating a composite image for playlist cover art. The art of each song is scaled down
+ * to its tile as soon as it arrives, and the composite is drawn once from the tiles when they
+ * are all there (or when the watchdog gives up waiting).
  */
 public class PlaylistArtBuilder {
     private static final String TAG = "PlaylistArtBuilder";
     private static final boolean DEBUG = BuildConfig.DEBUG;
 
+    /**
+     * Maximum number of songs making the composite
+     */
+    public static final int MAX_SOURCES = 4;
+
+    private static final int COMPOSITE_SIZE = 600;
+
     private Bitmap mPlaylistComposite;
-    private final List<RecyclingBitmapDrawable> mPlaylistSource = new ArrayList<>();
-    private Paint mPlaylistPaint;
+    private Bitmap[] mTiles;
+    private int mNumTiles;
+    private final Paint mPlaylistPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
     private List<AlbumArtTask> mCompositeTasks;
     private List<BoundEntity> mCompositeRequests;
     private int mNumComposite;
     private Handler mHandler;
-    private Handler mMainHandler;
     private HandlerThread mHandlerThread;
     private IArtCallback mCallback;
-    private boolean mDone;
+    private volatile boolean mDone;
 
     private Runnable mTimeoutWatchdog = new Runnable() {
         @Override
         public void run() {
-            if (DEBUG) Log.w(TAG, "Watchdog kicking " + mPlaylistSource.size() + " images");
-
-            if (mPlaylistComposite != null && mPlaylistSource.size() > 0) {
-                try {
-                    mCallback.onArtLoaded(mPlaylistComposite.copy(Bitmap.Config.ARGB_8888, false));
-                } catch (RemoteException ignored) {
-                }
-            }
-        }
-    };
+            if (DEBUG) Log.w(TAG, "Watchdog kicking " + mNumTiles + " images");
 
-    private Runnable mUpdatePlaylistCompositeRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (mPlaylistComposite == null || !mPlaylistComposite.isRecycled() && !mDone) {
+            if (!mDone && mNumTiles > 0) {
                 makePlaylistComposite();
+            } else if (!mDone) {
+                freeMemory();
             }
         }
     };
 
     private AlbumArtHelper.AlbumArtListener mCompositeListener = new AlbumArtHelper.AlbumArtListener() {
         @Override
-        public void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request) {
-            if (!mCompositeRequests.contains(request) || mDone) {
+        public void onArtLoaded(final RecyclingBitmapDrawable output, BoundEntity request) {
+            final int index = mCompositeRequests.indexOf(request);
+            if (index < 0 || mDone || output == null) {
                 return;
             }
 
-            if (output != null) {
-                synchronized (mPlaylistSource) {
-                    mPlaylistSource.add(output);
-                    if (mPlaylistSource.size() < mNumComposite) {
-                        mHandler.removeCallbacks(mUpdatePlaylistCompositeRunnable);
-                        mHandler.postDelayed(mUpdatePlaylistCompositeRunnable, 200);
-                    } else {
-                        mHandler.removeCallbacks(mUpdatePlaylistCompositeRunnable);
-                        mHandler.post(mUpdatePlaylistCompositeRunnable);
-                    }
+            // Keep the bitmap from being reused until it's been scaled down
+            output.setIsDisplayed(true);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addTile(index, output);
+                    output.setIsDisplayed(false);
                 }
-            }
+            });
         }
     };
 
     public PlaylistArtBuilder() {
-        mMainHandler = new Handler(Looper.getMainLooper());
-
         mHandlerThread = new HandlerThread("PlaylistArtBuilder");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
     }
 
     public void freeMemory() {
-        if (mPlaylistComposite != null) {
-            mPlaylistComposite.recycle();
-            mPlaylistComposite = null;
-        }
-        synchronized (mPlaylistSource) {
-            mPlaylistSource.clear();
-        }
+        mDone = true;
+        mHandler.removeCallbacks(mTimeoutWatchdog);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Tiles and composite are only drawn on this thread, so they can be reused
+                // once no update is running
+                releaseTiles();
+                if (mPlaylistComposite != null) {
+                    BitmapPool.getDefault().put(mPlaylistComposite);
+                    mPlaylistComposite = null;
+                }
+                mHandlerThread.quit();
+            }
+        });
         if (mCompositeTasks != null) {
             for (AlbumArtTask task : mCompositeTasks) {
                 task.cancel(true);
@@ -123,81 +127,158 @@ public class PlaylistArtBuilder {
             mCompositeTasks.clear();
             mCompositeTasks = null;
         }
-        mHandlerThread.interrupt();
     }
 
-
-    private void makePlaylistComposite() {
-        if (mPlaylistComposite == null) {
-            mPlaylistComposite = Bitmap.createBitmap(600, 600, Bitmap.Config.ARGB_8888);
+    /**
+     * Returns the key identifying the composite art of a playlist. The key changes only when the
+     * songs making the composite change.
+     * @param playlist The playlist
+     * @return The key of the composite art
+     */
+    public static String getCompositeKey(Playlist playlist) {
+        // Only the song references are used: this is called from the UI thread, so it must not
+        // look songs up, and the key must not change once the songs get loaded
+        final List<String> songs = getSourceRefs(playlist);
+
+        int hash = songs.size();
+        for (String songRef : songs) {
+            hash = 31 * hash + (songRef != null ? songRef.hashCode() : 0);
         }
 
-        if (mPlaylistPaint == null) {
-            mPlaylistPaint = new Paint();
-        }
+        return playlist.getRef() + "#" + Integer.toHexString(hash);
+    }
 
-        Canvas canvas = new Canvas(mPlaylistComposite);
-        final int numImages = mPlaylistSource.size();
-        final int compositeWidth = mPlaylistComposite.getWidth();
-        final int compositeHeight = mPlaylistComposite.getHeight();
-
-        if (numImages == 1) {
-            // If we expected only one image, return this result
-            if (mNumComposite == 1) {
-                mDone = true;
-                mHandler.removeCallbacks(mTimeoutWatchdog);
-                try {
-                    mCallback.onArtLoaded(mPlaylistSource.get(0).getBitmap());
-                } catch (RemoteException ignored) {
-                }
-                return;
-            }
-        } else if (numImages == 2 || numImages == 3) {
-            int i = 0;
-            synchronized (mPlaylistSource) {
-                for (RecyclingBitmapDrawable item : mPlaylistSource) {
-                    Bitmap itemBmp = item.getBitmap();
-
-                    Rect src = new Rect(0, 0, itemBmp.getWidth(), itemBmp.getHeight());
-                    Rect dst = new Rect(i * compositeWidth / numImages,
-                            0,
-                            i * compositeWidth / numImages + compositeWidth,
-                            compositeHeight);
-
-                    canvas.drawBitmap(itemBmp, src, dst, mPlaylistPaint);
-                    ++i;
+    /**
+     * Returns the references of the songs making the composite: the first distinct songs of the
+     * playlist, up to {@link #MAX_SOURCES}. A song appearing twice would never fill its second
+     * tile, as its art is only delivered once.
+     */
+    private static List<String> getSourceRefs(Playlist playlist) {
+        final List<String> refs = new ArrayList<>(MAX_SOURCES);
+        for (String songRef : playlist.songsList()) {
+            if (!refs.contains(songRef)) {
+                refs.add(songRef);
+                if (refs.size() == MAX_SOURCES) {
+                    break;
                 }
             }
+        }
+        return refs;
+    }
+
+    /**
+     * Computes the bounds of the tile at the provided index in a composite of numTiles tiles
+     */
+    private static void getTileBounds(int index, int numTiles, Rect bounds) {
+        if (numTiles == 1) {
+            bounds.set(0, 0, COMPOSITE_SIZE, COMPOSITE_SIZE);
+        } else if (numTiles < 4) {
+            // Vertical strips
+            bounds.set(index * COMPOSITE_SIZE / numTiles, 0,
+                    (index + 1) * COMPOSITE_SIZE / numTiles, COMPOSITE_SIZE);
         } else {
-            for (int i = 0; i < 4; ++i) {
-                if (mPlaylistSource.size() > i) {
-                    RecyclingBitmapDrawable item = mPlaylistSource.get(i);
-                    Bitmap itemBmp = item.getBitmap();
+            // 2x2 grid
+            final int row = index / 2;
+            final int col = index % 2;
+            bounds.set(col * COMPOSITE_SIZE / 2, row * COMPOSITE_SIZE / 2,
+                    (col + 1) * COMPOSITE_SIZE / 2, (row + 1) * COMPOSITE_SIZE / 2);
+        }
+    }
 
-                    int row = (int) Math.floor(i / 2);
-                    int col = (i % 2);
+    private void addTile(int index, RecyclingBitmapDrawable source) {
+        final Bitmap sourceBmp = source.getBitmap();
+        if (mDone || mTiles[index] != null || sourceBmp == null || sourceBmp.isRecycled()) {
+            return;
+        }
 
-                    Rect src = new Rect(0, 0, itemBmp.getWidth(), itemBmp.getHeight());
-                    Rect dst = new Rect(col * compositeWidth / 2,
-                            row * compositeHeight / 2,
-                            col * compositeWidth / 2 + compositeWidth / 2,
-                            row * compositeHeight / 2 + compositeHeight / 2);
+        // Scale the art down to the tile, cropping it to the tile aspect ratio
+        getTileBounds(index, mNumComposite, mDstRect);
+        final int tileWidth = mDstRect.width();
+        final int tileHeight = mDstRect.height();
+        final int srcWidth = sourceBmp.getWidth();
+        final int srcHeight = sourceBmp.getHeight();
 
-                    canvas.drawBitmap(itemBmp, src, dst, mPlaylistPaint);
-                }
-            }
+        if (srcWidth * tileHeight > srcHeight * tileWidth) {
+            final int cropWidth = srcHeight * tileWidth / tileHeight;
+            mSrcRect.set((srcWidth - cropWidth) / 2, 0, (srcWidth + cropWidth) / 2, srcHeight);
+        } else {
+            final int cropHeight = srcWidth * tileHeight / tileWidth;
+            mSrcRect.set(0, (srcHeight - cropHeight) / 2, srcWidth, (srcHeight + cropHeight) / 2);
         }
 
-        if (DEBUG) Log.d(TAG, "Got image " + numImages + "/" + mNumComposite);
+        Bitmap tile = BitmapPool.getDefault().get(tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+        mDstRect.set(0, 0, tileWidth, tileHeight);
+        new Canvas(tile).drawBitmap(sourceBmp, mSrcRect, mDstRect, mPlaylistPaint);
+
+        mTiles[index] = tile;
+        mNumTiles++;
+
+        if (DEBUG) Log.d(TAG, "Got image " + mNumTiles + "/" + mNumComposite);
+
+        if (mNumTiles == mNumComposite) {
+            makePlaylistComposite();
+        }
+    }
 
-        if (numImages == mNumComposite) {
-            mDone = true;
-            mHandler.removeCallbacks(mTimeoutWatchdog);
+    private void makePlaylistComposite() {
+        mDone = true;
+        mHandler.removeCallbacks(mTimeoutWatchdog);
+
+        if (mNumComposite == 1) {
+            // The only tile is the composite
+            final Bitmap composite = mTiles[0];
+            mTiles[0] = null;
+            mNumTiles = 0;
             try {
-                mCallback.onArtLoaded(mPlaylistComposite.copy(Bitmap.Config.ARGB_8888, false));
+                mCallback.onArtLoaded(composite);
             } catch (RemoteException ignored) {
             }
+            return;
+        }
+
+        mPlaylistComposite = BitmapPool.getDefault().get(COMPOSITE_SIZE, COMPOSITE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(mPlaylistComposite);
+
+        if (mNumTiles == mNumComposite) {
+            // The tiles are already at their final size
+            for (int i = 0; i < mNumComposite; ++i) {
+                getTileBounds(i, mNumComposite, mDstRect);
+                canvas.drawBitmap(mTiles[i], mDstRect.left, mDstRect.top, null);
+            }
+        } else {
+            // Some art never came, spread the tiles we have over the composite
+            int slot = 0;
+            for (Bitmap tile : mTiles) {
+                if (tile != null) {
+                    getTileBounds(slot++, mNumTiles, mDstRect);
+                    mSrcRect.set(0, 0, tile.getWidth(), tile.getHeight());
+                    canvas.drawBitmap(tile, mSrcRect, mDstRect, mPlaylistPaint);
+                }
+            }
+        }
+
+        releaseTiles();
+
+        // The composite now belongs to the callback
+        final Bitmap composite = mPlaylistComposite;
+        mPlaylistComposite = null;
+        try {
+            mCallback.onArtLoaded(composite);
+        } catch (RemoteException ignored) {
+        }
+    }
+
+    private void releaseTiles() {
+        if (mTiles != null) {
+            for (int i = 0; i < mTiles.length; ++i) {
+                if (mTiles[i] != null) {
+                    BitmapPool.getDefault().put(mTiles[i]);
+                    mTiles[i] = null;
+                }
+            }
         }
+        mNumTiles = 0;
     }
 
     public void start(Resources res, Playlist playlist, IArtCallback callback) {
@@ -205,11 +286,12 @@ public class PlaylistArtBuilder {
 
         if (playlist.getSongsCount() == 0) {
             Log.d(TAG, "Playlist " + playlist.getName() + " has no tracks, skipping art building");
-            mDone = true;
             try {
                 callback.onArtLoaded(null);
             } catch (RemoteException ignore) {
             }
+            // Callers drop null art without freeing the builder, so stop our thread here
+            freeMemory();
             return;
         }
 
@@ -227,17 +309,22 @@ public class PlaylistArtBuilder {
         }
 
         // Load 4 songs if possible and compose them into one picture
-        mPlaylistSource.clear();
+        final List<String> sourceRefs = getSourceRefs(playlist);
         mCompositeRequests = new ArrayList<>();
-        mNumComposite = Math.min(4, playlist.getSongsCount());
+        mNumComposite = sourceRefs.size();
+        mTiles = new Bitmap[mNumComposite];
+        mNumTiles = 0;
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
 
-        for (int i = 0; i < mNumComposite; ++i) {
-            String entry = playlist.songsList().get(i);
+        // Request the art at the size of its tile, so that smaller copies are decoded
+        final int tileSize = mNumComposite == 4 ? COMPOSITE_SIZE / 2 : COMPOSITE_SIZE;
+
+        for (String entry : sourceRefs) {
             Song song = aggregator.retrieveSong(entry, playlist.getProvider());
 
             mCompositeRequests.add(song);
-            mCompositeTasks.add(AlbumArtHelper.retrieveAlbumArt(res, mCompositeListener, song, 600, false));
+            mCompositeTasks.add(AlbumArtHelper.retrieveAlbumArt(res, mCompositeListener, song,
+                    tileSize, false));
         }
 
         mHandler.postDelayed(mTimeoutWatchdog, 8000);
@@ -24,8 +24,8 @@ import com.fastbootmobile.encore.app.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, this drawable's bitmap is given to
+ * the {@link BitmapPool} to be reused.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
     static final String TAG = "RecyclingBitmapDrawable";
@@ -34,11 +34,24 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     private int mDisplayRefCount = 0;
 
     private boolean mHasBeenDisplayed;
+    private boolean mIsPooled;
+    private String mCacheKey;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
         super(res, bitmap);
     }
 
+    /**
+     * @return The sanitized key of this art in the {@link ImageCache}, or null if it isn't cached
+     */
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    void setCacheKey(String cacheKey) {
+        mCacheKey = cacheKey;
+    }
+
     /**
      * Notify the drawable that the displayed state has changed. Internally a
      * count is kept so that the drawable knows when it is no longer being
@@ -80,19 +93,23 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     }
 
     private synchronized void checkState() {
-        // DISABLED FOR NOW - LEAVING DEFAULT BITMAPDRAWABLE BEHAVIOR, SINCE AS OF
-        // HONEYCOMB THIS SHOULD BE RECYCLED AUTOMATICALLY (SHOULD)
-        if (false) {
+        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0) {
             // If the drawable cache and display ref counts = 0, and this drawable
-            // has been displayed, then recycle
-            if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                    && hasValidBitmap()) {
+            // has been displayed, then give the bitmap back for reuse
+            if (!mIsPooled && mHasBeenDisplayed && hasValidBitmap()) {
                 if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "No longer being used or cached so recycling. "
-                            + toString());
+                    Log.d(TAG, "No longer being used or cached so pooling. " + toString());
                 }
 
-                getBitmap().recycle();
+                mIsPooled = true;
+                BitmapPool.getDefault().put(getBitmap());
+            }
+        } else if (mIsPooled) {
+            // Used again before the bitmap got reused, take it back
+            if (BitmapPool.getDefault().reclaim(getBitmap())) {
+                mIsPooled = false;
+            } else {
+                Log.w(TAG, "Bitmap used again after being reused. " + toString());
             }
         }
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AAC-LC encoder using the platform codec. Packets are ADTS frames, which browsers and the Cast
+ * receiver can decode without any container.
+ */
+public class AacEncoder implements AudioEncoder {
+    private static final String TAG = "AacEncoder";
+
+    public static final String CODEC = "aac";
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    private static final int BIT_RATE = 192000;
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private static final int[] ADTS_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean mStarted;
+    private int mSampleRate;
+    private int mChannels;
+    private int mSampleRateIndex;
+    private long mQueuedFrames;
+    private byte[] mPacket = new byte[4096];
+
+    /**
+     * @throws IOException if the device has no AAC encoder
+     */
+    public AacEncoder() throws IOException {
+        mCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+    }
+
+    @Override
+    public String getCodec() {
+        return CODEC;
+    }
+
+    @Override
+    public boolean configure(int sampleRate, int channels) {
+        if (mStarted) {
+            mCodec.stop();
+            mStarted = false;
+        }
+
+        mSampleRateIndex = -1;
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; ++i) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                mSampleRateIndex = i;
+                break;
+            }
+        }
+        if (mSampleRateIndex < 0 || channels < 1 || channels > 2) {
+            Log.w(TAG, "Unsupported format: " + sampleRate + "Hz, " + channels + " channels");
+            return false;
+        }
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+
+        try {
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Cannot start the AAC encoder", e);
+            return false;
+        }
+
+        mStarted = true;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mQueuedFrames = 0;
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        return true;
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int len, PacketListener listener) {
+        if (!mStarted) {
+            return;
+        }
+
+        while (len > 0) {
+            final int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index >= 0) {
+                final ByteBuffer input = mInputBuffers[index];
+                input.clear();
+                final int size = Math.min(len, input.remaining());
+                input.put(pcm, offset, size);
+                mCodec.queueInputBuffer(index, 0, size, mQueuedFrames * 1000000L / mSampleRate, 0);
+
+                mQueuedFrames += size / (2 * mChannels);
+                offset += size;
+                len -= size;
+            }
+
+            // Make room in the codec for the rest of the input
+            drain(listener);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mStarted) {
+            mCodec.stop();
+            mStarted = false;
+        }
+        mCodec.release();
+    }
+
+    private void drain(PacketListener listener) {
+        while (true) {
+            final int index = mCodec.dequeueOutputBuffer(mInfo, 0);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (index >= 0) {
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && mInfo.size > 0) {
+                    final ByteBuffer output = mOutputBuffers[index];
+                    output.position(mInfo.offset);
+                    output.limit(mInfo.offset + mInfo.size);
+
+                    final int frameSize = mInfo.size + ADTS_HEADER_SIZE;
+                    if (mPacket.length < frameSize) {
+                        mPacket = new byte[frameSize];
+                    }
+                    writeAdtsHeader(frameSize);
+                    output.get(mPacket, ADTS_HEADER_SIZE, mInfo.size);
+
+                    listener.onPacket(mPacket, 0, frameSize);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+            } else if (index != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // No output available for now
+                break;
+            }
+        }
+    }
+
+    private void writeAdtsHeader(int frameSize) {
+        final int profile = 2; // AAC LC
+        mPacket[0] = (byte) 0xFF;
+        mPacket[1] = (byte) 0xF1;
+        mPacket[2] = (byte) (((profile - 1) << 6) | (mSampleRateIndex << 2) | (mChannels >> 2));
+        mPacket[3] = (byte) (((mChannels & 3) << 6) | (frameSize >> 11));
+        mPacket[4] = (byte) ((frameSize & 0x7FF) >> 3);
+        mPacket[5] = (byte) (((frameSize & 7) << 5) | 0x1F);
+        mPacket[6] = (byte) 0xFC;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+/**
+ * Encoder of the 16 bits PCM audio streamed to the Cast and web clients
+ */
+public interface AudioEncoder {
+    /**
+     * Receives the packets produced by an encoder
+     */
+    interface PacketListener {
+        /**
+         * Called for each encoded packet. The data is only valid during the call.
+         */
+        void onPacket(byte[] data, int offset, int len);
+    }
+
+    /**
+     * @return The name of the codec, as requested by the clients
+     */
+    String getCodec();
+
+    /**
+     * Sets up the encoder for the format of the audio to come
+     * @return false if the format isn't supported by the encoder
+     */
+    boolean configure(int sampleRate, int channels);
+
+    /**
+     * Encodes interleaved 16 bits PCM audio. Packets may be emitted later on, as the encoder
+     * gets enough audio.
+     */
+    void encode(byte[] pcm, int offset, int len, PacketListener listener);
+
+    /**
+     * Releases the resources held by the encoder
+     */
+    void release();
+}
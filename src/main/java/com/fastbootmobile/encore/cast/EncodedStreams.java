@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.service.PcmRingBuffer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoded versions of the audio mirror, shared by all the streaming servers. Each codec is
+ * encoded once, as long as at least one client streams with it.
+ */
+public class EncodedStreams {
+    private static final String TAG = "EncodedStreams";
+
+    public static final String CODEC_PCM = "pcm";
+
+    private final PcmRingBuffer mSource;
+    private final Map<String, EncoderStage> mStages = new HashMap<>();
+
+    public EncodedStreams(PcmRingBuffer source) {
+        mSource = source;
+    }
+
+    /**
+     * @return The raw audio mirror
+     */
+    public PcmRingBuffer getSource() {
+        return mSource;
+    }
+
+    /**
+     * Gets the stage encoding the mirror with a codec, starting it if needed
+     * @return The stage, or null if the codec isn't supported
+     */
+    synchronized EncoderStage acquire(String codec) {
+        EncoderStage stage = mStages.get(codec);
+        if (stage == null) {
+            AudioEncoder encoder = createEncoder(codec);
+            if (encoder == null) {
+                return null;
+            }
+
+            stage = new EncoderStage(mSource, encoder);
+            stage.start();
+            mStages.put(codec, stage);
+        }
+
+        stage.acquire();
+        return stage;
+    }
+
+    /**
+     * Releases a stage obtained from {@link #acquire(String)}, stopping it if it's no longer used
+     */
+    synchronized void release(EncoderStage stage) {
+        if (stage.release()) {
+            mStages.remove(stage.getCodec());
+            stage.stop();
+        }
+    }
+
+    private AudioEncoder createEncoder(String codec) {
+        switch (codec) {
+            case LosslessEncoder.CODEC:
+                return new LosslessEncoder();
+
+            case AacEncoder.CODEC:
+                try {
+                    return new AacEncoder();
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "AAC encoding isn't available", e);
+                    return null;
+                }
+
+            default:
+                return null;
+        }
+    }
+}
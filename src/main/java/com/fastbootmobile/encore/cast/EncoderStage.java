@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.service.PcmRingBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the audio mirror once for all the clients streaming with the same codec. The packets
+ * go to a ring of their own, each prefixed with its length, that every client follows at its
+ * own pace like the PCM clients follow the mirror.
+ */
+class EncoderStage implements Runnable, AudioEncoder.PacketListener {
+    private static final String TAG = "EncoderStage";
+
+    static final int MAX_PACKET_SIZE = 16384;
+    static final int PACKET_HEADER_SIZE = 4;
+
+    private static final int INPUT_SIZE = 8192;
+    private static final int OUTPUT_SIZE = 256 * 1024;
+    private static final long WAIT_TIMEOUT_MS = 500;
+
+    private final PcmRingBuffer mSource;
+    private final AudioEncoder mEncoder;
+    private final PcmRingBuffer mOutput = new PcmRingBuffer(OUTPUT_SIZE);
+    private final byte[] mInput = new byte[INPUT_SIZE];
+    private final byte[] mRecord = new byte[PACKET_HEADER_SIZE + MAX_PACKET_SIZE];
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private int mReferences;
+    private int mSampleRate;
+    private int mChannels;
+    private boolean mConfigured;
+    private volatile long mPcmBytes;
+    private volatile long mEncodedBytes;
+
+    EncoderStage(PcmRingBuffer source, AudioEncoder encoder) {
+        mSource = source;
+        mEncoder = encoder;
+    }
+
+    /**
+     * @return The name of the codec
+     */
+    String getCodec() {
+        return mEncoder.getCodec();
+    }
+
+    /**
+     * Creates a reader of the encoded packets, starting at the live position
+     */
+    PcmRingBuffer.Reader newReader() {
+        return mOutput.newReader();
+    }
+
+    /**
+     * @return The amount of PCM audio that a number of encoded bytes represents, going by the
+     * compression ratio so far
+     */
+    long toPcmBytes(long encodedBytes) {
+        final long encoded = mEncodedBytes;
+        return encoded > 0 ? encodedBytes * mPcmBytes / encoded : encodedBytes;
+    }
+
+    /**
+     * Takes a reference on the stage
+     */
+    void acquire() {
+        mReferences++;
+    }
+
+    /**
+     * Releases a reference on the stage
+     * @return true if there are no references left
+     */
+    boolean release() {
+        return --mReferences <= 0;
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new Thread(this, TAG + " " + getCodec());
+        mThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        final PcmRingBuffer.Reader reader = mSource.newReader();
+
+        try {
+            while (mRunning) {
+                if (!reader.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+
+                final int len = reader.read(mInput, 0, INPUT_SIZE);
+                if (len <= 0) {
+                    continue;
+                }
+
+                final int sampleRate = mSource.getSampleRate();
+                final int channels = mSource.getChannels();
+                if (sampleRate != mSampleRate || channels != mChannels) {
+                    mSampleRate = sampleRate;
+                    mChannels = channels;
+                    mConfigured = mEncoder.configure(sampleRate, channels);
+                }
+
+                if (mConfigured) {
+                    mEncoder.encode(mInput, 0, len - len % (2 * channels), this);
+                    mPcmBytes += len;
+                }
+            }
+        } finally {
+            reader.close();
+            mEncoder.release();
+        }
+    }
+
+    @Override
+    public void onPacket(byte[] data, int offset, int len) {
+        if (len > MAX_PACKET_SIZE) {
+            Log.w(TAG, "Dropping oversized " + getCodec() + " packet (" + len + " bytes)");
+            return;
+        }
+
+        mRecord[0] = (byte) (len >>> 24);
+        mRecord[1] = (byte) (len >>> 16);
+        mRecord[2] = (byte) (len >>> 8);
+        mRecord[3] = (byte) len;
+        System.arraycopy(data, offset, mRecord, PACKET_HEADER_SIZE, len);
+
+        mOutput.write(mRecord, 0, PACKET_HEADER_SIZE + len, mSampleRate, mChannels);
+        mEncodedBytes += PACKET_HEADER_SIZE + len;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+/**
+ * Lossless encoder using the fixed linear predictors and Rice coding of FLAC. Each call to
+ * {@link #encode} produces one frame, laid out in big endian as:
+ * <pre>
+ *   u8  sync (0xEC)
+ *   u8  version (1)
+ *   u32 sample rate
+ *   u8  channels
+ *   u16 samples per channel
+ *   for each channel, starting on a byte boundary:
+ *     u8  predictor order (0 to 4), or 0xFF when the samples are stored verbatim
+ *     u8  Rice parameter
+ *     s16 warm-up samples, one per order of the predictor, or all the samples if verbatim
+ *     Rice-coded residuals of the predictor, zigzag-encoded
+ * </pre>
+ */
+public class LosslessEncoder implements AudioEncoder {
+    public static final String CODEC = "lossless";
+
+    private static final int SYNC = 0xEC;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 9;
+    private static final int MAX_ORDER = 4;
+    private static final int VERBATIM = 0xFF;
+    private static final int MAX_RICE_PARAMETER = 30;
+
+    private int mSampleRate;
+    private int mChannels;
+    private final long[] mSums = new long[MAX_ORDER + 1];
+    private int[] mSamples = new int[0];
+    private byte[] mOut = new byte[0];
+    private int mOutPos;
+    private long mBits;
+    private int mBitCount;
+
+    @Override
+    public String getCodec() {
+        return CODEC;
+    }
+
+    @Override
+    public boolean configure(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        return channels > 0 && channels <= 8;
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int len, PacketListener listener) {
+        final int channels = mChannels;
+        final int count = len / (2 * channels);
+        if (count <= 0) {
+            return;
+        }
+
+        // Verbatim samples are the worst case
+        final int maxSize = HEADER_SIZE + channels * (2 + 2 * count);
+        if (mOut.length < maxSize) {
+            mOut = new byte[maxSize];
+        }
+        if (mSamples.length < count) {
+            mSamples = new int[count];
+        }
+
+        mOutPos = 0;
+        mBits = 0;
+        mBitCount = 0;
+
+        writeBits(SYNC, 8);
+        writeBits(VERSION, 8);
+        writeBits(mSampleRate, 32);
+        writeBits(channels, 8);
+        writeBits(count, 16);
+
+        for (int c = 0; c < channels; ++c) {
+            for (int i = 0; i < count; ++i) {
+                final int pos = offset + (i * channels + c) * 2;
+                mSamples[i] = (short) ((pcm[pos + 1] << 8) | (pcm[pos] & 0xFF));
+            }
+            encodeChannel(mSamples, count);
+        }
+
+        listener.onPacket(mOut, 0, mOutPos);
+    }
+
+    @Override
+    public void release() {
+        mSamples = new int[0];
+        mOut = new byte[0];
+    }
+
+    private void encodeChannel(int[] x, int count) {
+        // Pick the predictor with the smallest residuals
+        final long[] sums = mSums;
+        for (int o = 0; o <= MAX_ORDER; ++o) {
+            sums[o] = 0;
+        }
+        for (int i = MAX_ORDER; i < count; ++i) {
+            sums[0] += Math.abs(x[i]);
+            sums[1] += Math.abs(residual(x, i, 1));
+            sums[2] += Math.abs(residual(x, i, 2));
+            sums[3] += Math.abs(residual(x, i, 3));
+            sums[4] += Math.abs(residual(x, i, 4));
+        }
+
+        int order = 0;
+        if (count > MAX_ORDER) {
+            for (int o = 1; o <= MAX_ORDER; ++o) {
+                if (sums[o] < sums[order]) {
+                    order = o;
+                }
+            }
+        }
+
+        // The Rice parameter closest to the mean residual
+        final int residuals = count - order;
+        long total = 0;
+        for (int i = order; i < count; ++i) {
+            total += zigzag(residual(x, i, order));
+        }
+
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) residuals << (k + 1)) < total) {
+            k++;
+        }
+
+        long bits = (long) residuals * (k + 1);
+        for (int i = order; i < count; ++i) {
+            bits += zigzag(residual(x, i, order)) >>> k;
+        }
+
+        if (bits >= (long) residuals * 16) {
+            // Noise, storing it as is is smaller
+            writeBits(VERBATIM, 8);
+            writeBits(0, 8);
+            for (int i = 0; i < count; ++i) {
+                writeBits(x[i], 16);
+            }
+            return;
+        }
+
+        writeBits(order, 8);
+        writeBits(k, 8);
+        for (int i = 0; i < order; ++i) {
+            writeBits(x[i], 16);
+        }
+        for (int i = order; i < count; ++i) {
+            final long value = zigzag(residual(x, i, order));
+            long quotient = value >>> k;
+            while (quotient >= 32) {
+                writeBits(0, 32);
+                quotient -= 32;
+            }
+            writeBits(1, (int) quotient + 1);
+            writeBits(value, k);
+        }
+        flushBits();
+    }
+
+    private static int residual(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return x[i];
+            case 1:
+                return x[i] - x[i - 1];
+            case 2:
+                return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:
+                return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default:
+                return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    private static long zigzag(int value) {
+        return ((long) value << 1) ^ ((long) value >> 63);
+    }
+
+    private void writeBits(long value, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        mBits = (mBits << count) | (value & ((1L << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOut[mOutPos++] = (byte) (mBits >>> mBitCount);
+        }
+    }
+
+    private void flushBits() {
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+    }
+}
@@ -15,9 +15,14 @@
 
 package com.fastbootmobile.encore.cast;
 
+import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.fastbootmobile.encore.service.PcmRingBuffer;
+
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_10;
 import org.java_websocket.drafts.Draft_17;
@@ -27,12 +32,19 @@ import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * WebSocket Streaming server class to stream audio to Chromecast and webcast
+ * WebSocket Streaming server class to stream audio to Chromecast and webcast. Clients get raw
+ * 16 bits PCM, unless they ask for a codec in the query of the URL they connect to, for instance
+ * "/?codec=aac". Such clients are then told the codec they actually get in a text message, before
+ * the audio packets, one per binary message.
  */
 public class WSStreamer extends WebSocketServer {
     private static final String TAG = "WSStreamer";
@@ -46,23 +58,221 @@ public class WSStreamer extends WebSocketServer {
         sWSSDrafts.add(new Draft_76());
     }
 
-    public WSStreamer(int port) {
+    /**
+     * Maximum size of the audio messages sent to the clients
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * High-water mark of a client's send queue, in messages. Past it, we stop queueing audio for
+     * the client until the network catches up.
+     */
+    private static final int MAX_PENDING_MESSAGES = 8;
+
+    /**
+     * A client lagging more than this behind the live audio skips forward to it
+     */
+    private static final int MAX_LAG_MS = 1500;
+
+    private static final long WAIT_TIMEOUT_MS = 100;
+
+    /**
+     * Statistics of a streaming client
+     */
+    public static class ClientStats {
+        private final InetSocketAddress mAddress;
+        private final long mLagMs;
+        private final int mPendingMessages;
+        private final long mBytesSent;
+        private final long mDroppedMs;
+        private final int mSkipCount;
+        private final long mThroughput;
+
+        private ClientStats(InetSocketAddress address, long lagMs, int pendingMessages,
+                            long bytesSent, long droppedMs, int skipCount, long throughput) {
+            mAddress = address;
+            mLagMs = lagMs;
+            mPendingMessages = pendingMessages;
+            mBytesSent = bytesSent;
+            mDroppedMs = droppedMs;
+            mSkipCount = skipCount;
+            mThroughput = throughput;
+        }
+
+        /**
+         * @return The address of the client
+         */
+        public InetSocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return How far behind the live audio the client is, in milliseconds, not counting
+         * what is already queued for sending
+         */
+        public long getLagMs() {
+            return mLagMs;
+        }
+
+        /**
+         * @return The number of messages waiting to be sent to the client
+         */
+        public int getPendingMessages() {
+            return mPendingMessages;
+        }
+
+        /**
+         * @return The number of audio bytes sent to the client
+         */
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        /**
+         * @return The duration of audio the client skipped to catch up with the live audio
+         */
+        public long getDroppedMs() {
+            return mDroppedMs;
+        }
+
+        /**
+         * @return The number of times the client skipped forward
+         */
+        public int getSkipCount() {
+            return mSkipCount;
+        }
+
+        /**
+         * @return The average throughput to the client since it connected, in bytes per second
+         */
+        public long getThroughput() {
+            return mThroughput;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + ": lag=" + mLagMs + "ms pending=" + mPendingMessages
+                    + " sent=" + mBytesSent + " dropped=" + mDroppedMs + "ms skips=" + mSkipCount
+                    + " throughput=" + mThroughput + "B/s";
+        }
+    }
+
+    /**
+     * State of a streaming client. Its cursor in the mirror, or in the packets of its encoder
+     * stage, acts as its send queue: the audio it hasn't been sent yet stays in the ring.
+     */
+    private static class Client {
+        final WebSocket conn;
+        final EncoderStage stage;
+        final PcmRingBuffer.Reader reader;
+        final long connectedAt;
+        volatile long bytesSent;
+        volatile long droppedBytes;
+        volatile int skipCount;
+
+        Client(WebSocket conn, EncoderStage stage, PcmRingBuffer.Reader reader) {
+            this.conn = conn;
+            this.stage = stage;
+            this.reader = reader;
+            this.connectedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * @return How far behind the live audio the client is, in bytes of PCM audio
+         */
+        long getLag() {
+            final long available = reader.available();
+            return stage != null ? stage.toPcmBytes(available) : available;
+        }
+
+        int getPendingMessages() {
+            if (conn instanceof WebSocketImpl) {
+                return ((WebSocketImpl) conn).outQueue.size();
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    private final PcmRingBuffer mSource;
+    private final EncodedStreams mEncodedStreams;
+    private final Map<WebSocket, Client> mClients = new ConcurrentHashMap<>();
+    private Thread mPumpThread;
+    private volatile boolean mPumping;
+
+    public WSStreamer(int port, EncodedStreams streams) {
         super(new InetSocketAddress(port), sWSSDrafts);
+        mEncodedStreams = streams;
+        mSource = streams.getSource();
     }
 
-    public WSStreamer(InetSocketAddress addr) {
+    public WSStreamer(InetSocketAddress addr, EncodedStreams streams) {
         super(addr);
+        mEncodedStreams = streams;
+        mSource = streams.getSource();
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        mPumping = true;
+        mPumpThread = new Thread(mPumpRunnable, TAG + " Pump");
+        mPumpThread.start();
+    }
+
+    @Override
+    public void stop(int timeout) throws InterruptedException {
+        mPumping = false;
+        if (mPumpThread != null) {
+            mPumpThread.interrupt();
+            mPumpThread.join();
+            mPumpThread = null;
+        }
+
+        super.stop(timeout);
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake clientHandshake) {
         Log.d(TAG, "Streaming client connected: "
                 + conn.getRemoteSocketAddress().getAddress().getHostAddress());
+
+        String codec = null;
+        try {
+            codec = Uri.parse(conn.getResourceDescriptor()).getQueryParameter("codec");
+        } catch (UnsupportedOperationException e) {
+            // Not a hierarchical URI, there's no query to read
+        }
+
+        EncoderStage stage = null;
+        if (codec != null && !EncodedStreams.CODEC_PCM.equals(codec)) {
+            stage = mEncodedStreams.acquire(codec);
+            if (stage == null) {
+                Log.w(TAG, "Unsupported codec " + codec + ", streaming PCM instead");
+            }
+        }
+
+        if (codec != null) {
+            // Let the client know what it's going to get
+            final String actual = stage != null ? stage.getCodec() : EncodedStreams.CODEC_PCM;
+            conn.send("{\"codec\":\"" + actual + "\"}");
+        }
+
+        // New clients start from the live audio
+        final PcmRingBuffer.Reader reader = stage != null ? stage.newReader() : mSource.newReader();
+        mClients.put(conn, new Client(conn, stage, reader));
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String s, boolean b) {
         Log.d(TAG, "Streaming client disconnected: " + s);
+
+        Client client = mClients.remove(conn);
+        if (client != null) {
+            Log.d(TAG, "Stream stats: " + getStats(client));
+            closeClient(client);
+        }
     }
 
     @Override
@@ -76,18 +286,174 @@ public class WSStreamer extends WebSocketServer {
         Log.e(TAG, "Error occurred on socket", e);
     }
 
-    public void write(byte[] frames, int numframes) {
-        final Collection<WebSocket> clients = connections();
-        if (clients.size() > 0) {
-            byte[] specificFrames = new byte[numframes];
-            System.arraycopy(frames, 0, specificFrames, 0, numframes);
+    /**
+     * @return The statistics of the connected streaming clients
+     */
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<>();
+        for (Client client : mClients.values()) {
+            stats.add(getStats(client));
+        }
+        return stats;
+    }
+
+    private ClientStats getStats(Client client) {
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - client.connectedAt);
+        return new ClientStats(client.conn.getRemoteSocketAddress(),
+                bytesToMs(client.getLag()), client.getPendingMessages(),
+                client.bytesSent, bytesToMs(client.droppedBytes), client.skipCount,
+                client.bytesSent * 1000 / elapsed);
+    }
+
+    private long bytesToMs(long bytes) {
+        final long bytesPerSecond = (long) mSource.getSampleRate() * mSource.getChannels() * 2;
+        return bytesPerSecond > 0 ? bytes * 1000 / bytesPerSecond : 0;
+    }
+
+    private void closeClient(Client client) {
+        client.reader.close();
+        if (client.stage != null) {
+            mEncodedStreams.release(client.stage);
+        }
+    }
+
+    /**
+     * Checks whether a client can be sent more audio, skipping it forward if it lagged too far
+     * behind the live audio
+     */
+    private boolean isReady(Client client) {
+        if (!client.conn.isOpen()) {
+            return false;
+        }
+
+        // Skip what the client couldn't catch up with, rather than adding latency forever
+        final long lag = client.getLag();
+        final long maxLag = (long) mSource.getSampleRate() * mSource.getChannels() * 2
+                * MAX_LAG_MS / 1000;
+        if (maxLag > 0 && lag > maxLag) {
+            client.reader.skipToLive();
+            client.droppedBytes += lag;
+            client.skipCount++;
+            return false;
+        }
+
+        // When the network is congested, leave the audio in the ring for now
+        return client.getPendingMessages() < MAX_PENDING_MESSAGES;
+    }
 
-            for (WebSocket client : clients) {
-                if (client.isOpen()) {
-                    client.send(specificFrames);
+    /**
+     * Sends the next chunk of audio to each of the ready clients. Clients at the same position
+     * of the same stream, which is usually all of them, share a chunk that is read and framed
+     * once for all of them.
+     * @return true if something has been sent
+     */
+    private boolean pump(List<Client> ready, List<WebSocket> targets, byte[] chunk) {
+        boolean sent = false;
+
+        while (!ready.isEmpty()) {
+            final Client first = ready.remove(ready.size() - 1);
+            final long position = first.reader.getPosition();
+            final long lag = first.getLag();
+
+            final int overruns = first.reader.getOverrunCount();
+            final int len = first.stage != null ? readPacket(first.reader, chunk)
+                    : first.reader.read(chunk, 0, CHUNK_SIZE);
+            if (first.reader.getOverrunCount() != overruns) {
+                first.droppedBytes += lag;
+                first.skipCount++;
+            }
+
+            if (len <= 0) {
+                continue;
+            }
+
+            // Bring the clients that were at the same place along
+            final long read = first.reader.getPosition() - position;
+            targets.clear();
+            targets.add(first.conn);
+            first.bytesSent += len;
+
+            Iterator<Client> it = ready.iterator();
+            while (it.hasNext()) {
+                Client other = it.next();
+                if (other.stage == first.stage && other.reader.getPosition() == position) {
+                    other.reader.skip(read);
+                    other.bytesSent += len;
+                    targets.add(other.conn);
+                    it.remove();
                 }
             }
+
+            // Frames are built synchronously from the payload, so the chunk can be reused
+            broadcast(ByteBuffer.wrap(chunk, 0, len), targets);
+            sent = true;
+        }
+
+        return sent;
+    }
+
+    /**
+     * Reads the next packet from the ring of an encoder stage
+     * @return The size of the packet, or 0 if there was none or the reader has been overrun
+     */
+    private static int readPacket(PcmRingBuffer.Reader reader, byte[] chunk) {
+        // Packets are committed along with their header, so if the header is there the whole
+        // packet is
+        final int headerSize = EncoderStage.PACKET_HEADER_SIZE;
+        if (reader.read(chunk, 0, headerSize) < headerSize) {
+            return 0;
+        }
+
+        final int size = ((chunk[0] & 0xFF) << 24) | ((chunk[1] & 0xFF) << 16)
+                | ((chunk[2] & 0xFF) << 8) | (chunk[3] & 0xFF);
+        if (size <= 0 || size > EncoderStage.MAX_PACKET_SIZE) {
+            // We lost the packet boundaries. The live position is always at one, start over there.
+            Log.w(TAG, "Invalid packet size " + size + ", skipping to live");
+            reader.skipToLive();
+            return 0;
         }
+        return reader.read(chunk, 0, size) == size ? size : 0;
     }
 
+    /**
+     * Sends the audio of the mirror to the clients, away from the audio thread so that slow
+     * clients never hold the playback back
+     */
+    private final Runnable mPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Only used to wait for new audio, the clients have their own cursors
+            final PcmRingBuffer.Reader ticker = mSource.newReader();
+            final byte[] chunk = new byte[Math.max(CHUNK_SIZE, EncoderStage.MAX_PACKET_SIZE)];
+            final List<Client> ready = new ArrayList<>();
+            final List<WebSocket> targets = new ArrayList<>();
+
+            try {
+                while (mPumping) {
+                    ticker.skipToLive();
+
+                    ready.clear();
+                    for (Client client : mClients.values()) {
+                        if (isReady(client)) {
+                            ready.add(client);
+                        }
+                    }
+
+                    if (!pump(ready, targets, chunk)) {
+                        // Wait for new audio, or for congested clients to drain their queues
+                        ticker.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } finally {
+                ticker.close();
+                for (WebSocket conn : mClients.keySet()) {
+                    Client client = mClients.remove(conn);
+                    if (client != null) {
+                        closeClient(client);
+                    }
+                }
+            }
+        }
+    };
+
 }
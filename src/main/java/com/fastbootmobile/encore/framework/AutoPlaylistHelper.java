@@ -19,15 +19,9 @@ import android.content.Context;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.model.Playlist;
-import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 /**
  * This class generates automatic playlists from the listen logger
@@ -36,6 +30,8 @@ public class AutoPlaylistHelper {
     public static final String REF_SPECIAL_FAVORITES = "__omni:playlist:special:favorites";
     public static final String REF_SPECIAL_MOST_PLAYED = "__omni:playlist:special:mostplayed";
 
+    private static final int MOST_PLAYED_COUNT = 100;
+
     /**
      * Generates and returns a playlist containing all the liked entries
      * @param ctx The context
@@ -72,65 +68,34 @@ public class AutoPlaylistHelper {
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
         final ListenLogger logger = new ListenLogger(ctx);
 
-        List<ListenLogger.LogEntry> likes = logger.getEntries(0);
-
         Playlist playlist = new Playlist(REF_SPECIAL_MOST_PLAYED);
         playlist.setName(ctx.getString(R.string.most_played));
         playlist.setOfflineCapable(false);
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
-        HashMap<String, Integer> occurrences = new HashMap<>();
-        for (ListenLogger.LogEntry like : likes) {
-            final String ref = like.getReference();
-
-            // Ensure the songs are cached as they're coming from multiple providers
-            Song song = aggregator.retrieveSong(ref, like.getIdentifier());
-
-            // A null song indicates either the song has gone unavailable or the provider has been
-            // removed. We should not add it.
-            if (song != null) {
-                if (occurrences.containsKey(like.getReference())) {
-                    occurrences.put(ref, occurrences.get(ref) + 1);
-                } else {
-                    occurrences.put(ref, 1);
-                }
-            }
-        }
-
+        // The logger keeps the songs sorted by play count, only read as many as we need
+        int offset = 0;
         int number = 0;
-        TreeMap<String, Integer> sortedSongs = new TreeMap<>(new ValueComparator(occurrences));
-        sortedSongs.putAll(occurrences);
-
-        Set<String> references = sortedSongs.keySet();
-        for (String ref : references) {
-            if (ref != null) {
-                playlist.addSong(ref);
-                ++number;
-
-                if (number == 100) {
-                    break;
+        while (number < MOST_PLAYED_COUNT) {
+            List<ListenLogger.LogEntry> entries = logger.getMostPlayed(offset,
+                    MOST_PLAYED_COUNT - number);
+            if (entries.isEmpty()) {
+                break;
+            }
+            offset += entries.size();
+
+            for (ListenLogger.LogEntry entry : entries) {
+                // Ensure the songs are cached as they're coming from multiple providers. A null
+                // song indicates either the song has gone unavailable or the provider has been
+                // removed. We should not add it.
+                if (aggregator.retrieveSong(entry.getReference(), entry.getIdentifier()) != null) {
+                    playlist.addSong(entry.getReference());
+                    ++number;
                 }
             }
         }
 
         return playlist;
     }
-
-    private static class ValueComparator implements Comparator<String> {
-        private Map<String, Integer> mBase;
-
-        public ValueComparator(Map<String, Integer> base) {
-            mBase = base;
-        }
-
-        // Note: this comparator imposes orderings that are inconsistent with equals.
-        public int compare(String a, String b) {
-            if (mBase.get(a) >= mBase.get(b)) {
-                return -1;
-            } else {
-                return 1;
-            } // returning 0 would merge keys
-        }
-    }
 }
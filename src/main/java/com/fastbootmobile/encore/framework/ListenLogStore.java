@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide storage behind {@link ListenLogger}. The history is an append-only log split in
+ * one file per day, so that expired days are dropped by deleting whole files. Likes and dislikes
+ * are an append-only log of operations. Both are loaded once in memory, where the history is kept
+ * sorted by time along with the play counts, and the likes are indexed by song reference. Writes
+ * are done on a background thread.
+ */
+class ListenLogStore {
+    private static final String TAG = "ListenLogStore";
+
+    private static final String DIRECTORY = "listen_log";
+    private static final String HISTORY_SUFFIX = ".log";
+    private static final String LIKES_FILE = "likes.bin";
+
+    private static final long PARTITION_DURATION = 24L * 60 * 60 * 1000;
+    static final long RETENTION = 31 * PARTITION_DURATION;
+
+    private static final byte OP_LIKE = 1;
+    private static final byte OP_UNLIKE = 2;
+    private static final byte OP_DISLIKE = 3;
+    private static final byte OP_UNDISLIKE = 4;
+
+    /**
+     * The likes log is compacted once it holds more than this many operations, and more than
+     * twice the number of live entries
+     */
+    private static final int COMPACT_MIN_OPS = 256;
+
+    // Legacy SharedPreferences storage, imported once
+    private static final String LEGACY_PREFS = "ListenLogger";
+    private static final String LEGACY_HISTORY_ENTRIES = "history_entries";
+    private static final String LEGACY_LIKED_ENTRIES = "liked_entries";
+    private static final String LEGACY_DISLIKED_ENTRIES = "disliked_entries";
+    private static final String LEGACY_KEY_TIMESTAMP = "timestamp";
+    private static final String LEGACY_KEY_SONG_REF = "song_ref";
+    private static final String LEGACY_KEY_PROVIDER = "provider";
+
+    private static final Comparator<ListenLogger.LogEntry> TIME_COMPARATOR =
+            new Comparator<ListenLogger.LogEntry>() {
+                @Override
+                public int compare(ListenLogger.LogEntry lhs, ListenLogger.LogEntry rhs) {
+                    final long lhsTime = lhs.getTimestamp().getTime();
+                    final long rhsTime = rhs.getTimestamp().getTime();
+                    return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+                }
+            };
+
+    private static ListenLogStore sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final Handler mWriteHandler;
+
+    private boolean mLoaded;
+    private final List<ListenLogger.LogEntry> mHistory = new ArrayList<>();
+    private final Map<String, ListenLogger.LogEntry> mLiked = new LinkedHashMap<>();
+    private final Map<String, ListenLogger.LogEntry> mDisliked = new LinkedHashMap<>();
+    private final PlayCountAggregate mPlayCounts = new PlayCountAggregate();
+    private int mLikeOps;
+    private long mLastPartition;
+
+    static synchronized ListenLogStore getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new ListenLogStore(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ListenLogStore(Context ctx) {
+        mContext = ctx;
+        mDirectory = new File(ctx.getFilesDir(), DIRECTORY);
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+
+        // Preload in the background, callers block only if they need the data before it's ready
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+            }
+        });
+    }
+
+    /**
+     * Logs a play
+     */
+    void addEntry(String ref, ProviderIdentifier provider, long timestamp) {
+        final ListenLogger.LogEntry entry = new ListenLogger.LogEntry(ref, provider, timestamp);
+
+        synchronized (this) {
+            ensureLoaded();
+
+            final int size = mHistory.size();
+            if (size == 0 || mHistory.get(size - 1).getTimestamp().getTime() <= timestamp) {
+                mHistory.add(entry);
+            } else {
+                // The clock went back, keep the history sorted
+                mHistory.add(upperBound(timestamp), entry);
+            }
+
+            mPlayCounts.add(entry);
+            pruneLocked();
+        }
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                appendHistory(entry);
+            }
+        });
+    }
+
+    /**
+     * Returns the history entries played in the provided time range, most recent first
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @param limit The maximum number of entries to return, or 0 for no limit
+     */
+    synchronized List<ListenLogger.LogEntry> getEntries(long from, long to, int limit) {
+        ensureLoaded();
+        pruneLocked();
+
+        from = Math.max(from, System.currentTimeMillis() - RETENTION);
+
+        List<ListenLogger.LogEntry> output = new ArrayList<>();
+        for (int i = upperBound(to - 1) - 1; i >= 0; --i) {
+            final ListenLogger.LogEntry entry = mHistory.get(i);
+            if (entry.getTimestamp().getTime() < from
+                    || (limit > 0 && output.size() == limit)) {
+                break;
+            }
+            output.add(entry);
+        }
+        return output;
+    }
+
+    /**
+     * Returns the distinct songs of the history, most recently played first
+     * @param limit The maximum number of songs to return
+     */
+    synchronized List<ListenLogger.LogEntry> getRecentlyPlayed(int limit) {
+        ensureLoaded();
+        pruneLocked();
+
+        List<ListenLogger.LogEntry> output = new ArrayList<>();
+        Set<String> refs = new HashSet<>();
+        for (int i = mHistory.size() - 1; i >= 0 && output.size() < limit; --i) {
+            final ListenLogger.LogEntry entry = mHistory.get(i);
+            if (refs.add(entry.getReference())) {
+                output.add(entry);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Returns the most played songs of the history
+     * @param offset The number of songs to skip
+     * @param limit The maximum number of songs to return
+     */
+    synchronized List<ListenLogger.LogEntry> getMostPlayed(int offset, int limit) {
+        ensureLoaded();
+        pruneLocked();
+        return mPlayCounts.getMostPlayed(offset, limit);
+    }
+
+    synchronized int getPlayCount(String ref) {
+        ensureLoaded();
+        pruneLocked();
+        return mPlayCounts.getCount(ref);
+    }
+
+    /**
+     * Drops the expired entries from memory. Their files are dropped as partitions roll.
+     */
+    private void pruneLocked() {
+        final int expired = upperBound(System.currentTimeMillis() - RETENTION - 1);
+        if (expired > 0) {
+            final List<ListenLogger.LogEntry> entries = mHistory.subList(0, expired);
+            for (ListenLogger.LogEntry entry : entries) {
+                mPlayCounts.remove(entry);
+            }
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return The index of the first entry played after the provided time
+     */
+    private int upperBound(long time) {
+        int low = 0;
+        int high = mHistory.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mHistory.get(mid).getTimestamp().getTime() <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    void setLiked(String ref, ProviderIdentifier provider, boolean liked) {
+        setLiking(mLiked, ref, provider, liked, liked ? OP_LIKE : OP_UNLIKE);
+    }
+
+    void setDisliked(String ref, ProviderIdentifier provider, boolean disliked) {
+        setLiking(mDisliked, ref, provider, disliked, disliked ? OP_DISLIKE : OP_UNDISLIKE);
+    }
+
+    private void setLiking(Map<String, ListenLogger.LogEntry> index, final String ref,
+                           final ProviderIdentifier provider, boolean set, final byte op) {
+        final boolean compact;
+
+        if (provider == null) {
+            Log.w(TAG, "Ignoring liking of song " + ref + " with no provider");
+            return;
+        }
+
+        synchronized (this) {
+            ensureLoaded();
+
+            final boolean changed;
+            if (set) {
+                changed = index.put(ref, new ListenLogger.LogEntry(ref, provider, 0)) == null;
+            } else {
+                changed = index.remove(ref) != null;
+            }
+
+            if (!changed) {
+                return;
+            }
+
+            ++mLikeOps;
+            compact = mLikeOps > COMPACT_MIN_OPS && mLikeOps > 2 * (mLiked.size() + mDisliked.size());
+        }
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (compact) {
+                    compactLikes();
+                } else {
+                    appendLikeOp(op, ref, provider);
+                }
+            }
+        });
+    }
+
+    synchronized boolean isLiked(String ref) {
+        ensureLoaded();
+        return mLiked.containsKey(ref);
+    }
+
+    synchronized boolean isDisliked(String ref) {
+        ensureLoaded();
+        return mDisliked.containsKey(ref);
+    }
+
+    synchronized List<ListenLogger.LogEntry> getLikedEntries() {
+        ensureLoaded();
+        return new ArrayList<>(mLiked.values());
+    }
+
+    synchronized List<ListenLogger.LogEntry> getDislikedEntries() {
+        ensureLoaded();
+        return new ArrayList<>(mDisliked.values());
+    }
+
+    private synchronized void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create the listen log directory");
+        }
+
+        loadHistory();
+        loadLikes();
+        importLegacyPrefs();
+
+        // The play counts are derived from the history, which is already read in full here
+        for (ListenLogger.LogEntry entry : mHistory) {
+            mPlayCounts.add(entry);
+        }
+        pruneLocked();
+    }
+
+    private void loadHistory() {
+        final File[] files = deleteExpiredPartitions();
+
+        for (File file : files) {
+            final String name = file.getName();
+            try {
+                final byte[] data = readFully(file);
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int validLength = 0;
+                try {
+                    while (validLength < data.length) {
+                        final long timestamp = in.readLong();
+                        final String ref = in.readUTF();
+                        final ProviderIdentifier provider =
+                                ProviderIdentifier.fromSerialized(in.readUTF());
+                        mHistory.add(new ListenLogger.LogEntry(ref, provider, timestamp));
+                        validLength = data.length - in.available();
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    Log.w(TAG, "Truncating partial record in " + name);
+                    truncate(file, validLength);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read history partition " + name, e);
+            }
+        }
+
+        // Partitions are listed in no particular order
+        Collections.sort(mHistory, TIME_COMPARATOR);
+    }
+
+    /**
+     * Deletes the history partitions older than the retention period
+     * @return The remaining partitions
+     */
+    private File[] deleteExpiredPartitions() {
+        final long oldestPartition = (System.currentTimeMillis() - RETENTION) / PARTITION_DURATION;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        List<File> output = new ArrayList<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(HISTORY_SUFFIX)) {
+                continue;
+            }
+
+            long partition;
+            try {
+                partition = Long.parseLong(name.substring(0, name.length() - HISTORY_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            if (partition < oldestPartition) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Cannot delete expired history partition " + name);
+                }
+            } else {
+                output.add(file);
+            }
+        }
+        return output.toArray(new File[output.size()]);
+    }
+
+    private void loadLikes() {
+        final File file = new File(mDirectory, LIKES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            final byte[] data = readFully(file);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int validLength = 0;
+            try {
+                while (validLength < data.length) {
+                    final byte op = in.readByte();
+                    final String ref = in.readUTF();
+                    final ProviderIdentifier provider =
+                            ProviderIdentifier.fromSerialized(in.readUTF());
+                    switch (op) {
+                        case OP_LIKE:
+                            mLiked.put(ref, new ListenLogger.LogEntry(ref, provider, 0));
+                            break;
+                        case OP_UNLIKE:
+                            mLiked.remove(ref);
+                            break;
+                        case OP_DISLIKE:
+                            mDisliked.put(ref, new ListenLogger.LogEntry(ref, provider, 0));
+                            break;
+                        case OP_UNDISLIKE:
+                            mDisliked.remove(ref);
+                            break;
+                        default:
+                            Log.w(TAG, "Unknown likes operation " + op);
+                            break;
+                    }
+                    ++mLikeOps;
+                    validLength = data.length - in.available();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                Log.w(TAG, "Truncating partial record in the likes log");
+                truncate(file, validLength);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read the likes log", e);
+        }
+    }
+
+    /**
+     * Moves the entries stored by previous versions in SharedPreferences to the logs
+     */
+    private void importLegacyPrefs() {
+        final SharedPreferences prefs = mContext.getSharedPreferences(LEGACY_PREFS,
+                Context.MODE_PRIVATE);
+        if (!prefs.contains(LEGACY_HISTORY_ENTRIES) && !prefs.contains(LEGACY_LIKED_ENTRIES)
+                && !prefs.contains(LEGACY_DISLIKED_ENTRIES)) {
+            return;
+        }
+
+        final List<ListenLogger.LogEntry> history = parseLegacy(prefs, LEGACY_HISTORY_ENTRIES);
+        final List<ListenLogger.LogEntry> liked = parseLegacy(prefs, LEGACY_LIKED_ENTRIES);
+        final List<ListenLogger.LogEntry> disliked = parseLegacy(prefs, LEGACY_DISLIKED_ENTRIES);
+        Log.i(TAG, "Importing " + history.size() + " history entries, " + liked.size()
+                + " likes and " + disliked.size() + " dislikes");
+
+        mHistory.addAll(history);
+        Collections.sort(mHistory, TIME_COMPARATOR);
+        for (ListenLogger.LogEntry entry : liked) {
+            mLiked.put(entry.getReference(), entry);
+        }
+        for (ListenLogger.LogEntry entry : disliked) {
+            mDisliked.put(entry.getReference(), entry);
+        }
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ListenLogger.LogEntry entry : history) {
+                    appendHistory(entry);
+                }
+                compactLikes();
+
+                prefs.edit()
+                        .remove(LEGACY_HISTORY_ENTRIES)
+                        .remove(LEGACY_LIKED_ENTRIES)
+                        .remove(LEGACY_DISLIKED_ENTRIES)
+                        .apply();
+            }
+        });
+    }
+
+    private static List<ListenLogger.LogEntry> parseLegacy(SharedPreferences prefs, String key) {
+        List<ListenLogger.LogEntry> output = new ArrayList<>();
+        Set<String> entries = prefs.getStringSet(key, null);
+        if (entries != null) {
+            for (String entry : entries) {
+                try {
+                    JSONObject jsonObj = new JSONObject(entry);
+                    output.add(new ListenLogger.LogEntry(jsonObj.getString(LEGACY_KEY_SONG_REF),
+                            ProviderIdentifier.fromSerialized(
+                                    jsonObj.getString(LEGACY_KEY_PROVIDER)),
+                            jsonObj.optLong(LEGACY_KEY_TIMESTAMP, 0)));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Cannot parse legacy entry", e);
+                }
+            }
+        }
+        return output;
+    }
+
+    private void appendHistory(ListenLogger.LogEntry entry) {
+        final long timestamp = entry.getTimestamp().getTime();
+        final long partition = timestamp / PARTITION_DURATION;
+        final File file = new File(mDirectory, partition + HISTORY_SUFFIX);
+
+        if (partition > mLastPartition) {
+            mLastPartition = partition;
+            deleteExpiredPartitions();
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            out.writeLong(timestamp);
+            out.writeUTF(entry.getReference());
+            out.writeUTF(entry.getIdentifier().serialize());
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the history", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void appendLikeOp(byte op, String ref, ProviderIdentifier provider) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(mDirectory, LIKES_FILE), true)));
+            writeLikeOp(out, op, ref, provider);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the likes log", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Rewrites the likes log with only the live entries
+     */
+    private void compactLikes() {
+        final List<ListenLogger.LogEntry> liked;
+        final List<ListenLogger.LogEntry> disliked;
+        synchronized (this) {
+            liked = new ArrayList<>(mLiked.values());
+            disliked = new ArrayList<>(mDisliked.values());
+            mLikeOps = liked.size() + disliked.size();
+        }
+
+        final File file = new File(mDirectory, LIKES_FILE);
+        final File tmpFile = new File(mDirectory, LIKES_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            for (ListenLogger.LogEntry entry : liked) {
+                writeLikeOp(out, OP_LIKE, entry.getReference(), entry.getIdentifier());
+            }
+            for (ListenLogger.LogEntry entry : disliked) {
+                writeLikeOp(out, OP_DISLIKE, entry.getReference(), entry.getIdentifier());
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Cannot replace the likes log");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot compact the likes log", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeLikeOp(DataOutputStream out, byte op, String ref,
+                                    ProviderIdentifier provider) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(ref);
+        out.writeUTF(provider.serialize());
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void truncate(File file, long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot truncate " + file.getName(), e);
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
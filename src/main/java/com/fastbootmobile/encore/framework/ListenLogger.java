@@ -16,41 +16,24 @@
 package com.fastbootmobile.encore.framework;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Class handling logging of played and liked songs
  */
 public class ListenLogger {
     private static final String TAG = "ListenLogger";
-    private static final boolean DEBUG = true;
-
-    private static final String PREFS = "ListenLogger";
-    private static final String PREF_HISTORY_ENTRIES = "history_entries";
-    private static final String PREF_LIKED_ENTRIES = "liked_entries";
-    private static final String PREF_DISLIKED_ENTRIES = "disliked_entries";
-
-    private static final String KEY_TIMESTAMP = "timestamp";
-    private static final String KEY_SONG_REF = "song_ref";
-    private static final String KEY_PROVIDER = "provider";
 
-    private SharedPreferences mPrefs;
+    private final ListenLogStore mStore;
 
     public ListenLogger(Context ctx) {
-        mPrefs = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mStore = ListenLogStore.getInstance(ctx);
     }
 
     /**
@@ -58,76 +41,59 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addEntry(Song song) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(PREF_HISTORY_ENTRIES,
-                new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_TIMESTAMP, new Date().getTime());
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-
-        entries.add(jsonRoot.toString());
-
-        // Remove old entries
-        final long now = new Date().getTime();
-        final long oneSec = 1000L;
-        final long oneMin = oneSec * 60;
-        final long oneHour = oneMin * 60;
-        final long oneDay = oneHour * 24;
-        final long oneMonth = oneDay * 31;
-
-        Set<String> removal = new TreeSet<>();
-        for (String entry : entries) {
-            try {
-                JSONObject obj = new JSONObject(entry);
-                long timestamp = obj.getLong(KEY_TIMESTAMP);
-                if (now - timestamp > oneMonth) {
-                    removal.add(entry);
-                }
-            } catch (JSONException e) {
-                Log.w(TAG, "Cannot parse JSON", e);
-            }
-        }
-
-        for (String entry : removal) {
-            entries.remove(entry);
+        if (song.getProvider() == null) {
+            Log.w(TAG, "Not logging song " + song.getRef() + " with no provider");
+            return;
         }
 
-        editor.putStringSet(PREF_HISTORY_ENTRIES, entries);
-        editor.apply();
+        mStore.addEntry(song.getRef(), song.getProvider(), new Date().getTime());
     }
 
     /**
-     * Fetches and builds a list of all the history entries
+     * Fetches the history entries, most recent first
+     * @param limit The maximum number of entries to return, or 0 for all of them
      * @return A list of entries
      */
     public List<LogEntry> getEntries(int limit) {
-        Set<String> entries = mPrefs.getStringSet(PREF_HISTORY_ENTRIES, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-                    long timestamp = jsonObj.getLong(KEY_TIMESTAMP);
+        return mStore.getEntries(0, Long.MAX_VALUE, limit);
+    }
 
-                    output.add(new LogEntry(songRef, providerSerialized, timestamp));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get log entry", e);
-                }
+    /**
+     * Fetches the history entries played in the provided time range, most recent first
+     * @param from The start of the range in milliseconds, inclusive
+     * @param to The end of the range in milliseconds, exclusive
+     * @param limit The maximum number of entries to return, or 0 for all of them
+     * @return A list of entries
+     */
+    public List<LogEntry> getEntries(long from, long to, int limit) {
+        return mStore.getEntries(from, to, limit);
+    }
 
-                if (limit > 0 && output.size() == limit) {
-                    break;
-                }
-            }
-        }
+    /**
+     * Fetches the distinct songs of the history, most recently played first
+     * @param limit The maximum number of songs to return
+     * @return A list of entries, timestamped with the last time each song was played
+     */
+    public List<LogEntry> getRecentlyPlayed(int limit) {
+        return mStore.getRecentlyPlayed(limit);
+    }
 
-        return output;
+    /**
+     * Fetches the most played songs of the history
+     * @param offset The number of songs to skip
+     * @param limit The maximum number of songs to return
+     * @return A list of entries, timestamped with the last time each song was played
+     */
+    public List<LogEntry> getMostPlayed(int offset, int limit) {
+        return mStore.getMostPlayed(offset, limit);
+    }
+
+    /**
+     * @param ref The reference of the song
+     * @return The number of times the song has been played within the history
+     */
+    public int getPlayCount(String ref) {
+        return mStore.getPlayCount(ref);
     }
 
     /**
@@ -135,7 +101,7 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addLike(Song song) {
-        addLikingImpl(song, PREF_LIKED_ENTRIES);
+        mStore.setLiked(song.getRef(), song.getProvider(), true);
     }
 
     /**
@@ -143,23 +109,7 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addDislike(Song song) {
-        addLikingImpl(song, PREF_DISLIKED_ENTRIES);
-    }
-
-    private void addLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-        entries.add(jsonRoot.toString());
-
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+        mStore.setDisliked(song.getRef(), song.getProvider(), true);
     }
 
     /**
@@ -167,7 +117,7 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeLike(Song song) {
-        removeLikingImpl(song, PREF_LIKED_ENTRIES);
+        mStore.setLiked(song.getRef(), song.getProvider(), false);
     }
 
     /**
@@ -175,66 +125,30 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeDislike(Song song) {
-        removeLikingImpl(song, PREF_DISLIKED_ENTRIES);
-    }
-
-    private void removeLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-        entries.remove(jsonRoot.toString());
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+        mStore.setDisliked(song.getRef(), song.getProvider(), false);
     }
 
     /**
      * @return a list of all the liked entries
      */
     public List<LogEntry> getLikedEntries() {
-        return getLikingEntriesImpl(PREF_LIKED_ENTRIES);
+        return mStore.getLikedEntries();
     }
+
     /**
      * @return a list of all the disliked entries
      */
     public List<LogEntry> getDislikedEntries() {
-        return getLikingEntriesImpl(PREF_DISLIKED_ENTRIES);
+        return mStore.getDislikedEntries();
     }
 
-
-    public List<LogEntry> getLikingEntriesImpl(String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-
-                    output.add(new LogEntry(songRef, providerSerialized, 0));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get liked entries", e);
-                }
-            }
-        }
-
-        return output;
-    }
-
-
     /**
      * Returns whether or not the song reference provided is in the list of liked songs or not
      * @param ref The reference of the song
      * @return true if the song is liked
      */
     public boolean isLiked(String ref) {
-        return getLikingImpl(ref, PREF_LIKED_ENTRIES);
+        return mStore.isLiked(ref);
     }
 
     /**
@@ -243,27 +157,7 @@ public class ListenLogger {
      * @return true if the song is disliked
      */
     public boolean isDisliked(String ref) {
-        return getLikingImpl(ref, PREF_DISLIKED_ENTRIES);
-    }
-
-    private boolean getLikingImpl(String ref, String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    if (songRef.equals(ref)) {
-                        return true;
-                    }
-                } catch (JSONException ignore) {
-                }
-            }
-
-            return false;
-        } else {
-            return false;
-        }
+        return mStore.isDisliked(ref);
     }
 
     /**
@@ -274,9 +168,9 @@ public class ListenLogger {
         private String mSongRef;
         private ProviderIdentifier mIdentifier;
 
-        private LogEntry(String songRef, String serializedProviderIdentifier, long timestamp) {
+        LogEntry(String songRef, ProviderIdentifier identifier, long timestamp) {
             mSongRef = songRef;
-            mIdentifier = ProviderIdentifier.fromSerialized(serializedProviderIdentifier);
+            mIdentifier = identifier;
             mTimestamp = new Date(timestamp);
         }
 
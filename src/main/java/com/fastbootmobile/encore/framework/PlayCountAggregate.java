@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Play counts of the songs in the history, updated as plays are logged and expire. Songs are
+ * kept ordered by play count, so that reading the most played ones doesn't depend on the size
+ * of the history. This class isn't thread-safe, {@link ListenLogStore} guards it.
+ */
+class PlayCountAggregate {
+    private static class PlayCount {
+        final String ref;
+        ProviderIdentifier provider;
+        int count;
+        long lastPlayed;
+
+        PlayCount(String ref) {
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Most played first, then most recently played. The reference is compared last so that songs
+     * with the same count and time are still distinct.
+     */
+    private static final Comparator<PlayCount> RANKING = new Comparator<PlayCount>() {
+        @Override
+        public int compare(PlayCount lhs, PlayCount rhs) {
+            if (lhs.count != rhs.count) {
+                return lhs.count > rhs.count ? -1 : 1;
+            }
+            if (lhs.lastPlayed != rhs.lastPlayed) {
+                return lhs.lastPlayed > rhs.lastPlayed ? -1 : 1;
+            }
+            return lhs.ref.compareTo(rhs.ref);
+        }
+    };
+
+    private final Map<String, PlayCount> mCounts = new HashMap<>();
+    private final TreeSet<PlayCount> mRanking = new TreeSet<>(RANKING);
+
+    /**
+     * Counts a play
+     */
+    void add(ListenLogger.LogEntry entry) {
+        PlayCount count = mCounts.get(entry.getReference());
+        if (count == null) {
+            count = new PlayCount(entry.getReference());
+            mCounts.put(count.ref, count);
+        } else {
+            mRanking.remove(count);
+        }
+
+        count.provider = entry.getIdentifier();
+        count.count++;
+        count.lastPlayed = Math.max(count.lastPlayed, entry.getTimestamp().getTime());
+        mRanking.add(count);
+    }
+
+    /**
+     * Uncounts a play that left the history
+     */
+    void remove(ListenLogger.LogEntry entry) {
+        PlayCount count = mCounts.get(entry.getReference());
+        if (count == null) {
+            return;
+        }
+
+        mRanking.remove(count);
+        if (--count.count <= 0) {
+            mCounts.remove(count.ref);
+        } else {
+            mRanking.add(count);
+        }
+    }
+
+    /**
+     * @return The number of times the song has been played
+     */
+    int getCount(String ref) {
+        PlayCount count = mCounts.get(ref);
+        return count == null ? 0 : count.count;
+    }
+
+    /**
+     * Returns the most played songs
+     * @param offset The number of songs to skip
+     * @param limit The maximum number of songs to return
+     * @return Entries timestamped with the last time each song was played
+     */
+    List<ListenLogger.LogEntry> getMostPlayed(int offset, int limit) {
+        List<ListenLogger.LogEntry> output = new ArrayList<>(Math.min(limit, mCounts.size()));
+        Iterator<PlayCount> it = mRanking.iterator();
+        for (int i = 0; i < offset && it.hasNext(); ++i) {
+            it.next();
+        }
+        while (it.hasNext() && output.size() < limit) {
+            PlayCount count = it.next();
+            output.add(new ListenLogger.LogEntry(count.ref, count.provider, count.lastPlayed));
+        }
+        return output;
+    }
+}
@@ -39,8 +39,16 @@ import java.util.List;
 public class PlaybackProxy {
     private static final String TAG = "PlaybackProxy";
 
+    /**
+     * The playback position is extrapolated for this long before asking the service again
+     */
+    private static final long POSITION_ANCHOR_TTL_NS = 250 * 1000000L;
+
     private static Handler sHandler;
     private static final List<IPlaybackCallback> sPendingCallbacks = new ArrayList<>();
+    private static final Object sPositionLock = new Object();
+    private static long[] sPositionAnchor;
+    private static long sPositionAnchorTime;
 
     private static final int MSG_PLAY               = 1;
     private static final int MSG_PAUSE              = 2;
@@ -176,6 +184,9 @@ public class PlaybackProxy {
             } catch (Exception e) {
                 Log.e(TAG, "Cannot run remote method", e);
             }
+
+            // The command may have moved the playback position, don't extrapolate the old one
+            invalidatePositionAnchor();
         }
     }
 
@@ -288,10 +299,44 @@ public class PlaybackProxy {
     }
 
     public static int getCurrentTrackPosition() {
-        try {
-            return getPlayback().getCurrentTrackPosition();
-        } catch (RemoteException e) {
-            return 0;
+        return (int) (getCurrentTrackPositionUs() / 1000);
+    }
+
+    /**
+     * Returns the playback position of the current track. The position is extrapolated from an
+     * anchor fetched from the service a few times per second, so this may be called on every
+     * frame.
+     * @return The position in microseconds
+     */
+    public static long getCurrentTrackPositionUs() {
+        final long now = System.nanoTime();
+
+        synchronized (sPositionLock) {
+            if (sPositionAnchor == null || now - sPositionAnchorTime > POSITION_ANCHOR_TTL_NS) {
+                try {
+                    sPositionAnchor = getPlayback().getCurrentTrackPositionAnchor();
+                    sPositionAnchorTime = now;
+                } catch (RemoteException e) {
+                    return 0;
+                }
+            }
+
+            final long[] anchor = sPositionAnchor;
+            if (anchor == null || anchor.length < 3) {
+                return 0;
+            } else if (anchor[2] == 0) {
+                return anchor[0];
+            } else {
+                // Don't run past the next refresh, where the service may have stopped
+                final long elapsed = Math.min(now - anchor[1], POSITION_ANCHOR_TTL_NS);
+                return anchor[0] + Math.max(0, elapsed) / 1000;
+            }
+        }
+    }
+
+    private static void invalidatePositionAnchor() {
+        synchronized (sPositionLock) {
+            sPositionAnchor = null;
         }
     }
 
@@ -21,12 +21,15 @@ import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderCache;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Class generating listening suggestions
@@ -56,15 +59,23 @@ public class Suggestor {
 
 
         // List all tracks from all albums, get 100 random
-        final List<String> albumReferences = artist.getAlbums();
-        for (String albumRef : albumReferences) {
+        for (String albumRef : getAlbumRefs(artist)) {
+            List<Song> cachedSongs = aggregator.getCache().getSongsForAlbum(albumRef);
+            if (!cachedSongs.isEmpty()) {
+                allSongs.addAll(cachedSongs);
+                continue;
+            }
+
+            // None of the album songs are cached yet, ask the provider
             Album album = aggregator.retrieveAlbum(albumRef, artist.getProvider());
             if (album != null && album.isLoaded()) {
                 Iterator<String> songsIt = album.songs();
                 while (songsIt.hasNext()) {
                     String songRef = songsIt.next();
                     Song song = aggregator.retrieveSong(songRef, artist.getProvider());
-                    allSongs.add(song);
+                    if (song != null) {
+                        allSongs.add(song);
+                    }
                 }
             }
         }
@@ -90,6 +101,16 @@ public class Suggestor {
      */
     public Song suggestBestForArtist(Artist artist) {
         // TODO: Do a real algorithm
+        final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+        for (String albumRef : getAlbumRefs(artist)) {
+            for (Song song : cache.getSongsForAlbum(albumRef)) {
+                if (artist.getRef().equals(song.getArtist())) {
+                    return song;
+                }
+            }
+        }
+
+        // Nothing cached, ask the provider
         final Iterator<String> albums = artist.albums();
         while (albums.hasNext()) {
             final ProviderAggregator aggregator = ProviderAggregator.getDefault();
@@ -114,4 +135,16 @@ public class Suggestor {
         return null;
     }
 
+    /**
+     * @return The references of the albums of the artist, including the ones linked to it through
+     * their songs in the cache
+     */
+    private Set<String> getAlbumRefs(Artist artist) {
+        final Set<String> refs = new LinkedHashSet<>(artist.getAlbums());
+        final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+        for (Album album : cache.getAlbumsForArtist(artist.getRef())) {
+            refs.add(album.getRef());
+        }
+        return refs;
+    }
 }
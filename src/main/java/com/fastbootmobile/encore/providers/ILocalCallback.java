@@ -49,8 +49,9 @@ public interface ILocalCallback {
     void onProviderConnected(IMusicProvider provider);
 
     /**
-     * Called when a provider returns a search result
-     * @param searchResult The result
+     * Called when a provider returns a search result. Only the references that weren't sent yet
+     * for the query are provided; use ProviderAggregator.getSearchResults to get all of them.
+     * @param searchResult The new results
      */
     void onSearchResult(List<SearchResult> searchResult);
 }
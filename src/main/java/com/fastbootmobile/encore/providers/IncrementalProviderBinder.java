@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.List;
+
+/**
+ * Carries the {@link ProviderSync.IncrementalProvider} calls over the binder of a provider. The
+ * provider AIDL interface lives in the provider library and cannot grow new methods without
+ * breaking existing providers, so these calls use their own transaction codes on the same
+ * binder: providers that support them handle the codes in their onTransact, and the others
+ * reject them as unknown transactions.
+ */
+public final class IncrementalProviderBinder {
+    private static final String DESCRIPTOR =
+            "com.fastbootmobile.encore.providers.IncrementalProvider";
+
+    // Far above the codes generated for the AIDL methods
+    private static final int TRANSACTION_GET_SYNC_TOKEN = IBinder.LAST_CALL_TRANSACTION - 3;
+    private static final int TRANSACTION_GET_CHANGED = IBinder.LAST_CALL_TRANSACTION - 2;
+    private static final int TRANSACTION_GET_REMOVED = IBinder.LAST_CALL_TRANSACTION - 1;
+
+    private IncrementalProviderBinder() {
+    }
+
+    /**
+     * Returns a proxy issuing the incremental calls on the provided provider binder. Whether the
+     * provider supports them is only known from the first call: the proxy returns a null sync
+     * token for providers that don't.
+     */
+    public static ProviderSync.IncrementalProvider asInterface(IBinder binder) {
+        return new Proxy(binder);
+    }
+
+    /**
+     * Handles the incremental calls on the provider side. Call this first from the onTransact
+     * of the provider binder.
+     * @return true if the transaction was an incremental call and has been handled
+     */
+    public static boolean onTransact(ProviderSync.IncrementalProvider provider, int code,
+                                     Parcel data, Parcel reply) throws RemoteException {
+        switch (code) {
+            case TRANSACTION_GET_SYNC_TOKEN:
+                data.enforceInterface(DESCRIPTOR);
+                String token = provider.getSyncToken();
+                reply.writeNoException();
+                reply.writeString(token);
+                return true;
+
+            case TRANSACTION_GET_CHANGED:
+                data.enforceInterface(DESCRIPTOR);
+                List<Song> songs = provider.getSongsChangedSince(data.readString(),
+                        data.readInt(), data.readInt());
+                reply.writeNoException();
+                reply.writeInt(songs != null ? 1 : 0);
+                reply.writeTypedList(songs);
+                return true;
+
+            case TRANSACTION_GET_REMOVED:
+                data.enforceInterface(DESCRIPTOR);
+                List<String> refs = provider.getSongsRemovedSince(data.readString());
+                reply.writeNoException();
+                reply.writeStringList(refs);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private static class Proxy implements ProviderSync.IncrementalProvider {
+        private final IBinder mRemote;
+
+        Proxy(IBinder remote) {
+            mRemote = remote;
+        }
+
+        @Override
+        public String getSyncToken() throws RemoteException {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                if (!transact(TRANSACTION_GET_SYNC_TOKEN, data, reply)) {
+                    return null;
+                }
+                reply.readException();
+                return reply.readString();
+            } finally {
+                reply.recycle();
+                data.recycle();
+            }
+        }
+
+        @Override
+        public List<Song> getSongsChangedSince(String token, int offset, int limit)
+                throws RemoteException {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                data.writeString(token);
+                data.writeInt(offset);
+                data.writeInt(limit);
+                if (!transact(TRANSACTION_GET_CHANGED, data, reply)) {
+                    return null;
+                }
+                reply.readException();
+                if (reply.readInt() == 0) {
+                    return null;
+                }
+                return reply.createTypedArrayList(Song.CREATOR);
+            } finally {
+                reply.recycle();
+                data.recycle();
+            }
+        }
+
+        @Override
+        public List<String> getSongsRemovedSince(String token) throws RemoteException {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                data.writeString(token);
+                if (!transact(TRANSACTION_GET_REMOVED, data, reply)) {
+                    return null;
+                }
+                reply.readException();
+                return reply.createStringArrayList();
+            } finally {
+                reply.recycle();
+                data.recycle();
+            }
+        }
+
+        private boolean transact(int code, Parcel data, Parcel reply) throws RemoteException {
+            // Providers that don't know the code report it as an unknown transaction
+            return mRemote.transact(code, data, reply, 0);
+        }
+    }
+}
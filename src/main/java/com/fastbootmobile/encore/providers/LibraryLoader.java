@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Single pipeline loading the songs library of all providers. The paging itself is done once by
+ * the {@link ProviderAggregator} sync; this class streams the pages to any number of
+ * subscribers, and requests arriving while a load is running simply join it instead of paging
+ * the providers again.
+ */
+public class LibraryLoader {
+    private static final String TAG = "LibraryLoader";
+
+    /**
+     * Time during which the result of a completed load is served from the cache instead of
+     * running a new load
+     */
+    private static final long RESULT_VALIDITY = 60 * 1000;
+
+    /**
+     * Receives the songs of the library as they are loaded. Callbacks are made on the aggregator
+     * background thread. Subscribers are automatically unsubscribed after onLoadFinished.
+     */
+    public interface SongsSubscriber {
+        /**
+         * Called with each batch of songs that haven't been delivered yet during this load
+         */
+        void onSongsLoaded(List<Song> songs);
+
+        /**
+         * Called once every provider has been loaded
+         */
+        void onLoadFinished();
+    }
+
+    private final ProviderAggregator mAggregator;
+    private final List<SongsSubscriber> mSubscribers = new ArrayList<>();
+    private final List<Song> mPublished = new ArrayList<>();
+    private final Set<String> mPublishedRefs = new HashSet<>();
+    private boolean mLoading;
+    private long mLastLoadTime;
+
+    LibraryLoader(ProviderAggregator aggregator) {
+        mAggregator = aggregator;
+    }
+
+    /**
+     * @return The library loader of the default aggregator
+     */
+    public static LibraryLoader getDefault() {
+        return ProviderAggregator.getDefault().getLibraryLoader();
+    }
+
+    /**
+     * Subscribes to the songs of the library. If a load is already running, the songs already
+     * loaded are delivered right away and the subscriber follows the running load. If a load
+     * completed recently, the cached songs are delivered. Otherwise, a new load is started.
+     *
+     * @param subscriber The subscriber
+     */
+    public void subscribe(SongsSubscriber subscriber) {
+        final List<Song> replay;
+        final boolean finished;
+
+        synchronized (this) {
+            if (mLoading) {
+                replay = new ArrayList<>(mPublished);
+                finished = false;
+                mSubscribers.add(subscriber);
+            } else if (System.currentTimeMillis() - mLastLoadTime < RESULT_VALIDITY) {
+                replay = mAggregator.getCache().getAllSongs();
+                finished = true;
+            } else {
+                startLoadLocked();
+                replay = new ArrayList<>(mPublished);
+                finished = false;
+                mSubscribers.add(subscriber);
+            }
+        }
+
+        if (replay.size() > 0) {
+            subscriber.onSongsLoaded(replay);
+        }
+        if (finished) {
+            subscriber.onLoadFinished();
+        }
+    }
+
+    /**
+     * Stops delivering songs to the provided subscriber
+     */
+    public synchronized void unsubscribe(SongsSubscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /**
+     * Loads the whole library and waits for the load to finish. This must not be called from the
+     * main thread.
+     *
+     * @return All the songs of the library, or the songs loaded so far if the calling thread
+     *         has been interrupted
+     */
+    public List<Song> loadAllSongs() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("loadAllSongs called on the main thread");
+        }
+
+        final List<Song> output = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SongsSubscriber subscriber = new SongsSubscriber() {
+            @Override
+            public void onSongsLoaded(List<Song> songs) {
+                synchronized (output) {
+                    output.addAll(songs);
+                }
+            }
+
+            @Override
+            public void onLoadFinished() {
+                latch.countDown();
+            }
+        };
+
+        subscribe(subscriber);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            unsubscribe(subscriber);
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (output) {
+            return new ArrayList<>(output);
+        }
+    }
+
+    /**
+     * Starts a new load unless one is already running or a load completed recently. Subscribers
+     * and the aggregator callbacks receive the songs as they are loaded.
+     */
+    public synchronized void requestLoad() {
+        if (!mLoading && System.currentTimeMillis() - mLastLoadTime >= RESULT_VALIDITY) {
+            startLoadLocked();
+        }
+    }
+
+    private void startLoadLocked() {
+        onLoadStartedLocked();
+        mAggregator.requestLibrarySync();
+    }
+
+    private void onLoadStartedLocked() {
+        if (!mLoading) {
+            mLoading = true;
+            mPublished.clear();
+            mPublishedRefs.clear();
+
+            // Start with what we already know, e.g. from the cache snapshot
+            filterNewSongsLocked(mAggregator.getCache().getAllSongs());
+        }
+    }
+
+    /**
+     * Called by the aggregator when it starts paging the providers
+     */
+    void onLoadStarted() {
+        final List<Song> songs;
+        final List<SongsSubscriber> subscribers;
+
+        synchronized (this) {
+            if (mLoading) {
+                return;
+            }
+
+            onLoadStartedLocked();
+            songs = new ArrayList<>(mPublished);
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+
+        deliver(subscribers, songs);
+    }
+
+    /**
+     * Called by the aggregator with each page of songs received from a provider
+     */
+    void onSongsPage(List<Song> songs) {
+        final List<Song> newSongs;
+        final List<SongsSubscriber> subscribers;
+
+        synchronized (this) {
+            if (!mLoading) {
+                return;
+            }
+
+            newSongs = filterNewSongsLocked(songs);
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+
+        deliver(subscribers, newSongs);
+    }
+
+    /**
+     * Called by the aggregator once all the providers have been paged
+     */
+    void onLoadFinished() {
+        final List<SongsSubscriber> subscribers;
+
+        synchronized (this) {
+            mLoading = false;
+            mLastLoadTime = System.currentTimeMillis();
+            mPublished.clear();
+            mPublishedRefs.clear();
+
+            subscribers = new ArrayList<>(mSubscribers);
+            mSubscribers.clear();
+        }
+
+        for (SongsSubscriber subscriber : subscribers) {
+            try {
+                subscriber.onLoadFinished();
+            } catch (Exception e) {
+                Log.e(TAG, "Subscriber threw an exception", e);
+            }
+        }
+    }
+
+    private List<Song> filterNewSongsLocked(List<Song> songs) {
+        List<Song> output = new ArrayList<>();
+        for (Song song : songs) {
+            if (song != null && mPublishedRefs.add(song.getRef())) {
+                output.add(song);
+            }
+        }
+        mPublished.addAll(output);
+        return output;
+    }
+
+    private void deliver(List<SongsSubscriber> subscribers, List<Song> songs) {
+        if (songs.isEmpty()) {
+            return;
+        }
+
+        // All subscribers share the same read-only batch
+        final List<Song> batch = Collections.unmodifiableList(songs);
+        for (SongsSubscriber subscriber : subscribers) {
+            try {
+                subscriber.onSongsLoaded(batch);
+            } catch (Exception e) {
+                Log.e(TAG, "Subscriber threw an exception", e);
+            }
+        }
+    }
+}
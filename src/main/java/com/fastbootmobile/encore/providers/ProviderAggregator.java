@@ -22,7 +22,6 @@ import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -30,6 +29,7 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Genre;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.SearchResult;
@@ -40,6 +40,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -51,17 +52,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private static final int PROPAGATION_DELAY = 200;
     private static final boolean DEBUG = false;
 
-    private final Map<String, List<SearchResult>> mCachedSearches;
     private final List<ILocalCallback> mUpdateCallbacks;
     private final List<ProviderConnection> mProviders;
     private ProviderCache mCache;
+    private ProviderCacheSnapshot mSnapshot;
+    private ProviderSync mSync;
+    private final LibraryLoader mLibraryLoader;
     private Handler mMainHandler;
     private HandlerThread mBackHandlerThread;
     private Handler mBackHandler;
-    private final List<Song> mPostedUpdateSongs = new ArrayList<>();
-    private final List<Album> mPostedUpdateAlbums = new ArrayList<>();
-    private final List<Artist> mPostedUpdateArtists = new ArrayList<>();
-    private final List<Playlist> mPostedUpdatePlaylists = new ArrayList<>();
+    private ProviderUpdateBus mUpdateBus;
+    private final SearchCoordinator mSearchCoordinator;
+    private final SearchPlanner mSearchPlanner;
     private List<String> mRosettaStonePrefix = new ArrayList<>();
     private Map<String, ProviderIdentifier> mRosettaStoneMap = new HashMap<>();
     private ThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(4);
@@ -69,66 +71,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private boolean mIsOfflineMode = false;
     private List<OfflineModeListener> mOfflineModeListeners = new ArrayList<>();
 
-    private Runnable mPostSongsRunnable = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (mPostedUpdateSongs) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onSongUpdate(new ArrayList<>(mPostedUpdateSongs));
-                    }
-                }
-                mPostedUpdateSongs.clear();
-            }
-        }
-    };
-
-    private Runnable mPostAlbumsRunnable = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (mPostedUpdateAlbums) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onAlbumUpdate(new ArrayList<>(mPostedUpdateAlbums));
-                    }
-                }
-                mPostedUpdateAlbums.clear();
-            }
-        }
-    };
-
-    private Runnable mPostArtistsRunnable = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (mPostedUpdateArtists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onArtistUpdate(new ArrayList<>(mPostedUpdateArtists));
-                    }
-                }
-                mPostedUpdateArtists.clear();
-            }
-        }
-    };
-
-    private Runnable mPostPlaylistsRunnable = new Runnable() {
+    private Runnable mUpdatePlaylistsRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (mPostedUpdatePlaylists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onPlaylistUpdate(new ArrayList<>(mPostedUpdatePlaylists));
-                    }
-                }
-                mPostedUpdatePlaylists.clear();
+            mLibraryLoader.onLoadStarted();
+            try {
+                syncProviders();
+            } finally {
+                mLibraryLoader.onLoadFinished();
             }
         }
-    };
 
-
-    private Runnable mUpdatePlaylistsRunnable = new Runnable() {
-        @Override
-        public void run() {
+        private void syncProviders() {
             // We make a copy to avoid synchronization issues and needless locks
             ArrayList<ProviderConnection> providers;
             synchronized (mProviders) {
@@ -140,45 +94,46 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 try {
                     IMusicProvider binder = conn.getBinder();
                     if (binder != null && binder.isSetup() && binder.isAuthenticated()) {
+                        final ProviderIdentifier id = conn.getIdentifier();
                         List<Playlist> playlist = binder.getPlaylists();
+                        confirmPlaylists(id, playlist);
                         ensurePlaylistsSongsCached(conn, playlist);
 
-                        // Cache all songs in batch
-                        int offset = 0;
-                        int limit = 100;
-                        boolean goForIt = true;
-
-                        while (goForIt) {
-                            try {
-                                List<Song> songs = binder.getSongs(offset, limit);
-
-                                if (songs == null || songs.size() == 0) {
-                                    goForIt = false;
-                                } else {
-                                    cacheSongs(conn, songs);
-
-                                    if (songs.size() < limit) {
-                                        goForIt = false;
+                        // Cache all songs in batch, or only what changed since the last sync
+                        final int result = mSync.syncSongs(conn, mCache,
+                                new ProviderSync.SongsPageListener() {
+                                    @Override
+                                    public void onSongsPage(ProviderIdentifier provider,
+                                                            List<Song> songs) {
+                                        confirmSongs(provider, songs);
+                                        cacheSongs(conn, songs);
+                                        mLibraryLoader.onSongsPage(songs);
                                     }
+                                });
 
-                                    offset += limit;
-                                }
-                            } catch (TransactionTooLargeException ignore) {
-                                limit -= 10;
-                                Log.w(TAG, "Got transaction size error, reducing limit to " + limit);
-                            }
-                        }
-
+                        boolean complete = (result == ProviderSync.RESULT_FULL);
                         try {
-                            cacheAlbums(conn, binder.getAlbums());
+                            List<Album> albums = binder.getAlbums();
+                            confirmEntities(id, albums);
+                            cacheAlbums(conn, albums);
                         } catch (Exception e) {
                             Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getAlbums", e);
+                            complete = false;
                         }
 
                         try {
-                            cacheArtists(conn, binder.getArtists());
+                            List<Artist> artists = binder.getArtists();
+                            confirmEntities(id, artists);
+                            cacheArtists(conn, artists);
                         } catch (Exception e) {
                             Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getArtists", e);
+                            complete = false;
+                        }
+
+                        // After a full sync, drop what the snapshot restored but the provider
+                        // doesn't have anymore
+                        if (complete && mSnapshot != null) {
+                            mSnapshot.reconcile(id);
                         }
                     } else if (conn.getBinder() != null) {
                         Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
@@ -207,14 +162,17 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * Default constructor
      */
     private ProviderAggregator() {
-        mUpdateCallbacks = new ArrayList<>();
+        mUpdateCallbacks = new CopyOnWriteArrayList<>();
         mProviders = new ArrayList<>();
         mCache = new ProviderCache();
+        mLibraryLoader = new LibraryLoader(this);
         mMainHandler = new Handler();
-        mCachedSearches = new HashMap<>();
         mBackHandlerThread = new HandlerThread("ProviderAggregator");
         mBackHandlerThread.start();
         mBackHandler = new Handler(mBackHandlerThread.getLooper());
+        mUpdateBus = new ProviderUpdateBus(mBackHandler, PROPAGATION_DELAY);
+        mSearchCoordinator = new SearchCoordinator(mCache, mUpdateCallbacks, mBackHandler);
+        mSearchPlanner = new SearchPlanner(this, mSearchCoordinator, mBackHandler);
     }
 
     @Override
@@ -225,6 +183,93 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     public void setContext(Context ctx) {
         mContext = ctx;
+        mSync = new ProviderSync(ctx);
+
+        if (mSnapshot == null) {
+            mSnapshot = new ProviderCacheSnapshot(ctx, mBackHandlerThread.getLooper());
+            mBackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSnapshot.load(mCache) > 0) {
+                        postCachedEntitiesForUpdate();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the callbacks of everything currently in the cache, so that the UI can show the
+     * entities restored from the snapshot while providers are still connecting.
+     */
+    private void postCachedEntitiesForUpdate() {
+        for (Song song : mCache.getAllSongs()) {
+            postSongForUpdate(song);
+        }
+        for (Album album : mCache.getAllAlbums()) {
+            postAlbumForUpdate(album);
+        }
+        for (Artist artist : mCache.getAllArtists()) {
+            postArtistForUpdate(artist);
+        }
+        for (Playlist playlist : mCache.getAllPlaylists()) {
+            postPlaylistForUpdate(playlist);
+        }
+    }
+
+    /**
+     * Removes all the cached data of a provider, including its persisted snapshot. This should
+     * be called when a provider is uninstalled.
+     *
+     * @param id The identifier of the provider
+     */
+    public void forgetProvider(ProviderIdentifier id) {
+        mCache.purgeCacheForProvider(id);
+        if (mSnapshot != null) {
+            mSnapshot.forgetProvider(id);
+        }
+    }
+
+    private void confirmSongs(ProviderIdentifier id, List<Song> songs) {
+        if (mSnapshot == null || songs == null) {
+            return;
+        }
+
+        for (Song song : songs) {
+            if (song != null) {
+                mSnapshot.confirm(id, song.getRef());
+                mSnapshot.confirm(id, song.getAlbum());
+                mSnapshot.confirm(id, song.getArtist());
+            }
+        }
+    }
+
+    private void confirmPlaylists(ProviderIdentifier id, List<Playlist> playlists) {
+        if (mSnapshot == null || playlists == null) {
+            return;
+        }
+
+        for (Playlist playlist : playlists) {
+            if (playlist != null) {
+                mSnapshot.confirm(id, playlist.getRef());
+                Iterator<String> songs = playlist.songs();
+                while (songs.hasNext()) {
+                    mSnapshot.confirm(id, songs.next());
+                }
+            }
+        }
+    }
+
+    private void confirmEntities(ProviderIdentifier id, List<? extends BoundEntity> entities) {
+        if (mSnapshot == null || entities == null) {
+            return;
+        }
+
+        for (BoundEntity entity : entities) {
+            if (entity != null) {
+                mSnapshot.confirm(id, entity.getRef());
+            }
+        }
     }
 
     /**
@@ -234,6 +279,22 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         return mCache;
     }
 
+    /**
+     * @return The shared library loader
+     */
+    public LibraryLoader getLibraryLoader() {
+        return mLibraryLoader;
+    }
+
+    /**
+     * Schedules a sync of the playlists and songs of all the providers. Consumers wanting the
+     * songs should go through {@link LibraryLoader} instead.
+     */
+    void requestLibrarySync() {
+        mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
+        mBackHandler.post(mUpdatePlaylistsRunnable);
+    }
+
     /**
      * Registers a LocalCallback class, which will be called when various events happen from
      * any of the registered providers.
@@ -241,9 +302,21 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to add
      */
     public void addUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.add(cb);
-        }
+        addUpdateCallback(cb, ProviderUpdateBus.TYPE_ALL, null);
+    }
+
+    /**
+     * Registers a LocalCallback class, only receiving entity updates of the provided types and
+     * provider. Other events (provider connection, search results, playlist removals) are
+     * always delivered.
+     *
+     * @param cb The callback to add
+     * @param types A mask of ProviderUpdateBus.TYPE_* values
+     * @param provider The provider to filter on, or null for all providers
+     */
+    public void addUpdateCallback(ILocalCallback cb, int types, ProviderIdentifier provider) {
+        mUpdateCallbacks.add(cb);
+        mUpdateBus.subscribe(cb, types, provider);
     }
 
     /**
@@ -252,9 +325,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to remove
      */
     public void removeUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.remove(cb);
-        }
+        mUpdateCallbacks.remove(cb);
+        mUpdateBus.unsubscribe(cb);
     }
 
     public void cacheSongs(final ProviderConnection provider, final List<Song> songs) {
@@ -264,7 +336,15 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             @Override
             public void run() {
                 for (Song song : songs) {
-                    mCache.putSong(provider.getIdentifier(), song);
+                    if (song == null) {
+                        continue;
+                    }
+
+                    // Only touch the cache for songs that actually changed
+                    Song cached = mCache.getSong(song.getRef());
+                    if (cached == null || !cached.isIdentical(song)) {
+                        mCache.putSong(provider.getIdentifier(), song);
+                    }
                 }
             }
         });
@@ -589,10 +669,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         }
 
                         // Notify subclasses of the new provider
-                        synchronized (mUpdateCallbacks) {
-                            for (ILocalCallback cb : mUpdateCallbacks) {
-                                cb.onProviderConnected(binder);
-                            }
+                        for (ILocalCallback cb : mUpdateCallbacks) {
+                            cb.onProviderConnected(binder);
                         }
                     }
                 } catch (RemoteException e) {
@@ -693,25 +771,62 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     /**
-     * Starts a search. Results will be given in onSearchResults
+     * Starts a search. Results will be given in onSearchResults, each call only carrying the
+     * results a provider added since the previous ones. Searches for queries started earlier
+     * are cancelled.
      * @param query The terms to look for
      */
     public void startSearch(final String query) {
+        startSearch(query, true);
+    }
+
+    /**
+     * Sends a search to all the providers
+     * @param query The terms to look for
+     * @param replay Whether the results already known for this query should be given again
+     */
+    void startSearch(final String query, boolean replay) {
+        List<IMusicProvider> binders = new ArrayList<>();
         List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
         for (ProviderConnection providerConnection : providers) {
+            final IMusicProvider binder = providerConnection.getBinder();
+            if (binder != null) {
+                binders.add(binder);
+            } else {
+                Log.e(TAG, "Null binder, cannot search on " + providerConnection.getIdentifier());
+            }
+        }
+
+        if (mSearchCoordinator.beginQuery(query, binders.size(), replay)) {
+            // Fresh results from all providers are cached, they have been replayed
+            return;
+        }
+
+        for (IMusicProvider binder : binders) {
             try {
-                final IMusicProvider binder = providerConnection.getBinder();
-                if (binder != null) {
-                    binder.startSearch(query);
-                } else {
-                    Log.e(TAG, "Null binder, cannot search on " + providerConnection.getIdentifier());
-                }
+                binder.startSearch(query);
             } catch (RemoteException e) {
                 Log.e(TAG, "Cannot run search on a provider", e);
             }
         }
     }
 
+    /**
+     * @return The planner to use for searches typed by the user
+     */
+    public SearchPlanner getSearchPlanner() {
+        return mSearchPlanner;
+    }
+
+    /**
+     * Returns the merged results of all providers for a search started through startSearch
+     * @param query The query
+     * @return One result per provider, or null if there are no results cached for this query
+     */
+    public List<SearchResult> getSearchResults(final String query) {
+        return mSearchCoordinator.getResults(query);
+    }
+
     /**
      * Returns the list of all cached playlists. At the same time, providers will be called for
      * updates and/or fetching playlists, and LocalCallbacks will be called when providers notify
@@ -720,8 +835,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @return A list of playlists
      */
     public List<Playlist> getAllPlaylists() {
-        mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
-        mBackHandler.post(mUpdatePlaylistsRunnable);
+        requestLibrarySync();
         return mCache.getAllPlaylists();
     }
 
@@ -730,35 +844,19 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     public void postSongForUpdate(Song s) {
-        mBackHandler.removeCallbacks(mPostSongsRunnable);
-        synchronized (mPostedUpdateSongs) {
-            mPostedUpdateSongs.add(s);
-        }
-        mBackHandler.postDelayed(mPostSongsRunnable, PROPAGATION_DELAY);
+        mUpdateBus.postSong(s);
     }
 
     public void postAlbumForUpdate(Album a) {
-        mBackHandler.removeCallbacks(mPostAlbumsRunnable);
-        synchronized (mPostedUpdateAlbums) {
-            mPostedUpdateAlbums.add(a);
-        }
-        mBackHandler.postDelayed(mPostAlbumsRunnable, PROPAGATION_DELAY);
+        mUpdateBus.postAlbum(a);
     }
 
     public void postArtistForUpdate(Artist a) {
-        mBackHandler.removeCallbacks(mPostArtistsRunnable);
-        synchronized (mPostedUpdateArtists) {
-            mPostedUpdateArtists.add(a);
-        }
-        mBackHandler.postDelayed(mPostArtistsRunnable, PROPAGATION_DELAY);
+        mUpdateBus.postArtist(a);
     }
 
     public void postPlaylistForUpdate(Playlist p) {
-        mBackHandler.removeCallbacks(mPostPlaylistsRunnable);
-        synchronized (mPostedUpdatePlaylists) {
-            mPostedUpdatePlaylists.add(p);
-        }
-        mBackHandler.postDelayed(mPostPlaylistsRunnable, PROPAGATION_DELAY);
+        mUpdateBus.postPlaylist(p);
     }
 
     public List<String> getRosettaStonePrefix() {
@@ -795,8 +893,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         Log.d(TAG, "onLoggedIn(" + success + ")");
         if (success) {
             // Cache data
-            mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
-            mBackHandler.post(mUpdatePlaylistsRunnable);
+            requestLibrarySync();
         } else {
             mMainHandler.post(new Runnable() {
                 @Override
@@ -867,6 +964,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     // Set offline information
                     cached.setOfflineCapable(p.isOfflineCapable());
                     cached.setOfflineStatus(p.getOfflineStatus());
+
+                    // Persist the updated playlist
+                    mCache.putPlaylist(provider, cached);
                 }
             }
 
@@ -907,10 +1007,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mCache.removePlaylist(ref);
         }
 
-        synchronized (mUpdateCallbacks) {
-            for (ILocalCallback cb : mUpdateCallbacks) {
-                cb.onPlaylistRemoved(ref);
-            }
+        for (ILocalCallback cb : mUpdateCallbacks) {
+            cb.onPlaylistRemoved(ref);
         }
     }
 
@@ -945,6 +1043,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     cached.setOfflineStatus(s.getOfflineStatus());
                     cached.setAvailable(s.isAvailable());
                     cached.setIsLoaded(s.isLoaded());
+                    mCache.indexSong(cached);
                     changed = true;
                 }
             }
@@ -964,6 +1063,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
                     if (album != null) {
                         artist.addAlbum(album.getRef());
+                        mCache.linkArtistAlbum(artist.getRef(), album.getRef());
                     }
                 }
             }
@@ -1014,6 +1114,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 }
             }
 
+            // Refresh the album to songs index
+            mCache.putAlbum(provider, cached);
+
             modified = true;
         }
 
@@ -1036,6 +1139,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
                         if (artist != null) {
                             artist.addAlbum(a.getRef());
+                            mCache.linkArtistAlbum(artistRef, a.getRef());
                         } else {
                             if (DEBUG) Log.e(TAG, "Artist is null!");
                         }
@@ -1068,9 +1172,12 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             cached.setName(a.getName());
             Iterator<String> it = a.albums();
             while (it.hasNext()) {
-                cached.addAlbum(it.next());
+                String albumRef = it.next();
+                cached.addAlbum(albumRef);
+                mCache.linkArtistAlbum(cached.getRef(), albumRef);
             }
             cached.setIsLoaded(a.isLoaded());
+            mCache.putArtist(provider, cached);
             postArtistForUpdate(a);
         }
     }
@@ -1103,67 +1210,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         Log.d(TAG, "Got new search results for '" + searchResult.getQuery()
                 + "' from " + searchResult.getIdentifier().mName);
 
-        final String query = searchResult.getQuery();
-
-        if (!mCachedSearches.containsKey(query)) {
-            // No cached results for this query, add this one
-            Log.d(TAG, "New search cache for '" + query + "'");
-            List<SearchResult> results = new ArrayList<>();
-            results.add(searchResult);
-            mCachedSearches.put(query, results);
-
-            // Feed results to the callback
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(results);
-                }
-            }
-        } else {
-            // We already have cached results for this query, add new results
-            Log.d(TAG, "Updating search result for '" + query + "'");
-            List<SearchResult> cachedResults = mCachedSearches.get(query);
-
-            SearchResult cachedResult = null;
-            for (SearchResult tmpResult : cachedResults) {
-                if (tmpResult.getIdentifier().equals(searchResult.getIdentifier())) {
-                    cachedResult = tmpResult;
-                }
-            }
-
-            if (cachedResult == null) {
-                cachedResults.add(searchResult);
-            } else {
-                cachedResult.setIdentifier(searchResult.getIdentifier());
-                for (String song : searchResult.getSongsList()) {
-                    if (!cachedResult.getSongsList().contains(song)) {
-                        cachedResult.getSongsList().add(song);
-                    }
-                }
-                for (String artist : searchResult.getArtistList()) {
-                    if (!cachedResult.getArtistList().contains(artist)) {
-                        cachedResult.getArtistList().add(artist);
-                    }
-                }
-                for (String album : searchResult.getAlbumsList()) {
-                    if (!cachedResult.getAlbumsList().contains(album)) {
-                        cachedResult.getAlbumsList().add(album);
-                    }
-                }
-                for (String playlist : searchResult.getPlaylistList()) {
-                    if (!cachedResult.getPlaylistList().contains(playlist)) {
-                        cachedResult.getPlaylistList().add(playlist);
-                    }
-                }
-            }
-
-            // Feed updated results to the callbacks
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(cachedResults);
-                }
-            }
-        }
-
+        mSearchCoordinator.onSearchResult(searchResult);
     }
 
     /**
@@ -6,116 +6,198 @@ import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Caches information gotten by providers
+ * Caches information gotten by providers. Reads are lock-free, and secondary indexes
+ * (provider to refs, album to songs, artist to albums) are maintained on each write so that
+ * purges and relationship lookups don't have to scan the whole cache.
  */
 public class ProviderCache {
-    private final Map<String, Playlist> mPlaylists;
-    private final Map<String, Song> mSongs;
-    private final Map<String, ProviderIdentifier> mRefProvider;
-    private final Map<String, Album> mAlbums;
-    private final Map<String, Artist> mArtists;
+    private final ConcurrentMap<String, Playlist> mPlaylists;
+    private final ConcurrentMap<String, Song> mSongs;
+    private final ConcurrentMap<String, ProviderIdentifier> mRefProvider;
+    private final ConcurrentMap<String, Album> mAlbums;
+    private final ConcurrentMap<String, Artist> mArtists;
     private final List<Playlist> mMultiProviderPlaylists;
 
+    // Secondary indexes. mSongAlbum and mAlbumArtist remember what a song or album was last
+    // indexed under, so that stale links can be dropped when it changes.
+    private final ConcurrentMap<ProviderIdentifier, Set<String>> mProviderRefs;
+    private final ConcurrentMap<String, Set<String>> mAlbumSongs;
+    private final ConcurrentMap<String, Set<String>> mArtistAlbums;
+    private final ConcurrentMap<String, Set<String>> mAlbumArtists;
+    private final ConcurrentMap<String, String> mSongAlbum;
+    private final ConcurrentMap<String, String> mAlbumArtist;
+
+    private ProviderCacheSnapshot mSnapshot;
+
     /**
      * Default constructor
      */
     public ProviderCache() {
-        mPlaylists = new HashMap<>();
-        mSongs = new HashMap<>();
-        mRefProvider = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mMultiProviderPlaylists = new ArrayList<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mSongs = new ConcurrentHashMap<>();
+        mRefProvider = new ConcurrentHashMap<>();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mMultiProviderPlaylists = new CopyOnWriteArrayList<>();
+
+        mProviderRefs = new ConcurrentHashMap<>();
+        mAlbumSongs = new ConcurrentHashMap<>();
+        mArtistAlbums = new ConcurrentHashMap<>();
+        mAlbumArtists = new ConcurrentHashMap<>();
+        mSongAlbum = new ConcurrentHashMap<>();
+        mAlbumArtist = new ConcurrentHashMap<>();
     }
 
     /**
-     * Purges the cache in case the provider may change for the specified provider
+     * Sets the snapshot that will persist the entities written to this cache
      */
-    public void purgeCacheForProvider(ProviderIdentifier id) {
-        List<String> keysToRemove;
-
-        // Playlists
-        synchronized (mPlaylists) {
-            Set<Map.Entry<String, Playlist>> playlists = mPlaylists.entrySet();
-            keysToRemove = new ArrayList<>();
+    void setSnapshot(ProviderCacheSnapshot snapshot) {
+        mSnapshot = snapshot;
+    }
 
-            for (Map.Entry<String, Playlist> item : playlists) {
-                if (item.getValue() == null || item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+    /**
+     * Returns the set stored at the provided key, creating it atomically if needed
+     */
+    private static <K> Set<String> indexSet(ConcurrentMap<K, Set<String>> index, K key) {
+        Set<String> set = index.get(key);
+        if (set == null) {
+            Set<String> newSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            set = index.putIfAbsent(key, newSet);
+            if (set == null) {
+                set = newSet;
             }
+        }
+        return set;
+    }
 
+    private void indexRef(final ProviderIdentifier provider, final String ref) {
+        if (provider == null) {
+            return;
+        }
 
-            for (String key : keysToRemove) {
-                mPlaylists.remove(key);
+        ProviderIdentifier previous = mRefProvider.put(ref, provider);
+        if (previous != null && !previous.equals(provider)) {
+            Set<String> previousRefs = mProviderRefs.get(previous);
+            if (previousRefs != null) {
+                previousRefs.remove(ref);
             }
         }
+        indexSet(mProviderRefs, provider).add(ref);
 
-        // Songs
-        synchronized (mSongs) {
-            Set<Map.Entry<String, Song>> songs = mSongs.entrySet();
-            keysToRemove.clear();
+        if (mSnapshot != null) {
+            mSnapshot.markDirty(ref);
+        }
+    }
 
-            for (Map.Entry<String, Song> item : songs) {
-                if (item.getValue().getProvider() != null
-                        && item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
+    /**
+     * Purges the cache in case the provider may change for the specified provider
+     */
+    public void purgeCacheForProvider(ProviderIdentifier id) {
+        Set<String> refs = mProviderRefs.remove(id);
+        if (refs == null) {
+            return;
+        }
 
+        for (String ref : refs) {
+            mRefProvider.remove(ref, id);
+            removeEntity(ref);
 
-            for (String key : keysToRemove) {
-                mSongs.remove(key);
+            if (mSnapshot != null) {
+                mSnapshot.markRemoved(ref);
             }
         }
+    }
 
-        // Albums
-        synchronized (mAlbums) {
-            Set<Map.Entry<String, Album>> albums = mAlbums.entrySet();
-            keysToRemove.clear();
-
-            for (Map.Entry<String, Album> item : albums) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-            for (String key : keysToRemove) {
-                mAlbums.remove(key);
+    /**
+     * Removes an entity, whatever its type, from the cache and its snapshot
+     * @param ref The reference of the entity to remove
+     */
+    public void remove(final String ref) {
+        ProviderIdentifier provider = mRefProvider.remove(ref);
+        if (provider != null) {
+            Set<String> refs = mProviderRefs.get(provider);
+            if (refs != null) {
+                refs.remove(ref);
             }
         }
 
-        // Artists
-        synchronized (mArtists) {
-            Set<Map.Entry<String, Artist>> artists = mArtists.entrySet();
-            keysToRemove.clear();
+        removeEntity(ref);
+
+        if (mSnapshot != null) {
+            mSnapshot.markRemoved(ref);
+        }
+    }
+
+    private void removeEntity(final String ref) {
+        mPlaylists.remove(ref);
+
+        if (mSongs.remove(ref) != null) {
+            unindexSongAlbum(ref);
+        }
 
-            for (Map.Entry<String, Artist> item : artists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
+        if (mAlbums.remove(ref) != null) {
+            mAlbumSongs.remove(ref);
+            mAlbumArtist.remove(ref);
+
+            Set<String> artists = mAlbumArtists.remove(ref);
+            if (artists != null) {
+                for (String artistRef : artists) {
+                    Set<String> albums = mArtistAlbums.get(artistRef);
+                    if (albums != null) {
+                        albums.remove(ref);
+                    }
                 }
             }
+        }
 
-            for (String key : keysToRemove) {
-                mArtists.remove(key);
+        if (mArtists.remove(ref) != null) {
+            Set<String> albums = mArtistAlbums.remove(ref);
+            if (albums != null) {
+                for (String albumRef : albums) {
+                    Set<String> artists = mAlbumArtists.get(albumRef);
+                    if (artists != null) {
+                        artists.remove(ref);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * @return The total number of entities cached
+     */
+    public int size() {
+        return mSongs.size() + mAlbums.size() + mArtists.size() + mPlaylists.size();
+    }
+
     public ProviderIdentifier getRefProvider(final String ref) {
         return mRefProvider.get(ref);
     }
 
-    public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
-        synchronized (mPlaylists) {
-            mPlaylists.put(pl.getRef(), pl);
+    /**
+     * @return The references of all the entities currently cached for the provided provider
+     */
+    public Set<String> getRefsForProvider(final ProviderIdentifier provider) {
+        Set<String> refs = mProviderRefs.get(provider);
+        if (refs == null) {
+            return Collections.emptySet();
+        } else {
+            return Collections.unmodifiableSet(refs);
         }
-        mRefProvider.put(pl.getRef(), provider);
+    }
+
+    public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
+        mPlaylists.put(pl.getRef(), pl);
+        indexRef(provider, pl.getRef());
     }
 
     public void putAllProviderPlaylist(List<Playlist> playlists) {
@@ -123,21 +205,15 @@ public class ProviderCache {
     }
 
     Playlist getPlaylist(final String ref) {
-        synchronized(mPlaylists) {
-            return mPlaylists.get(ref);
-        }
+        return mPlaylists.get(ref);
     }
 
     public List<Playlist> getAllPlaylists() {
-        synchronized (mPlaylists) {
-            return new ArrayList<>(mPlaylists.values());
-        }
+        return new ArrayList<>(mPlaylists.values());
     }
 
     public void removePlaylist(String ref) {
-        synchronized (mPlaylists) {
-            mPlaylists.remove(ref);
-        }
+        remove(ref);
     }
 
     public List<Playlist> getAllMultiProviderPlaylists() {
@@ -149,54 +225,171 @@ public class ProviderCache {
     }
 
     public List<Artist> getAllArtists() {
-        synchronized (mArtists) {
-            return new ArrayList<>(mArtists.values());
-        }
+        return new ArrayList<>(mArtists.values());
     }
 
     public List<Album> getAllAlbums() {
-        synchronized (mAlbums) {
-            return new ArrayList<>(mAlbums.values());
-        }
+        return new ArrayList<>(mAlbums.values());
     }
 
     public void putSong(final ProviderIdentifier provider, final Song song) {
-        synchronized (mSongs) {
-            mSongs.put(song.getRef(), song);
+        mSongs.put(song.getRef(), song);
+        indexRef(provider, song.getRef());
+        indexSong(song);
+    }
+
+    /**
+     * Refreshes the album and artist indexes of a song that has been modified in place
+     * @param song The cached song whose album or artist may have changed
+     */
+    public void indexSong(final Song song) {
+        final String songRef = song.getRef();
+        final String albumRef = song.getAlbum();
+
+        if (albumRef == null) {
+            unindexSongAlbum(songRef);
+        } else {
+            String previous = mSongAlbum.put(songRef, albumRef);
+            if (previous != null && !previous.equals(albumRef)) {
+                Set<String> songs = mAlbumSongs.get(previous);
+                if (songs != null) {
+                    songs.remove(songRef);
+                }
+            }
+            indexSet(mAlbumSongs, albumRef).add(songRef);
+
+            final String artistRef = song.getArtist();
+            if (artistRef != null) {
+                // Songs carry the album's artist: if it changed, the album no longer belongs to
+                // the artist we indexed it under before
+                String previousArtist = mAlbumArtist.put(albumRef, artistRef);
+                if (previousArtist != null && !previousArtist.equals(artistRef)) {
+                    unlinkArtistAlbum(previousArtist, albumRef);
+                }
+                linkArtistAlbum(artistRef, albumRef);
+            }
+        }
+
+        if (mSnapshot != null) {
+            mSnapshot.markDirty(songRef);
+        }
+    }
+
+    private void unindexSongAlbum(final String songRef) {
+        String previous = mSongAlbum.remove(songRef);
+        if (previous != null) {
+            Set<String> songs = mAlbumSongs.get(previous);
+            if (songs != null) {
+                songs.remove(songRef);
+            }
         }
-        mRefProvider.put(song.getRef(), provider);
     }
 
     Song getSong(final String ref) {
-        synchronized (mSongs) {
-            return mSongs.get(ref);
+        return mSongs.get(ref);
+    }
+
+    /**
+     * Returns the cached songs known to belong to the provided album, as indexed from the songs
+     * put in the cache.
+     * @param albumRef The reference of the album
+     * @return A list of songs, possibly empty
+     */
+    public List<Song> getSongsForAlbum(final String albumRef) {
+        Set<String> refs = mAlbumSongs.get(albumRef);
+        if (refs == null) {
+            return new ArrayList<>();
+        }
+
+        List<Song> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            Song song = mSongs.get(ref);
+            if (song != null) {
+                output.add(song);
+            }
         }
+        return output;
     }
 
     public void putAlbum(final ProviderIdentifier provider, final Album album) {
-        synchronized (mAlbums) {
-            mAlbums.put(album.getRef(), album);
-            mRefProvider.put(album.getRef(), provider);
+        mAlbums.put(album.getRef(), album);
+        indexRef(provider, album.getRef());
+
+        Set<String> songs = indexSet(mAlbumSongs, album.getRef());
+        Iterator<String> it = album.songs();
+        while (it.hasNext()) {
+            songs.add(it.next());
         }
     }
 
     Album getAlbum(final String ref) {
-        synchronized (mAlbums) {
-            return mAlbums.get(ref);
+        return mAlbums.get(ref);
+    }
+
+    /**
+     * Returns the cached albums known to belong to the provided artist
+     * @param artistRef The reference of the artist
+     * @return A list of albums, possibly empty
+     */
+    public List<Album> getAlbumsForArtist(final String artistRef) {
+        Set<String> refs = mArtistAlbums.get(artistRef);
+        if (refs == null) {
+            return new ArrayList<>();
+        }
+
+        List<Album> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            Album album = mAlbums.get(ref);
+            if (album != null) {
+                output.add(album);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @return true if the provided album is known to belong to the provided artist
+     */
+    public boolean isAlbumOfArtist(final String artistRef, final String albumRef) {
+        Set<String> refs = mArtistAlbums.get(artistRef);
+        return refs != null && refs.contains(albumRef);
+    }
+
+    /**
+     * Records that the provided album belongs to the provided artist
+     */
+    public void linkArtistAlbum(final String artistRef, final String albumRef) {
+        if (artistRef != null && albumRef != null) {
+            indexSet(mArtistAlbums, artistRef).add(albumRef);
+            indexSet(mAlbumArtists, albumRef).add(artistRef);
+        }
+    }
+
+    private void unlinkArtistAlbum(final String artistRef, final String albumRef) {
+        Set<String> albums = mArtistAlbums.get(artistRef);
+        if (albums != null) {
+            albums.remove(albumRef);
+        }
+
+        Set<String> artists = mAlbumArtists.get(albumRef);
+        if (artists != null) {
+            artists.remove(artistRef);
         }
     }
 
     public void putArtist(final ProviderIdentifier provider, final Artist artist) {
-        synchronized (mArtists) {
-            mArtists.put(artist.getRef(), artist);
-            mRefProvider.put(artist.getRef(), provider);
+        mArtists.put(artist.getRef(), artist);
+        indexRef(provider, artist.getRef());
+
+        indexSet(mArtistAlbums, artist.getRef());
+        Iterator<String> it = artist.albums();
+        while (it.hasNext()) {
+            linkArtistAlbum(artist.getRef(), it.next());
         }
     }
 
     Artist getArtist(final String ref) {
-        synchronized (mArtists) {
-            return mArtists.get(ref);
-        }
+        return mArtists.get(ref);
     }
 
 }
@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persists the contents of the {@link ProviderCache} in a compact binary append-only log so that
+ * the library can be displayed right away on cold start, before providers are even connected.
+ * Entities written to the cache are appended in batches; the file is memory-mapped and replayed
+ * on startup, and compacted when it holds too many superseded records.
+ */
+public class ProviderCacheSnapshot {
+    private static final String TAG = "ProviderCacheSnapshot";
+
+    private static final String FILE_NAME = "provider_cache.bin";
+    private static final int MAGIC = 0x454E4353; // 'ENCS'
+    private static final int VERSION = 1;
+    private static final int FLUSH_DELAY = 2000;
+    private static final int COMPACT_MIN_RECORDS = 2000;
+
+    private static final byte RECORD_PROVIDER = 1;
+    private static final byte RECORD_SONG = 2;
+    private static final byte RECORD_ALBUM = 3;
+    private static final byte RECORD_ARTIST = 4;
+    private static final byte RECORD_PLAYLIST = 5;
+    private static final byte RECORD_REMOVE = 6;
+    private static final byte RECORD_FORGET_PROVIDER = 7;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final Handler mHandler;
+    private ProviderCache mCache;
+
+    private final Set<String> mDirtyRefs;
+    private final Set<String> mRemovedRefs;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Map<ProviderIdentifier, Integer> mProviderIds = new HashMap<>();
+    private final Map<ProviderIdentifier, Set<String>> mUnconfirmed = new ConcurrentHashMap<>();
+    private int mRecordCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param ctx A valid context
+     * @param looper The looper on which disk writes will be made
+     */
+    public ProviderCacheSnapshot(Context ctx, Looper looper) {
+        mFile = new File(ctx.getFilesDir(), FILE_NAME);
+        mHandler = new Handler(looper);
+        mDirtyRefs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mRemovedRefs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Replays the snapshot into the provided cache and starts tracking it for subsequent writes.
+     * Every restored entity is considered unconfirmed until its provider reports it again, see
+     * {@link #confirm(ProviderIdentifier, String)} and {@link #reconcile(ProviderIdentifier)}.
+     *
+     * @param cache The cache to fill
+     * @return The number of entities restored
+     */
+    public int load(ProviderCache cache) {
+        int restored = 0;
+
+        if (mFile.exists()) {
+            try {
+                restored = replay(cache);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the cache snapshot, starting over", e);
+                resetFile();
+            }
+        }
+
+        mCache = cache;
+        cache.setSnapshot(this);
+        return restored;
+    }
+
+    private int replay(ProviderCache cache) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (size < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid snapshot header");
+            }
+
+            List<ProviderIdentifier> providers = new ArrayList<>();
+            int validPosition = buffer.position();
+            int records = 0;
+
+            try {
+                while (buffer.hasRemaining()) {
+                    readRecord(buffer, cache, providers);
+                    validPosition = buffer.position();
+                    ++records;
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException
+                    | NegativeArraySizeException e) {
+                // The last record has been partially written, drop it so that we can append
+                // after the last valid record.
+                Log.w(TAG, "Truncating partial snapshot record at " + validPosition);
+                channel.truncate(validPosition);
+            }
+
+            for (int i = 0; i < providers.size(); ++i) {
+                mProviderIds.put(providers.get(i), i);
+            }
+            mRecordCount = records;
+        } finally {
+            raf.close();
+        }
+
+        int restored = 0;
+        for (ProviderIdentifier id : mProviderIds.keySet()) {
+            Set<String> refs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            refs.addAll(cache.getRefsForProvider(id));
+            mUnconfirmed.put(id, refs);
+            restored += refs.size();
+        }
+
+        Log.i(TAG, "Restored " + restored + " entities from " + mRecordCount + " records");
+        return restored;
+    }
+
+    private void readRecord(MappedByteBuffer buffer, ProviderCache cache,
+                            List<ProviderIdentifier> providers) throws IOException {
+        final byte type = buffer.get();
+
+        switch (type) {
+            case RECORD_PROVIDER:
+                providers.add(ProviderIdentifier.fromSerialized(readString(buffer)));
+                break;
+
+            case RECORD_SONG: {
+                ProviderIdentifier provider = providers.get(buffer.getShort());
+                Song song = new Song(readString(buffer));
+                readEntity(buffer, song, provider);
+                song.setTitle(readString(buffer));
+                song.setArtist(readString(buffer));
+                song.setAlbum(readString(buffer));
+                song.setDuration(buffer.getInt());
+                song.setYear(buffer.getInt());
+                song.setAvailable(buffer.get() != 0);
+                cache.putSong(provider, song);
+                break;
+            }
+
+            case RECORD_ALBUM: {
+                ProviderIdentifier provider = providers.get(buffer.getShort());
+                Album album = new Album(readString(buffer));
+                readEntity(buffer, album, provider);
+                album.setName(readString(buffer));
+                album.setYear(buffer.getInt());
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; ++i) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        album.addSong(ref);
+                    }
+                }
+                cache.putAlbum(provider, album);
+                break;
+            }
+
+            case RECORD_ARTIST: {
+                ProviderIdentifier provider = providers.get(buffer.getShort());
+                Artist artist = new Artist(readString(buffer));
+                readEntity(buffer, artist, provider);
+                artist.setName(readString(buffer));
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; ++i) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        artist.addAlbum(ref);
+                    }
+                }
+                cache.putArtist(provider, artist);
+                break;
+            }
+
+            case RECORD_PLAYLIST: {
+                ProviderIdentifier provider = providers.get(buffer.getShort());
+                Playlist playlist = new Playlist(readString(buffer));
+                readEntity(buffer, playlist, provider);
+                playlist.setName(readString(buffer));
+                playlist.setOfflineCapable(buffer.get() != 0);
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; ++i) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        playlist.addSong(ref);
+                    }
+                }
+                cache.putPlaylist(provider, playlist);
+                break;
+            }
+
+            case RECORD_REMOVE:
+                cache.remove(readString(buffer));
+                break;
+
+            case RECORD_FORGET_PROVIDER:
+                cache.purgeCacheForProvider(providers.get(buffer.getShort()));
+                break;
+
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void readEntity(MappedByteBuffer buffer, BoundEntity entity,
+                                   ProviderIdentifier provider) {
+        entity.setProvider(provider);
+        entity.setIsLoaded(buffer.get() != 0);
+        entity.setOfflineStatus(buffer.get());
+        entity.setSourceLogo(readString(buffer));
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Marks an entity as written in the cache. It will be appended to the snapshot at the next
+     * flush.
+     * @param ref The reference of the entity
+     */
+    void markDirty(final String ref) {
+        mRemovedRefs.remove(ref);
+        mDirtyRefs.add(ref);
+        scheduleFlush();
+    }
+
+    /**
+     * Marks an entity as removed from the cache
+     * @param ref The reference of the entity
+     */
+    void markRemoved(final String ref) {
+        mDirtyRefs.remove(ref);
+        mRemovedRefs.add(ref);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Notifies that the provider still reports the provided entity
+     */
+    public void confirm(final ProviderIdentifier provider, final String ref) {
+        if (ref == null || provider == null) {
+            return;
+        }
+
+        Set<String> refs = mUnconfirmed.get(provider);
+        if (refs != null) {
+            refs.remove(ref);
+        }
+    }
+
+    /**
+     * Removes from the cache all the entities that were restored from the snapshot for the
+     * provided provider, but that the provider didn't report again during its sync.
+     * @param provider The provider that has just been synced
+     * @return The number of stale entities removed
+     */
+    public int reconcile(final ProviderIdentifier provider) {
+        Set<String> stale = mUnconfirmed.remove(provider);
+        if (stale == null || mCache == null) {
+            return 0;
+        }
+
+        for (String ref : stale) {
+            mCache.remove(ref);
+        }
+
+        if (stale.size() > 0) {
+            Log.i(TAG, "Dropped " + stale.size() + " stale entities from " + provider);
+        }
+        return stale.size();
+    }
+
+    /**
+     * Removes all the data of a provider from the snapshot, e.g. when it is uninstalled
+     */
+    public void forgetProvider(final ProviderIdentifier provider) {
+        mUnconfirmed.remove(provider);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mProviderIds.containsKey(provider)) {
+                    return;
+                }
+
+                DataOutputStream out = null;
+                try {
+                    out = openAppend();
+                    out.writeByte(RECORD_FORGET_PROVIDER);
+                    out.writeShort(mProviderIds.get(provider));
+                    ++mRecordCount;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write to the cache snapshot", e);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends pending entities to the snapshot. Must be called on the snapshot looper.
+     */
+    private void flush() {
+        if (mCache == null) {
+            return;
+        }
+
+        final int liveCount = mCache.size();
+        if (mRecordCount > COMPACT_MIN_RECORDS && mRecordCount > liveCount * 2) {
+            compact();
+            return;
+        }
+
+        if (mDirtyRefs.isEmpty() && mRemovedRefs.isEmpty()) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = openAppend();
+            writeRefs(out, drain(mDirtyRefs));
+
+            for (String ref : drain(mRemovedRefs)) {
+                out.writeByte(RECORD_REMOVE);
+                writeString(out, ref);
+                ++mRecordCount;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write to the cache snapshot", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Rewrites the snapshot from scratch with the current contents of the cache
+     */
+    private void compact() {
+        mDirtyRefs.clear();
+        mRemovedRefs.clear();
+        mProviderIds.clear();
+        mRecordCount = 0;
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (Song song : mCache.getAllSongs()) {
+                writeEntity(out, song);
+            }
+            for (Album album : mCache.getAllAlbums()) {
+                writeEntity(out, album);
+            }
+            for (Artist artist : mCache.getAllArtists()) {
+                writeEntity(out, artist);
+            }
+            for (Playlist playlist : mCache.getAllPlaylists()) {
+                writeEntity(out, playlist);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace the cache snapshot");
+                resetFile();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the cache snapshot", e);
+            resetFile();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private DataOutputStream openAppend() throws IOException {
+        final boolean exists = mFile.exists();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile, exists)));
+        if (!exists) {
+            mProviderIds.clear();
+            mRecordCount = 0;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        return out;
+    }
+
+    private void resetFile() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Unable to delete the cache snapshot");
+        }
+        mProviderIds.clear();
+        mRecordCount = 0;
+    }
+
+    private static List<String> drain(Set<String> refs) {
+        List<String> output = new ArrayList<>(refs.size());
+        Iterator<String> it = refs.iterator();
+        while (it.hasNext()) {
+            output.add(it.next());
+            it.remove();
+        }
+        return output;
+    }
+
+    private void writeRefs(DataOutputStream out, Collection<String> refs) throws IOException {
+        for (String ref : refs) {
+            BoundEntity entity = mCache.getSong(ref);
+            if (entity == null) {
+                entity = mCache.getAlbum(ref);
+            }
+            if (entity == null) {
+                entity = mCache.getArtist(ref);
+            }
+            if (entity == null) {
+                entity = mCache.getPlaylist(ref);
+            }
+
+            if (entity != null) {
+                writeEntity(out, entity);
+            }
+        }
+    }
+
+    private void writeEntity(DataOutputStream out, BoundEntity entity) throws IOException {
+        final ProviderIdentifier provider = mCache.getRefProvider(entity.getRef());
+        if (provider == null) {
+            // Entities that weren't provided by a provider can't be restored
+            return;
+        }
+
+        Integer providerId = mProviderIds.get(provider);
+        if (providerId == null) {
+            providerId = mProviderIds.size();
+            mProviderIds.put(provider, providerId);
+            out.writeByte(RECORD_PROVIDER);
+            writeString(out, provider.serialize());
+            ++mRecordCount;
+        }
+
+        if (entity instanceof Song) {
+            Song song = (Song) entity;
+            out.writeByte(RECORD_SONG);
+            out.writeShort(providerId);
+            writeEntityHeader(out, song);
+            writeString(out, song.getTitle());
+            writeString(out, song.getArtist());
+            writeString(out, song.getAlbum());
+            out.writeInt(song.getDuration());
+            out.writeInt(song.getYear());
+            out.writeByte(song.isAvailable() ? 1 : 0);
+        } else if (entity instanceof Album) {
+            Album album = (Album) entity;
+            out.writeByte(RECORD_ALBUM);
+            out.writeShort(providerId);
+            writeEntityHeader(out, album);
+            writeString(out, album.getName());
+            out.writeInt(album.getYear());
+            writeRefList(out, album.songs(), album.getSongsCount());
+        } else if (entity instanceof Artist) {
+            Artist artist = (Artist) entity;
+            List<String> albums = new ArrayList<>();
+            Iterator<String> it = artist.albums();
+            while (it.hasNext()) {
+                albums.add(it.next());
+            }
+
+            out.writeByte(RECORD_ARTIST);
+            out.writeShort(providerId);
+            writeEntityHeader(out, artist);
+            writeString(out, artist.getName());
+            writeRefList(out, albums.iterator(), albums.size());
+        } else if (entity instanceof Playlist) {
+            Playlist playlist = (Playlist) entity;
+            out.writeByte(RECORD_PLAYLIST);
+            out.writeShort(providerId);
+            writeEntityHeader(out, playlist);
+            writeString(out, playlist.getName());
+            out.writeByte(playlist.isOfflineCapable() ? 1 : 0);
+            writeRefList(out, playlist.songs(), playlist.getSongsCount());
+        } else {
+            return;
+        }
+
+        ++mRecordCount;
+    }
+
+    private static void writeEntityHeader(DataOutputStream out, BoundEntity entity)
+            throws IOException {
+        writeString(out, entity.getRef());
+        out.writeByte(entity.isLoaded() ? 1 : 0);
+        out.writeByte(entity.getOfflineStatus());
+        writeString(out, entity.getLogo());
+    }
+
+    private static void writeRefList(DataOutputStream out, Iterator<String> refs, int count)
+            throws IOException {
+        out.writeInt(count);
+        int written = 0;
+        while (refs.hasNext() && written < count) {
+            writeString(out, refs.next());
+            ++written;
+        }
+
+        // Pad in case the entity got modified while we were writing it
+        while (written < count) {
+            writeString(out, null);
+            ++written;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
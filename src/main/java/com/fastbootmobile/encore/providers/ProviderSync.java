@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pulls the songs of providers, either incrementally for providers that can report the changes
+ * since a sync token, or through the regular getSongs pagination for the others. Page sizes are
+ * adapted from the measured parcel size of the previous pages, so that each Binder transaction
+ * stays well within the transaction buffer.
+ */
+public class ProviderSync {
+    private static final String TAG = "ProviderSync";
+    private static final String PREFS = "ProviderSync";
+    private static final String PREF_TOKEN_PREFIX = "token_";
+
+    /**
+     * Binder transactions share a 1MB buffer per process, aim for a fraction of it
+     */
+    private static final int TARGET_TRANSACTION_BYTES = 256 * 1024;
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 2000;
+
+    public static final int RESULT_FAILED = 0;
+    public static final int RESULT_FULL = 1;
+    public static final int RESULT_DELTA = 2;
+
+    /**
+     * Providers able to report their changes since a previous sync. As the provider AIDL
+     * interface cannot be extended without breaking existing providers, these calls go through
+     * {@link IncrementalProviderBinder}; providers that don't handle them fall back to full
+     * pagination.
+     */
+    public interface IncrementalProvider {
+        /**
+         * @return An opaque token representing the current state of the provider library, or
+         * null if the provider doesn't support incremental syncs
+         */
+        String getSyncToken() throws RemoteException;
+
+        /**
+         * Returns the songs added or modified since the provided token
+         * @param token A token previously returned by getSyncToken
+         * @param offset The offset in the list of changes
+         * @param limit The maximum number of songs to return
+         * @return The list of songs, or null if the token is unknown or expired
+         */
+        List<Song> getSongsChangedSince(String token, int offset, int limit)
+                throws RemoteException;
+
+        /**
+         * @return The references of the songs removed since the provided token
+         */
+        List<String> getSongsRemovedSince(String token) throws RemoteException;
+    }
+
+    /**
+     * Receives the songs pages pulled from a provider
+     */
+    public interface SongsPageListener {
+        void onSongsPage(ProviderIdentifier provider, List<Song> songs);
+    }
+
+    private final SharedPreferences mPrefs;
+    private final Map<ProviderIdentifier, Integer> mLimits = new ConcurrentHashMap<>();
+    private final Map<ProviderIdentifier, IBinder> mNonIncremental = new ConcurrentHashMap<>();
+
+    public ProviderSync(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Synchronizes the songs of the provided provider. Only the songs changed since the last
+     * sync are pulled if the provider supports it.
+     *
+     * @param conn The provider to sync
+     * @param cache The cache from which removed songs are dropped on incremental syncs
+     * @param listener The listener receiving the pulled pages
+     * @return RESULT_DELTA if only changes have been pulled, RESULT_FULL if the whole library
+     *         of the provider has been paged, RESULT_FAILED otherwise
+     */
+    public int syncSongs(ProviderConnection conn, ProviderCache cache,
+                         SongsPageListener listener) throws RemoteException {
+        final IMusicProvider binder = conn.getBinder();
+        final ProviderIdentifier id = conn.getIdentifier();
+        if (binder == null) {
+            return RESULT_FAILED;
+        }
+
+        final IncrementalProvider incremental = getIncremental(binder, id);
+        final String newToken = incremental != null ? incremental.getSyncToken() : null;
+
+        if (newToken != null) {
+            final String prefKey = PREF_TOKEN_PREFIX + id.serialize();
+            final String lastToken = mPrefs.getString(prefKey, null);
+
+            if (lastToken != null && lastToken.equals(newToken)) {
+                // Nothing changed since the last sync
+                return RESULT_DELTA;
+            }
+
+            if (lastToken != null && pageChanges(incremental, id, lastToken, listener)) {
+                List<String> removed = incremental.getSongsRemovedSince(lastToken);
+                if (removed != null) {
+                    for (String ref : removed) {
+                        cache.remove(ref);
+                    }
+                }
+                mPrefs.edit().putString(prefKey, newToken).apply();
+                return RESULT_DELTA;
+            }
+
+            // No usable token, do a full sync and remember where we are
+            if (pageSongs(binder, id, listener)) {
+                mPrefs.edit().putString(prefKey, newToken).apply();
+                return RESULT_FULL;
+            }
+            return RESULT_FAILED;
+        }
+
+        if (incremental != null) {
+            // Don't ask again until the provider reconnects
+            mNonIncremental.put(id, binder.asBinder());
+        }
+
+        return pageSongs(binder, id, listener) ? RESULT_FULL : RESULT_FAILED;
+    }
+
+    private IncrementalProvider getIncremental(IMusicProvider binder, ProviderIdentifier id) {
+        if (binder instanceof IncrementalProvider) {
+            return (IncrementalProvider) binder;
+        } else if (mNonIncremental.get(id) == binder.asBinder()) {
+            return null;
+        } else {
+            return IncrementalProviderBinder.asInterface(binder.asBinder());
+        }
+    }
+
+    private boolean pageChanges(IncrementalProvider provider, ProviderIdentifier id,
+                                String token, SongsPageListener listener) throws RemoteException {
+        int offset = 0;
+        int limit = getLimit(id);
+
+        while (true) {
+            try {
+                List<Song> songs = provider.getSongsChangedSince(token, offset, limit);
+                if (songs == null) {
+                    // Token expired
+                    return false;
+                }
+
+                if (songs.size() == 0) {
+                    return true;
+                }
+
+                listener.onSongsPage(id, songs);
+
+                if (songs.size() < limit) {
+                    return true;
+                }
+
+                offset += songs.size();
+                limit = adaptLimit(id, songs, limit);
+            } catch (TransactionTooLargeException e) {
+                limit = shrinkLimit(id, limit);
+                if (limit < MIN_LIMIT) {
+                    Log.e(TAG, "Transaction failed even at the minimum limit, bailing out", e);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pages all the songs of a provider through getSongs, adapting the page size to the size of
+     * the received parcels.
+     *
+     * @return true if the whole list has been paged, false if paging had to be aborted
+     */
+    public boolean pageSongs(IMusicProvider binder, ProviderIdentifier id,
+                             SongsPageListener listener) throws RemoteException {
+        int offset = 0;
+        int limit = getLimit(id);
+
+        while (true) {
+            try {
+                List<Song> songs = binder.getSongs(offset, limit);
+
+                if (songs == null || songs.size() == 0) {
+                    return true;
+                }
+
+                listener.onSongsPage(id, songs);
+
+                if (songs.size() < limit) {
+                    // Less songs than requested, assume we're at the end
+                    return true;
+                }
+
+                offset += songs.size();
+                limit = adaptLimit(id, songs, limit);
+            } catch (TransactionTooLargeException e) {
+                limit = shrinkLimit(id, limit);
+                if (limit < MIN_LIMIT) {
+                    Log.e(TAG, "Transaction failed even at the minimum limit, bailing out", e);
+                    return false;
+                }
+                Log.w(TAG, "Transaction too large, reducing limit to " + limit);
+            }
+        }
+    }
+
+    private int getLimit(ProviderIdentifier id) {
+        Integer limit = mLimits.get(id);
+        return limit == null ? DEFAULT_LIMIT : limit;
+    }
+
+    private int shrinkLimit(ProviderIdentifier id, int limit) {
+        final int newLimit = limit / 2;
+        if (newLimit >= MIN_LIMIT) {
+            mLimits.put(id, newLimit);
+        }
+        return newLimit;
+    }
+
+    /**
+     * Computes the next page size from the marshalled size of the page we just received
+     */
+    private int adaptLimit(ProviderIdentifier id, List<Song> songs, int limit) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(songs);
+            final int bytesPerSong = Math.max(1, parcel.dataSize() / songs.size());
+            int newLimit = TARGET_TRANSACTION_BYTES / bytesPerSong;
+
+            // Grow progressively, but shrink right away
+            newLimit = Math.min(newLimit, limit * 2);
+            newLimit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, newLimit));
+            mLimits.put(id, newLimit);
+            return newLimit;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to measure the songs parcel size", e);
+            return limit;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Coalesces the entity updates posted by the aggregator and delivers them to the
+ * {@link ILocalCallback}s in a single flush per propagation window. Repeated updates of the same
+ * reference within a window are delivered once, and each subscriber receives the same immutable
+ * batch, optionally filtered by entity type or provider.
+ */
+public class ProviderUpdateBus {
+    private static final String TAG = "ProviderUpdateBus";
+
+    public static final int TYPE_SONG = 1;
+    public static final int TYPE_ALBUM = 1 << 1;
+    public static final int TYPE_ARTIST = 1 << 2;
+    public static final int TYPE_PLAYLIST = 1 << 3;
+    public static final int TYPE_ALL = TYPE_SONG | TYPE_ALBUM | TYPE_ARTIST | TYPE_PLAYLIST;
+
+    private static class Subscription {
+        final ILocalCallback callback;
+        final int types;
+        final ProviderIdentifier provider;
+
+        Subscription(ILocalCallback callback, int types, ProviderIdentifier provider) {
+            this.callback = callback;
+            this.types = types;
+            this.provider = provider;
+        }
+    }
+
+    private final Handler mHandler;
+    private final int mDelay;
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private final Object mLock = new Object();
+    private Map<String, Song> mPendingSongs = new LinkedHashMap<>();
+    private Map<String, Album> mPendingAlbums = new LinkedHashMap<>();
+    private Map<String, Artist> mPendingArtists = new LinkedHashMap<>();
+    private Map<String, Playlist> mPendingPlaylists = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param handler The handler on which updates are delivered
+     * @param delay The propagation window, in milliseconds
+     */
+    public ProviderUpdateBus(Handler handler, int delay) {
+        mHandler = handler;
+        mDelay = delay;
+    }
+
+    /**
+     * Subscribes a callback to the updates of the provided entity types and provider
+     * @param cb The callback
+     * @param types A mask of TYPE_* values
+     * @param provider The provider to filter on, or null to receive updates from all providers
+     */
+    public void subscribe(ILocalCallback cb, int types, ProviderIdentifier provider) {
+        mSubscriptions.add(new Subscription(cb, types, provider));
+    }
+
+    /**
+     * Removes all the subscriptions of the provided callback
+     */
+    public void unsubscribe(ILocalCallback cb) {
+        for (Subscription sub : mSubscriptions) {
+            if (sub.callback == cb) {
+                mSubscriptions.remove(sub);
+            }
+        }
+    }
+
+    public void postSong(Song s) {
+        synchronized (mLock) {
+            mPendingSongs.put(s.getRef(), s);
+            scheduleFlushLocked();
+        }
+    }
+
+    public void postAlbum(Album a) {
+        synchronized (mLock) {
+            mPendingAlbums.put(a.getRef(), a);
+            scheduleFlushLocked();
+        }
+    }
+
+    public void postArtist(Artist a) {
+        synchronized (mLock) {
+            mPendingArtists.put(a.getRef(), a);
+            scheduleFlushLocked();
+        }
+    }
+
+    public void postPlaylist(Playlist p) {
+        synchronized (mLock) {
+            mPendingPlaylists.put(p.getRef(), p);
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        // Unlike a debounce, we don't push the flush back on each post so that a long sync
+        // still delivers its updates progressively.
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mDelay);
+        }
+    }
+
+    private void flush() {
+        final Map<String, Song> songs;
+        final Map<String, Album> albums;
+        final Map<String, Artist> artists;
+        final Map<String, Playlist> playlists;
+
+        // Swap the pending buffers so that posting is never blocked by the delivery
+        synchronized (mLock) {
+            songs = mPendingSongs;
+            albums = mPendingAlbums;
+            artists = mPendingArtists;
+            playlists = mPendingPlaylists;
+            mPendingSongs = new LinkedHashMap<>();
+            mPendingAlbums = new LinkedHashMap<>();
+            mPendingArtists = new LinkedHashMap<>();
+            mPendingPlaylists = new LinkedHashMap<>();
+            mFlushScheduled = false;
+        }
+
+        final Batch<Song> songBatch = new Batch<>(songs.values());
+        final Batch<Album> albumBatch = new Batch<>(albums.values());
+        final Batch<Artist> artistBatch = new Batch<>(artists.values());
+        final Batch<Playlist> playlistBatch = new Batch<>(playlists.values());
+
+        for (Subscription sub : mSubscriptions) {
+            try {
+                if ((sub.types & TYPE_SONG) != 0 && !songBatch.isEmpty()) {
+                    List<Song> batch = songBatch.get(sub.provider);
+                    if (!batch.isEmpty()) {
+                        sub.callback.onSongUpdate(batch);
+                    }
+                }
+                if ((sub.types & TYPE_ALBUM) != 0 && !albumBatch.isEmpty()) {
+                    List<Album> batch = albumBatch.get(sub.provider);
+                    if (!batch.isEmpty()) {
+                        sub.callback.onAlbumUpdate(batch);
+                    }
+                }
+                if ((sub.types & TYPE_ARTIST) != 0 && !artistBatch.isEmpty()) {
+                    List<Artist> batch = artistBatch.get(sub.provider);
+                    if (!batch.isEmpty()) {
+                        sub.callback.onArtistUpdate(batch);
+                    }
+                }
+                if ((sub.types & TYPE_PLAYLIST) != 0 && !playlistBatch.isEmpty()) {
+                    List<Playlist> batch = playlistBatch.get(sub.provider);
+                    if (!batch.isEmpty()) {
+                        sub.callback.onPlaylistUpdate(batch);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Update callback threw an exception", e);
+            }
+        }
+    }
+
+    /**
+     * An immutable batch of entities, along with lazily computed per-provider views
+     */
+    private static class Batch<T extends BoundEntity> {
+        private final List<T> mAll;
+        private Map<ProviderIdentifier, List<T>> mPerProvider;
+
+        Batch(Collection<T> entities) {
+            mAll = Collections.unmodifiableList(new ArrayList<>(entities));
+        }
+
+        boolean isEmpty() {
+            return mAll.isEmpty();
+        }
+
+        List<T> get(ProviderIdentifier provider) {
+            if (provider == null) {
+                return mAll;
+            }
+
+            if (mPerProvider == null) {
+                mPerProvider = new HashMap<>();
+            }
+
+            List<T> filtered = mPerProvider.get(provider);
+            if (filtered == null) {
+                List<T> output = new ArrayList<>();
+                for (T entity : mAll) {
+                    if (provider.equals(entity.getProvider())) {
+                        output.add(entity);
+                    }
+                }
+                filtered = Collections.unmodifiableList(output);
+                mPerProvider.put(provider, filtered);
+            }
+            return filtered;
+        }
+    }
+}
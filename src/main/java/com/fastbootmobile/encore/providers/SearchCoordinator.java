@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.SearchResult;
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the search results sent by the providers. Results are kept per query and per provider
+ * in hash-backed sets ranked against the query, and the callbacks only receive what each
+ * provider response adds to the previous ones. Queries superseded before all providers answered
+ * are cancelled, and completed queries are cached for a limited time.
+ */
+public class SearchCoordinator {
+    private static final String TAG = "SearchCoordinator";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_CACHED_QUERIES = 32;
+    private static final long RESULT_TTL = 5 * 60 * 1000;
+
+    private static final int TYPE_SONG = 0;
+    private static final int TYPE_ALBUM = 1;
+    private static final int TYPE_ARTIST = 2;
+    private static final int TYPE_PLAYLIST = 3;
+    private static final int TYPE_COUNT = 4;
+
+    // Ranks, lower is better. Entities we don't know yet keep the order of the provider.
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_WORD_PREFIX = 2;
+    private static final int RANK_SUBSTRING = 3;
+    private static final int RANK_UNKNOWN = 4;
+
+    private static class Ranked {
+        final String ref;
+        final int rank;
+
+        Ranked(String ref, int rank) {
+            this.ref = ref;
+            this.rank = rank;
+        }
+    }
+
+    private static final Comparator<Ranked> RANK_COMPARATOR = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked lhs, Ranked rhs) {
+            return lhs.rank - rhs.rank;
+        }
+    };
+
+    /**
+     * The references of one type returned by one provider, sorted by rank
+     */
+    private static class RankedSet {
+        private final Set<String> mRefs = new HashSet<>();
+        private final List<Ranked> mSorted = new ArrayList<>();
+
+        /**
+         * Adds the provided references
+         * @return The references that weren't in the set yet, sorted by rank
+         */
+        List<Ranked> addAll(List<Ranked> entries) {
+            List<Ranked> added = new ArrayList<>();
+            for (Ranked entry : entries) {
+                if (mRefs.add(entry.ref)) {
+                    added.add(entry);
+                }
+            }
+
+            // Stable sort, ties keep the order of the provider
+            Collections.sort(added, RANK_COMPARATOR);
+            for (Ranked entry : added) {
+                mSorted.add(upperBound(entry.rank), entry);
+            }
+            return added;
+        }
+
+        private int upperBound(int rank) {
+            int low = 0;
+            int high = mSorted.size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mSorted.get(mid).rank <= rank) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        List<String> refs() {
+            List<String> output = new ArrayList<>(mSorted.size());
+            for (Ranked entry : mSorted) {
+                output.add(entry.ref);
+            }
+            return output;
+        }
+    }
+
+    private static class QueryResults {
+        final String query;
+        final Map<ProviderIdentifier, RankedSet[]> providers = new LinkedHashMap<>();
+        final Set<ProviderIdentifier> responded = new HashSet<>();
+        long startTime;
+        int expectedProviders;
+        boolean cancelled;
+
+        QueryResults(String query) {
+            this.query = query;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        boolean isComplete() {
+            return expectedProviders > 0 && responded.size() >= expectedProviders;
+        }
+
+        RankedSet[] getSets(ProviderIdentifier id) {
+            RankedSet[] sets = providers.get(id);
+            if (sets == null) {
+                sets = new RankedSet[TYPE_COUNT];
+                for (int i = 0; i < TYPE_COUNT; ++i) {
+                    sets[i] = new RankedSet();
+                }
+                providers.put(id, sets);
+            }
+            return sets;
+        }
+
+        List<SearchResult> snapshot() {
+            List<SearchResult> output = new ArrayList<>(providers.size());
+            for (Map.Entry<ProviderIdentifier, RankedSet[]> entry : providers.entrySet()) {
+                final RankedSet[] sets = entry.getValue();
+                output.add(buildResult(query, entry.getKey(), sets[TYPE_SONG].refs(),
+                        sets[TYPE_ALBUM].refs(), sets[TYPE_ARTIST].refs(),
+                        sets[TYPE_PLAYLIST].refs()));
+            }
+            return output;
+        }
+    }
+
+    private final ProviderCache mCache;
+    private final List<ILocalCallback> mCallbacks;
+    private final Handler mHandler;
+    private final Map<String, QueryResults> mQueries =
+            new LinkedHashMap<String, QueryResults>(MAX_CACHED_QUERIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, QueryResults> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            };
+    private String mActiveQuery;
+
+    /**
+     * @param cache The cache used to rank the results by name
+     * @param callbacks The callbacks receiving the results
+     * @param handler The handler on which cached results are replayed
+     */
+    public SearchCoordinator(ProviderCache cache, List<ILocalCallback> callbacks,
+                             Handler handler) {
+        mCache = cache;
+        mCallbacks = callbacks;
+        mHandler = handler;
+    }
+
+    /**
+     * Makes the provided query the active one, and answers it from what is already known: the
+     * cached results of the query itself, or the results of the longest cached query it refines,
+     * filtered on the names of the entities. The query that was previously active is cancelled
+     * if not all providers answered it yet.
+     *
+     * @param query The query
+     * @return true if complete and fresh results are cached for this query, in which case the
+     *         providers don't need to be queried
+     */
+    public boolean preview(final String query) {
+        final List<SearchResult> replay;
+        final boolean complete;
+
+        synchronized (this) {
+            activateLocked(query);
+
+            QueryResults results = getQueryLocked(query);
+            if (results == null) {
+                results = new QueryResults(query);
+                QueryResults prefix = findPrefixLocked(query);
+                if (prefix != null) {
+                    if (DEBUG) Log.d(TAG, "Refining '" + prefix.query + "' into '" + query + "'");
+                    refineLocked(prefix, results);
+                }
+                mQueries.put(query, results);
+            }
+
+            complete = !results.cancelled && results.isComplete();
+            replay = results.snapshot();
+        }
+
+        replay(replay);
+        return complete;
+    }
+
+    /**
+     * Starts tracking a query sent to the providers. The query that was previously active is
+     * cancelled if not all providers answered it yet.
+     *
+     * @param query The query
+     * @param expectedProviders The number of providers that are going to be queried
+     * @param replay Whether the results already known for the query should be replayed to the
+     *               callbacks
+     * @return true if complete and fresh results are cached for this query, in which case the
+     *         providers don't need to be queried again
+     */
+    public boolean beginQuery(final String query, int expectedProviders, boolean replay) {
+        final List<SearchResult> known;
+        final boolean complete;
+
+        synchronized (this) {
+            activateLocked(query);
+
+            QueryResults results = getQueryLocked(query);
+            if (results != null && !results.cancelled && results.isComplete()) {
+                complete = true;
+            } else {
+                if (results == null) {
+                    results = new QueryResults(query);
+                    mQueries.put(query, results);
+                } else {
+                    // Query the providers again, and keep what we already got
+                    results.startTime = System.currentTimeMillis();
+                    results.responded.clear();
+                    results.cancelled = false;
+                }
+                results.expectedProviders = expectedProviders;
+                complete = false;
+            }
+            known = replay ? results.snapshot() : null;
+        }
+
+        if (known != null) {
+            replay(known);
+        }
+
+        return complete;
+    }
+
+    private void activateLocked(String query) {
+        if (mActiveQuery != null && !mActiveQuery.equals(query)) {
+            QueryResults previous = getQueryLocked(mActiveQuery);
+            if (previous != null && !previous.isComplete()) {
+                if (DEBUG) Log.d(TAG, "Cancelling query '" + mActiveQuery + "'");
+                previous.cancelled = true;
+            }
+        }
+        mActiveQuery = query;
+    }
+
+    private void replay(final List<SearchResult> results) {
+        if (!results.isEmpty()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(results);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The longest cached query the provided query starts with, or null
+     */
+    private QueryResults findPrefixLocked(String query) {
+        final String normalized = normalize(query);
+        QueryResults best = null;
+        int bestLength = 0;
+
+        for (QueryResults results : mQueries.values()) {
+            final String candidate = normalize(results.query);
+            if (candidate.length() > bestLength && candidate.length() < normalized.length()
+                    && normalized.startsWith(candidate)) {
+                best = results;
+                bestLength = candidate.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fills the results of a query from the results of a query it refines. Only entities whose
+     * name we know and matches the new query are kept.
+     */
+    private void refineLocked(QueryResults prefix, QueryResults results) {
+        final String normalized = normalize(results.query);
+
+        for (Map.Entry<ProviderIdentifier, RankedSet[]> entry : prefix.providers.entrySet()) {
+            final RankedSet[] prefixSets = entry.getValue();
+            RankedSet[] sets = null;
+
+            for (int type = 0; type < TYPE_COUNT; ++type) {
+                List<Ranked> matches = new ArrayList<>();
+                for (String ref : prefixSets[type].refs()) {
+                    final int rank = rank(getName(type, ref), normalized);
+                    if (rank != RANK_UNKNOWN) {
+                        matches.add(new Ranked(ref, rank));
+                    }
+                }
+
+                if (!matches.isEmpty()) {
+                    if (sets == null) {
+                        sets = results.getSets(entry.getKey());
+                    }
+                    sets[type].addAll(matches);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the merged results of all the providers for the provided query
+     * @param query The query
+     * @return One result per provider, or null if the query isn't cached
+     */
+    public synchronized List<SearchResult> getResults(final String query) {
+        QueryResults results = getQueryLocked(query);
+        if (results == null) {
+            return null;
+        }
+        return results.snapshot();
+    }
+
+    /**
+     * Merges a result sent by a provider, and forwards to the callbacks the references that
+     * weren't known yet for this query
+     */
+    public void onSearchResult(final SearchResult searchResult) {
+        final String query = searchResult.getQuery();
+        final ProviderIdentifier id = searchResult.getIdentifier();
+        final SearchResult diff;
+
+        synchronized (this) {
+            QueryResults results = getQueryLocked(query);
+            if (results == null) {
+                // Searches started directly on a provider aren't tracked through beginQuery
+                results = new QueryResults(query);
+                mQueries.put(query, results);
+            } else if (results.cancelled) {
+                if (DEBUG) Log.d(TAG, "Dropping result for cancelled query '" + query + "'");
+                return;
+            }
+
+            final boolean firstResponse = results.responded.add(id);
+            final RankedSet[] sets = results.getSets(id);
+            final String normalized = normalize(query);
+
+            final List<String> songs = merge(sets[TYPE_SONG], TYPE_SONG,
+                    searchResult.getSongsList(), normalized);
+            final List<String> albums = merge(sets[TYPE_ALBUM], TYPE_ALBUM,
+                    searchResult.getAlbumsList(), normalized);
+            final List<String> artists = merge(sets[TYPE_ARTIST], TYPE_ARTIST,
+                    searchResult.getArtistList(), normalized);
+            final List<String> playlists = merge(sets[TYPE_PLAYLIST], TYPE_PLAYLIST,
+                    searchResult.getPlaylistList(), normalized);
+
+            if (!firstResponse && songs.isEmpty() && albums.isEmpty() && artists.isEmpty()
+                    && playlists.isEmpty()) {
+                // Nothing new from this provider
+                return;
+            }
+
+            diff = buildResult(query, id, songs, albums, artists, playlists);
+        }
+
+        List<SearchResult> output = new ArrayList<>(1);
+        output.add(diff);
+        dispatch(output);
+    }
+
+    private void dispatch(List<SearchResult> results) {
+        for (ILocalCallback cb : mCallbacks) {
+            try {
+                cb.onSearchResult(results);
+            } catch (Exception e) {
+                Log.e(TAG, "Search callback threw an exception", e);
+            }
+        }
+    }
+
+    private QueryResults getQueryLocked(String query) {
+        // Drop the expired queries, there are at most MAX_CACHED_QUERIES of them
+        final long now = System.currentTimeMillis();
+        Iterator<QueryResults> it = mQueries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().startTime > RESULT_TTL) {
+                it.remove();
+            }
+        }
+
+        return mQueries.get(query);
+    }
+
+    private List<String> merge(RankedSet set, int type, List<String> refs, String query) {
+        if (refs == null || refs.isEmpty()) {
+            return new ArrayList<String>();
+        }
+
+        List<Ranked> entries = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            if (ref != null) {
+                entries.add(new Ranked(ref, rank(getName(type, ref), query)));
+            }
+        }
+
+        List<Ranked> added = set.addAll(entries);
+        List<String> output = new ArrayList<>(added.size());
+        for (Ranked entry : added) {
+            output.add(entry.ref);
+        }
+        return output;
+    }
+
+    private String getName(int type, String ref) {
+        switch (type) {
+            case TYPE_SONG:
+                Song song = mCache.getSong(ref);
+                return song != null ? song.getTitle() : null;
+
+            case TYPE_ALBUM:
+                Album album = mCache.getAlbum(ref);
+                return album != null ? album.getName() : null;
+
+            case TYPE_ARTIST:
+                Artist artist = mCache.getArtist(ref);
+                return artist != null ? artist.getName() : null;
+
+            case TYPE_PLAYLIST:
+                Playlist playlist = mCache.getPlaylist(ref);
+                return playlist != null ? playlist.getName() : null;
+
+            default:
+                return null;
+        }
+    }
+
+    private static String normalize(String str) {
+        return str == null ? "" : str.trim().toUpperCase();
+    }
+
+    private static int rank(String name, String query) {
+        if (name == null || query.isEmpty()) {
+            return RANK_UNKNOWN;
+        }
+
+        final String normalized = normalize(name);
+        if (normalized.equals(query)) {
+            return RANK_EXACT;
+        } else if (normalized.startsWith(query)) {
+            return RANK_PREFIX;
+        }
+
+        final int index = normalized.indexOf(query);
+        if (index < 0) {
+            return RANK_UNKNOWN;
+        } else if (!Character.isLetterOrDigit(normalized.charAt(index - 1))) {
+            return RANK_WORD_PREFIX;
+        } else {
+            return RANK_SUBSTRING;
+        }
+    }
+
+    private static SearchResult buildResult(String query, ProviderIdentifier id,
+                                            List<String> songs, List<String> albums,
+                                            List<String> artists, List<String> playlists) {
+        SearchResult result = new SearchResult(query);
+        result.setIdentifier(id);
+        result.setSongsList(songs);
+        result.setAlbumsList(albums);
+        result.setArtistList(artists);
+        result.setPlaylistList(playlists);
+        return result;
+    }
+}
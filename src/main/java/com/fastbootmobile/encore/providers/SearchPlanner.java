@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+
+/**
+ * Plans the searches typed by the user. Each query is answered right away from the results
+ * already known, including the results of a shorter query it refines, while the providers are
+ * only queried once the user stopped typing. Queries superseded in the meantime are cancelled.
+ */
+public class SearchPlanner {
+    private static final int DEBOUNCE_DELAY = 300;
+
+    private final ProviderAggregator mAggregator;
+    private final SearchCoordinator mCoordinator;
+    private final Handler mHandler;
+    private String mPendingQuery;
+
+    private final Runnable mStartSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final String query;
+            synchronized (SearchPlanner.this) {
+                query = mPendingQuery;
+                mPendingQuery = null;
+            }
+
+            if (query != null) {
+                // The known results have already been given by the preview
+                mAggregator.startSearch(query, false);
+            }
+        }
+    };
+
+    SearchPlanner(ProviderAggregator aggregator, SearchCoordinator coordinator, Handler handler) {
+        mAggregator = aggregator;
+        mCoordinator = coordinator;
+        mHandler = handler;
+    }
+
+    /**
+     * Called as the user types a query. Providers are queried once the query didn't change
+     * for a short while.
+     * @param query The query
+     */
+    public void onQueryChanged(final String query) {
+        plan(query, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Called when the user submits a query. Providers are queried right away.
+     * @param query The query
+     */
+    public void submit(final String query) {
+        plan(query, 0);
+    }
+
+    private void plan(final String query, int delay) {
+        mHandler.removeCallbacks(mStartSearchRunnable);
+
+        if (query == null || query.trim().isEmpty()) {
+            synchronized (this) {
+                mPendingQuery = null;
+            }
+            return;
+        }
+
+        final boolean complete = mCoordinator.preview(query);
+        synchronized (this) {
+            mPendingQuery = complete ? null : query;
+        }
+
+        if (!complete) {
+            mHandler.postDelayed(mStartSearchRunnable, delay);
+        }
+    }
+}
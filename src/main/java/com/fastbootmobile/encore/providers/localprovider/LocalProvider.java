@@ -35,6 +35,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 
@@ -68,10 +70,13 @@ public class LocalProvider {
     private Handler mHandler = new Handler();
     private boolean mSetup;
     private boolean mPaused;
-    private SearchResult mSearchResult;
+    private volatile SearchResult mSearchResult;
     private boolean mIsEOS;
     private int mPendingOutIndex = -1;
     private int mPendingSize;
+    private final LocalSearchIndex mSearchIndex = new LocalSearchIndex();
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor();
+    private final LocalSyncJournal mSyncJournal;
 
 
     private final ContentObserver mAlbumContentObserver = new ContentObserver(mHandler) {
@@ -134,6 +139,7 @@ public class LocalProvider {
         mAlbumsId = new HashMap<>();
         mChangeMusic = true;
         mContext = context;
+        mSyncJournal = new LocalSyncJournal(context.getFilesDir());
         mAudioPushRunnable.start();
         mSetup = false;
     }
@@ -212,6 +218,7 @@ public class LocalProvider {
 
                     // we get the contents of the album
                     mAlbums.put(album.getRef(), album);
+                    mSearchIndex.put(LocalSearchIndex.TYPE_ALBUM, album.getRef(), album.getName());
                     mAlbumsId.put(album.getRef(), cur.getLong(idKey));
                 } while (cur.moveToNext());
             }
@@ -229,6 +236,8 @@ public class LocalProvider {
                 MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
 
         if (cur != null) {
+            final List<Song> librarySongs = new ArrayList<>(cur.getCount());
+
             if (cur.moveToFirst()) {
                 // Fetch all the columns we are interested in
                 int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
@@ -271,10 +280,14 @@ public class LocalProvider {
                     final Long albumId = cur.getLong(albumIdColumn);
 
                     mSongs.put(s.getRef(), new LocalSong(s, id, albumId));
+                    mSearchIndex.put(LocalSearchIndex.TYPE_SONG, s.getRef(), s.getTitle());
                     mCallback.songUpdated(s);
+                    librarySongs.add(s);
                 } while (cur.moveToNext());
             }
             cur.close();
+
+            mSyncJournal.update(librarySongs);
         }
 
         for (Album album : mAlbums.values()) {
@@ -310,6 +323,7 @@ public class LocalProvider {
                     if (artist != null) {
                         artist.setSourceLogo(PluginService.LOGO_REF);
                         mArtists.put(artist.getRef(), artist);
+                        mSearchIndex.put(LocalSearchIndex.TYPE_ARTIST, artist.getRef(), artist.getName());
                         mCallback.artistUpdated(artist);
                     }
                 } while (cur.moveToNext());
@@ -349,6 +363,7 @@ public class LocalProvider {
                 play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
                 if (play != null) {
                     mPlaylists.put(play.getRef(), play);
+                    mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, play.getRef(), play.getName());
 
                     // we give to the app the new playlists when we finish polling it
                     mCallback.playlistUpdated(play);
@@ -594,6 +609,41 @@ public class LocalProvider {
         }
     }
 
+    /**
+     * @return The token representing the current state of the local songs
+     */
+    public String getSyncToken() {
+        return mSyncJournal.getToken();
+    }
+
+    /**
+     * Returns the songs added or modified since the provided sync token
+     * @return The list of songs, or null if the changes since the token aren't known
+     */
+    public List<Song> getSongsChangedSince(String token, int offset, int range) {
+        final List<String> refs = mSyncJournal.getChangedSince(token);
+        if (refs == null) {
+            return null;
+        }
+
+        final List<Song> songs = new ArrayList<>();
+        for (int i = offset; i < refs.size() && songs.size() < range; ++i) {
+            LocalSong song = mSongs.get(refs.get(i));
+            if (song != null && song.getSong() != null) {
+                songs.add(song.getSong());
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * @return The references of the songs removed since the provided sync token, or null if the
+     * changes since the token aren't known
+     */
+    public List<String> getSongsRemovedSince(String token) {
+        return mSyncJournal.getRemovedSince(token);
+    }
+
     /**
      * @return returns a list of the songs
      */
@@ -817,6 +867,7 @@ public class LocalProvider {
         mContentResolver.delete(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, where, whereVal);
 
         mPlaylists.remove(playlistRef);
+        mSearchIndex.remove(playlistRef);
         mCallback.playlistRemoved(playlistRef);
 
         // Errors aren't supported for now
@@ -840,6 +891,7 @@ public class LocalProvider {
 
         Playlist playlist = mPlaylists.get(playlistRef);
         playlist.setName(title);
+        mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, playlistRef, title);
 
         mCallback.playlistUpdated(playlist);
 
@@ -938,6 +990,7 @@ public class LocalProvider {
             pl.setName(playlistName);
             pl.setIsLoaded(true);
             mPlaylists.put(ref, pl);
+            mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, ref, playlistName);
             mCallback.playlistUpdated(pl);
 
             return ref;
@@ -1208,79 +1261,38 @@ public class LocalProvider {
     public void startSearch(final String query) {
         Log.d(TAG, "Starting search for " + query);
 
-        final Thread searchThread = new Thread() {
-            public void run() {
-                mSearchResult = new SearchResult(query);
-
-                final List<String> songsList = new ArrayList<>();
-                final List<String> albumList = new ArrayList<>();
-                final List<String> playlistList = new ArrayList<>();
-                final List<String> artistList = new ArrayList<>();
-
-                final String queryUpper = query.toUpperCase();
+        mSearchResult = new SearchResult(query);
+        final SearchResult result = mSearchResult;
 
-                for (LocalSong song : mSongs.values()) {
-                    String title = song.getSong().getTitle();
-
-                    if (title != null) {
-                        if (title.equalsIgnoreCase(query)) {
-                            songsList.add(0, song.getSong().getRef());
-                        } else if (title.toUpperCase().contains(queryUpper)) {
-                            songsList.add(song.getSong().getRef());
-                        }
-                    }
+        mSearchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mSearchResult != result) {
+                    Log.d(TAG, "Query dropped - outdated");
+                    return;
                 }
 
-                for (Album album : mAlbums.values()) {
-                    String name = album.getName();
+                final List<List<String>> matches = mSearchIndex.search(query);
+                final List<String> songsList = matches.get(LocalSearchIndex.TYPE_SONG);
+                final List<String> albumList = matches.get(LocalSearchIndex.TYPE_ALBUM);
+                final List<String> artistList = matches.get(LocalSearchIndex.TYPE_ARTIST);
+                final List<String> playlistList = matches.get(LocalSearchIndex.TYPE_PLAYLIST);
 
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            albumList.add(0, album.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            albumList.add(album.getRef());
-                        }
-                    }
-                }
-                for (Playlist playlist : mPlaylists.values()) {
-                    String name = playlist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            playlistList.add(0, playlist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            playlistList.add(playlist.getRef());
-                        }
-                    }
-                }
-                for (Artist artist : mArtists.values()) {
-                    String name = artist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            artistList.add(0, artist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            artistList.add(artist.getRef());
-                        }
-                    }
-                }
-
-                if (mSearchResult.getQuery().equals(query)) {
+                if (mSearchResult == result) {
                     Log.d(TAG, "Sending result size: "
                             + (songsList.size() + albumList.size() + artistList.size() + playlistList.size()));
 
-                    mSearchResult.setSongsList(songsList);
-                    mSearchResult.setAlbumsList(albumList);
-                    mSearchResult.setArtistList(artistList);
-                    mSearchResult.setPlaylistList(playlistList);
+                    result.setSongsList(songsList);
+                    result.setAlbumsList(albumList);
+                    result.setArtistList(artistList);
+                    result.setPlaylistList(playlistList);
 
-                    mCallback.searchFinished(mSearchResult);
+                    mCallback.searchFinished(result);
                 } else {
                     Log.d(TAG, "Query results dumped - outdated");
                 }
             }
-        };
-        searchThread.start();
+        });
     }
 
 
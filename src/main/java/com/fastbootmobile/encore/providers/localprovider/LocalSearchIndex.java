@@ -0,0 +1,250 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the names of the local songs, albums, artists and playlists.
+ * Names are normalized once when indexed, and trigrams are indexed to answer substring queries
+ * without scanning every entity.
+ */
+public class LocalSearchIndex {
+    public static final int TYPE_SONG = 0;
+    public static final int TYPE_ALBUM = 1;
+    public static final int TYPE_ARTIST = 2;
+    public static final int TYPE_PLAYLIST = 3;
+    private static final int TYPE_COUNT = 4;
+
+    private static final int GRAM_SIZE = 3;
+
+    // Ranks, lower is better
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_WORD_PREFIX = 2;
+    private static final int RANK_SUBSTRING = 3;
+
+    private static class Entry {
+        final String ref;
+        final int type;
+        final String normalized;
+
+        Entry(String ref, int type, String normalized) {
+            this.ref = ref;
+            this.type = type;
+            this.normalized = normalized;
+        }
+    }
+
+    private static class Match {
+        final Entry entry;
+        final int rank;
+
+        Match(Entry entry, int rank) {
+            this.entry = entry;
+            this.rank = rank;
+        }
+    }
+
+    private static final Comparator<Match> MATCH_COMPARATOR = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.rank != rhs.rank) {
+                return lhs.rank - rhs.rank;
+            }
+            if (lhs.entry.normalized.length() != rhs.entry.normalized.length()) {
+                return lhs.entry.normalized.length() - rhs.entry.normalized.length();
+            }
+            return lhs.entry.normalized.compareTo(rhs.entry.normalized);
+        }
+    };
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<String, Set<Entry>> mGrams = new HashMap<>();
+
+    /**
+     * Normalizes a name or a query the same way for indexing and lookups
+     */
+    static String normalize(String str) {
+        return str.trim().toUpperCase();
+    }
+
+    private static Set<String> grams(String normalized) {
+        Set<String> output = new HashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= normalized.length(); ++i) {
+            output.add(normalized.substring(i, i + GRAM_SIZE));
+        }
+        return output;
+    }
+
+    private static void addPosting(Map<String, Set<Entry>> index, String key, Entry entry) {
+        Set<Entry> postings = index.get(key);
+        if (postings == null) {
+            postings = new HashSet<>();
+            index.put(key, postings);
+        }
+        postings.add(entry);
+    }
+
+    private static void removePosting(Map<String, Set<Entry>> index, String key, Entry entry) {
+        Set<Entry> postings = index.get(key);
+        if (postings != null) {
+            postings.remove(entry);
+            if (postings.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Indexes or re-indexes an entity
+     * @param type One of the TYPE_* constants
+     * @param ref The reference of the entity
+     * @param name The searchable name of the entity (may be null)
+     */
+    public void put(int type, String ref, String name) {
+        mLock.writeLock().lock();
+        try {
+            Entry previous = mEntries.get(ref);
+            if (previous != null) {
+                if (name != null && previous.type == type
+                        && previous.normalized.equals(normalize(name))) {
+                    // Nothing changed
+                    return;
+                }
+                removeLocked(previous);
+            }
+
+            if (name == null) {
+                return;
+            }
+
+            Entry entry = new Entry(ref, type, normalize(name));
+            mEntries.put(ref, entry);
+            for (String gram : grams(entry.normalized)) {
+                addPosting(mGrams, gram, entry);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entity from the index
+     */
+    public void remove(String ref) {
+        mLock.writeLock().lock();
+        try {
+            Entry entry = mEntries.get(ref);
+            if (entry != null) {
+                removeLocked(entry);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(Entry entry) {
+        mEntries.remove(entry.ref);
+        for (String gram : grams(entry.normalized)) {
+            removePosting(mGrams, gram, entry);
+        }
+    }
+
+    /**
+     * Searches the index
+     * @param query The query, matched case-insensitively anywhere in the names
+     * @return The ranked references matching the query, one list per TYPE_* constant
+     */
+    public List<List<String>> search(String query) {
+        final String normalized = normalize(query);
+        final List<List<Match>> matches = new ArrayList<>(TYPE_COUNT);
+        for (int i = 0; i < TYPE_COUNT; ++i) {
+            matches.add(new ArrayList<Match>());
+        }
+
+        if (!normalized.isEmpty()) {
+            mLock.readLock().lock();
+            try {
+                for (Entry entry : candidatesLocked(normalized)) {
+                    final int rank = rank(entry.normalized, normalized);
+                    if (rank >= 0) {
+                        matches.get(entry.type).add(new Match(entry, rank));
+                    }
+                }
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        List<List<String>> output = new ArrayList<>(TYPE_COUNT);
+        for (List<Match> typeMatches : matches) {
+            Collections.sort(typeMatches, MATCH_COMPARATOR);
+            List<String> refs = new ArrayList<>(typeMatches.size());
+            for (Match match : typeMatches) {
+                refs.add(match.entry.ref);
+            }
+            output.add(refs);
+        }
+        return output;
+    }
+
+    /**
+     * Returns the entries that may match the query. Queries long enough are resolved through the
+     * smallest trigram posting lists; shorter ones can appear anywhere in a name, so every entry
+     * is a candidate.
+     */
+    private Collection<Entry> candidatesLocked(String query) {
+        if (query.length() >= GRAM_SIZE) {
+            // Intersect the posting lists, starting with the smallest one
+            List<Set<Entry>> postings = new ArrayList<>();
+            for (String gram : grams(query)) {
+                Set<Entry> gramPostings = mGrams.get(gram);
+                if (gramPostings == null) {
+                    return Collections.emptySet();
+                }
+                postings.add(gramPostings);
+            }
+
+            Collections.sort(postings, new Comparator<Set<Entry>>() {
+                @Override
+                public int compare(Set<Entry> lhs, Set<Entry> rhs) {
+                    return lhs.size() - rhs.size();
+                }
+            });
+
+            Set<Entry> output = new HashSet<>(postings.get(0));
+            for (int i = 1; i < postings.size() && !output.isEmpty(); ++i) {
+                output.retainAll(postings.get(i));
+            }
+            return output;
+        } else {
+            return mEntries.values();
+        }
+    }
+
+    private static int rank(String name, String query) {
+        if (name.equals(query)) {
+            return RANK_EXACT;
+        } else if (name.startsWith(query)) {
+            return RANK_PREFIX;
+        }
+
+        final int index = name.indexOf(query);
+        if (index < 0) {
+            return -1;
+        } else if (!Character.isLetterOrDigit(name.charAt(index - 1))) {
+            return RANK_WORD_PREFIX;
+        } else {
+            return RANK_SUBSTRING;
+        }
+    }
+}
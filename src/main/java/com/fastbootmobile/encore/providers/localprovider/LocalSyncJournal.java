@@ -0,0 +1,298 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Persistent journal of the changes to the local songs, so that the app can pull only what
+ * changed since its last sync, across restarts of either process. Every song is stamped with the
+ * generation at which its metadata last changed, and removed songs leave a tombstone. Sync
+ * tokens are the journal id and the current generation.
+ */
+public class LocalSyncJournal {
+    private static final String TAG = "LocalSyncJournal";
+
+    private static final String FILE_NAME = "local_sync_journal.bin";
+    private static final int VERSION = 1;
+    private static final int MAX_TOMBSTONES = 2000;
+
+    private static class Entry {
+        final int signature;
+        final long generation;
+
+        Entry(int signature, long generation) {
+            this.signature = signature;
+            this.generation = generation;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final LinkedHashMap<String, Long> mTombstones = new LinkedHashMap<>();
+    private long mJournalId;
+    private long mGeneration;
+    private long mOldestGeneration;
+    private boolean mLoaded;
+
+    public LocalSyncJournal(File dir) {
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * @return The token representing the current state of the local songs
+     */
+    public synchronized String getToken() {
+        ensureLoaded();
+        return mJournalId + "/" + mGeneration;
+    }
+
+    /**
+     * Records the songs currently in the library. Songs that are new or whose metadata changed
+     * are stamped with a new generation, and songs no longer present are tombstoned.
+     */
+    public synchronized void update(Collection<Song> songs) {
+        ensureLoaded();
+
+        final long generation = mGeneration + 1;
+        final Set<String> present = new HashSet<>();
+        boolean changed = false;
+
+        for (Song song : songs) {
+            final String ref = song.getRef();
+            final int signature = getSignature(song);
+            present.add(ref);
+
+            Entry entry = mEntries.get(ref);
+            if (entry == null || entry.signature != signature) {
+                mEntries.put(ref, new Entry(signature, generation));
+                mTombstones.remove(ref);
+                changed = true;
+            }
+        }
+
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            String ref = it.next();
+            if (!present.contains(ref)) {
+                it.remove();
+                mTombstones.put(ref, generation);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            mGeneration = generation;
+
+            // Forget the oldest removals, tokens from before them will need a full sync
+            Iterator<Map.Entry<String, Long>> tombstones = mTombstones.entrySet().iterator();
+            while (mTombstones.size() > MAX_TOMBSTONES && tombstones.hasNext()) {
+                mOldestGeneration = Math.max(mOldestGeneration, tombstones.next().getValue());
+                tombstones.remove();
+            }
+
+            save();
+        }
+    }
+
+    /**
+     * @return The references of the songs changed since the provided token, oldest changes
+     * first, or null if the token can't be answered
+     */
+    public synchronized List<String> getChangedSince(String token) {
+        ensureLoaded();
+        final long since = parseToken(token);
+        if (since < 0) {
+            return null;
+        }
+
+        final List<Map.Entry<String, Entry>> changes = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().generation > since) {
+                changes.add(entry);
+            }
+        }
+
+        // Keep a stable order so that the changes can be paged
+        Collections.sort(changes, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> lhs, Map.Entry<String, Entry> rhs) {
+                final long lhsGen = lhs.getValue().generation;
+                final long rhsGen = rhs.getValue().generation;
+                if (lhsGen != rhsGen) {
+                    return lhsGen < rhsGen ? -1 : 1;
+                }
+                return lhs.getKey().compareTo(rhs.getKey());
+            }
+        });
+
+        final List<String> refs = new ArrayList<>(changes.size());
+        for (Map.Entry<String, Entry> entry : changes) {
+            refs.add(entry.getKey());
+        }
+        return refs;
+    }
+
+    /**
+     * @return The references of the songs removed since the provided token, or null if the token
+     * can't be answered
+     */
+    public synchronized List<String> getRemovedSince(String token) {
+        ensureLoaded();
+        final long since = parseToken(token);
+        if (since < 0) {
+            return null;
+        }
+
+        final List<String> refs = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : mTombstones.entrySet()) {
+            if (entry.getValue() > since) {
+                refs.add(entry.getKey());
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * @return The generation of the provided token, or -1 if it's not from this journal or too
+     * old for the changes since it to be known
+     */
+    private long parseToken(String token) {
+        if (token == null) {
+            return -1;
+        }
+
+        final int separator = token.indexOf('/');
+        try {
+            if (separator < 0 || Long.parseLong(token.substring(0, separator)) != mJournalId) {
+                return -1;
+            }
+
+            final long generation = Long.parseLong(token.substring(separator + 1));
+            if (generation < mOldestGeneration || generation > mGeneration) {
+                return -1;
+            }
+            return generation;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int getSignature(Song song) {
+        return (song.getTitle() + '\0' + song.getArtist() + '\0' + song.getAlbum() + '\0'
+                + song.getDuration() + '\0' + song.getYear()).hashCode();
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (mFile.exists()) {
+            try {
+                load();
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the sync journal, starting over", e);
+                mEntries.clear();
+                mTombstones.clear();
+            }
+        }
+
+        // A new journal id invalidates the tokens handed out by any previous journal
+        mJournalId = new Random().nextLong() & Long.MAX_VALUE;
+        mGeneration = 0;
+        mOldestGeneration = 0;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported journal version");
+            }
+
+            mJournalId = in.readLong();
+            mGeneration = in.readLong();
+            mOldestGeneration = in.readLong();
+
+            final int entries = in.readInt();
+            for (int i = 0; i < entries; ++i) {
+                String ref = in.readUTF();
+                mEntries.put(ref, new Entry(in.readInt(), in.readLong()));
+            }
+
+            final int tombstones = in.readInt();
+            for (int i = 0; i < tombstones; ++i) {
+                String ref = in.readUTF();
+                mTombstones.put(ref, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeLong(mJournalId);
+            out.writeLong(mGeneration);
+            out.writeLong(mOldestGeneration);
+
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().signature);
+                out.writeLong(entry.getValue().generation);
+            }
+
+            out.writeInt(mTombstones.size());
+            for (Map.Entry<String, Long> entry : mTombstones.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace the sync journal");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the sync journal", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
@@ -24,7 +24,9 @@ import com.fastbootmobile.encore.providers.Constants;
 import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.IProviderCallback;
+import com.fastbootmobile.encore.providers.IncrementalProviderBinder;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.providers.ProviderSync;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -426,10 +428,47 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         return mBinder;
     }
 
+    /*
+    * Incremental sync implementation, called through the provider binder
+    */
+    private final ProviderSync.IncrementalProvider mIncrementalProvider =
+            new ProviderSync.IncrementalProvider() {
+        @Override
+        public String getSyncToken() throws RemoteException {
+            return mLocalProvider.getSyncToken();
+        }
+
+        @Override
+        public List<Song> getSongsChangedSince(String token, int offset, int limit)
+                throws RemoteException {
+            List<Song> songs = mLocalProvider.getSongsChangedSince(token, offset, limit);
+            if (songs != null) {
+                for (Song song : songs) {
+                    if (song.getProvider() == null && mIdentifier != null) {
+                        song.setProvider(mIdentifier);
+                    }
+                }
+            }
+            return songs;
+        }
+
+        @Override
+        public List<String> getSongsRemovedSince(String token) throws RemoteException {
+            return mLocalProvider.getSongsRemovedSince(token);
+        }
+    };
+
     /*
     * Binder Stub implementation
     */
     private IMusicProvider.Stub mBinder = new IMusicProvider.Stub() {
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            return IncrementalProviderBinder.onTransact(mIncrementalProvider, code, data, reply)
+                    || super.onTransact(code, data, reply, flags);
+        }
+
         /**
          * Returns the API Version of this providers.
          * The current API version is: 1
@@ -76,7 +76,7 @@ public class PacManReceiver extends BroadcastReceiver {
                     ProviderIdentifier id = stopPlayingTrack(packages);
 
                     if (id != null) {
-                        ProviderAggregator.getDefault().getCache().purgeCacheForProvider(id);
+                        ProviderAggregator.getDefault().forgetProvider(id);
                     }
                 }
             }
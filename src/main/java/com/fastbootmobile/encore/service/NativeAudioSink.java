@@ -21,15 +21,21 @@ package com.fastbootmobile.encore.service;
 public class NativeAudioSink implements AudioSink {
 
     private NativePlayer mPlayer;
+    private PlaybackClock mClock;
 
     public NativeAudioSink() {
         mPlayer = new NativePlayer();
+        mClock = new PlaybackClock(mPlayer);
     }
 
     public NativePlayer getPlayer() {
         return mPlayer;
     }
 
+    public PlaybackClock getClock() {
+        return mClock;
+    }
+
     @Override
     public void release() {
         mPlayer.shutdown();
@@ -59,6 +65,7 @@ public class NativeAudioSink implements AudioSink {
     @Override
     public void flushSamples() {
         mPlayer.flush();
+        mClock.onFlush();
     }
 
     @Override
@@ -69,6 +76,7 @@ public class NativeAudioSink implements AudioSink {
     @Override
     public void setPaused(boolean pause) {
         mPlayer.setPaused(pause);
+        mClock.setPaused(pause);
     }
 
     public void setMuted(boolean muted) {
@@ -18,6 +18,7 @@ package com.fastbootmobile.encore.service;
 import android.content.Context;
 import android.util.Log;
 
+import com.fastbootmobile.encore.cast.EncodedStreams;
 import com.fastbootmobile.encore.cast.WSStreamer;
 
 import org.java_websocket.WebSocketImpl;
@@ -25,12 +26,15 @@ import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -42,6 +46,11 @@ import javax.net.ssl.TrustManagerFactory;
 public class NativeHub {
     private static final String TAG = "NativeHub";
 
+    /**
+     * Size of the audio mirror, about 3 seconds of 44.1kHz 16 bits stereo audio
+     */
+    private static final int AUDIO_MIRROR_SIZE = 512 * 1024;
+
     static {
         System.loadLibrary("c++_shared");
         System.loadLibrary("protobuf");
@@ -51,10 +60,12 @@ public class NativeHub {
     private WSStreamer mStreamer;
     private WSStreamer mInsecureStreamer;
     private OnSampleWrittenListener mWrittenListener;
+    private final PcmRingBuffer mAudioMirror;
+    private final EncodedStreams mEncodedStreams;
 
     // Used in native code
     private long mHandle;
-    private byte[] mAudioMirrorBuffer;
+    private ByteBuffer mAudioMirrorBuffer;
 
     /**
      * Default constructor
@@ -64,7 +75,9 @@ public class NativeHub {
         WebSocketImpl.DEBUG = false;
 
         // Create the audio mirror buffer to stream audio to WebSocket, and the WS itself
-        mStreamer = new WSStreamer(8887);
+        mAudioMirror = new PcmRingBuffer(AUDIO_MIRROR_SIZE);
+        mEncodedStreams = new EncodedStreams(mAudioMirror);
+        mStreamer = new WSStreamer(8887, mEncodedStreams);
 
         try {
             String STORETYPE = "BKS";
@@ -99,7 +112,7 @@ public class NativeHub {
             Log.e(TAG, "Key couldn't be read from keystore", e);
         }
 
-        mInsecureStreamer = new WSStreamer(8886);
+        mInsecureStreamer = new WSStreamer(8886, mEncodedStreams);
 
         nativeInitialize();
     }
@@ -109,7 +122,7 @@ public class NativeHub {
      */
     public void onStart() {
         if (mAudioMirrorBuffer == null) {
-            mAudioMirrorBuffer = new byte[262144];
+            mAudioMirrorBuffer = mAudioMirror.getBuffer();
         }
         if (mStreamer != null) {
             mStreamer.start();
@@ -187,15 +200,45 @@ public class NativeHub {
         mWrittenListener = listener;
     }
 
-    // Called from native code
+    /**
+     * Returns the ring buffer mirroring the audio written to the sink. Consumers should read it
+     * from their own thread through a {@link PcmRingBuffer.Reader}.
+     */
+    public PcmRingBuffer getAudioMirror() {
+        return mAudioMirror;
+    }
+
+    /**
+     * @return The statistics of the clients connected to the audio streaming servers
+     */
+    public List<WSStreamer.ClientStats> getStreamingClientStats() {
+        List<WSStreamer.ClientStats> stats = new ArrayList<>();
+        if (mStreamer != null) {
+            stats.addAll(mStreamer.getClientStats());
+        }
+        if (mInsecureStreamer != null) {
+            stats.addAll(mInsecureStreamer.getClientStats());
+        }
+        return stats;
+    }
+
+    // Called from native code, on the audio thread, before bytes are copied to the mirror
+    // buffer at the returned position. Always followed by onAudioMirrorWritten.
+    public long onAudioMirrorWriting() {
+        return mAudioMirror.beginWrite();
+    }
+
+    // Called from native code, on the audio thread, once len bytes have been copied to the
+    // mirror buffer
     public void onAudioMirrorWritten(int len, int sampleRate, int channels) {
-        if (mAudioMirrorBuffer != null) {
-            mStreamer.write(mAudioMirrorBuffer, len);
-            mInsecureStreamer.write(mAudioMirrorBuffer, len);
+        // Always commit, even if we've been stopped since, to end the write begun before. The
+        // streamers pick the audio up from their own threads.
+        mAudioMirror.commit(len, sampleRate, channels);
 
+        if (mAudioMirrorBuffer != null) {
             // We use audio mirroring writing for tracking track elapsed time
             if (mWrittenListener != null) {
-                mWrittenListener.onSampleWritten(mAudioMirrorBuffer, len, sampleRate, channels);
+                mWrittenListener.onSampleWritten(len, sampleRate, channels);
             }
         }
     }
@@ -211,6 +254,6 @@ public class NativeHub {
 
 
     public interface OnSampleWrittenListener {
-        void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels);
+        void onSampleWritten(int len, int sampleRate, int channels);
     }
 }
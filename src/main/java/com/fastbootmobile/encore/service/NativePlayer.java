@@ -5,7 +5,7 @@ import android.util.Log;
 /**
  * Native (OpenSL) audio playlist
  */
-public class NativePlayer {
+public class NativePlayer implements PlaybackClock.SinkCounters {
     private static final String TAG = "NativePlayer";
 
     static {
@@ -61,6 +61,14 @@ public class NativePlayer {
         return nativeGetBufferedCount();
     }
 
+    /**
+     * @return The number of samples queued in the player but not yet handed to OpenSL
+     */
+    @Override
+    public int getPendingCount() {
+        return nativeGetPendingCount();
+    }
+
     /**
      * @return The number of dropouts/stutters (buffer underflows) that occured since the last
      * call to flush (or since the beginning of no call to flush has been done)
@@ -73,6 +81,7 @@ public class NativePlayer {
      * @return The number of total written samples since the last call to flush (or since the
      * beginning if no call to flush has been done)
      */
+    @Override
     public long getTotalWrittenSamples() {
         return nativeGetTotalWrittenSamples();
     }
@@ -111,6 +120,7 @@ public class NativePlayer {
     private native int nativeEnqueue(byte[] data, int length);
     private native int nativeEnqueueShort(short[] data, int length);
     private native int nativeGetBufferedCount();
+    private native int nativeGetPendingCount();
     private native int nativeGetUnderflowCount();
     private native long nativeGetTotalWrittenSamples();
     private native void nativeFlush();
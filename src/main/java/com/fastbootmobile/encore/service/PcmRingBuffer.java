@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ring buffer of the PCM audio written to the sink. There is a single producer, the audio
+ * thread, which begins a write, copies into a direct buffer (from native code or through
+ * {@link #write}) and then commits the bytes. Any number of {@link Reader}s follow it at their
+ * own pace on their own threads. Writes and the copies of the readers exclude each other, so a
+ * copy is never torn: the producer never allocates, and waits at most for one copy to finish. A
+ * reader that falls more than the capacity behind loses the overwritten audio and resumes from
+ * the live position.
+ */
+public class PcmRingBuffer {
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriteView;
+    private final int mCapacity;
+    private final int mMask;
+    private final Object mReadersLock = new Object();
+    private final ReentrantLock mCopyLock = new ReentrantLock();
+
+    private volatile long mWritePosition;
+    private volatile int mSampleRate;
+    private volatile int mChannels;
+    private volatile Reader[] mReaders = new Reader[0];
+
+    /**
+     * @param capacity The size of the ring in bytes, rounded up to a power of two
+     */
+    public PcmRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mCapacity = size;
+        mMask = size - 1;
+        mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        mWriteView = mBuffer.duplicate();
+    }
+
+    /**
+     * @return The direct buffer backing the ring. Writers call {@link #beginWrite()}, copy
+     * their data at the returned position modulo the capacity, wrapping at the end, then call
+     * {@link #commit(int, int, int)}.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return The size of the ring in bytes
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The total number of bytes committed since the ring was created
+     */
+    public long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * @return The sample rate of the last committed audio
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return The number of channels of the last committed audio
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Copies audio into the ring and commits it. Must only be called from the producer thread.
+     * @param data The 16 bits PCM data
+     * @param offset The offset of the data in the array
+     * @param len The number of bytes to write
+     */
+    public void write(byte[] data, int offset, int len, int sampleRate, int channels) {
+        if (len > mCapacity) {
+            // Only the most recent audio would remain anyway
+            offset += len - mCapacity;
+            len = mCapacity;
+        }
+
+        final int start = (int) (beginWrite() & mMask);
+        final int first = Math.min(len, mCapacity - start);
+
+        mWriteView.position(start);
+        mWriteView.put(data, offset, first);
+        if (first < len) {
+            mWriteView.position(0);
+            mWriteView.put(data, offset + first, len - first);
+        }
+
+        commit(len, sampleRate, channels);
+    }
+
+    /**
+     * Begins a write, waiting for the readers copying out of the ring to finish. Must only be
+     * called from the producer thread, and be followed by {@link #commit(int, int, int)} on the
+     * same thread, which ends the write.
+     * @return The write position, at which the bytes must be copied
+     */
+    public long beginWrite() {
+        mCopyLock.lock();
+        return mWritePosition;
+    }
+
+    /**
+     * Publishes bytes that have been written into the buffer to the readers, and ends the write
+     * begun with {@link #beginWrite()}. Must only be called from the producer thread.
+     * @return The new write position
+     */
+    public long commit(int len, int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+
+        final long position = mWritePosition + len;
+        mWritePosition = position;
+        mCopyLock.unlock();
+
+        final Reader[] readers = mReaders;
+        for (Reader reader : readers) {
+            final Thread waiter = reader.mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Creates a new reader, starting at the live position
+     */
+    public Reader newReader() {
+        Reader reader = new Reader();
+        synchronized (mReadersLock) {
+            Reader[] readers = new Reader[mReaders.length + 1];
+            System.arraycopy(mReaders, 0, readers, 0, mReaders.length);
+            readers[mReaders.length] = reader;
+            mReaders = readers;
+        }
+        return reader;
+    }
+
+    private void removeReader(Reader reader) {
+        synchronized (mReadersLock) {
+            int index = -1;
+            for (int i = 0; i < mReaders.length; ++i) {
+                if (mReaders[i] == reader) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index >= 0) {
+                Reader[] readers = new Reader[mReaders.length - 1];
+                System.arraycopy(mReaders, 0, readers, 0, index);
+                System.arraycopy(mReaders, index + 1, readers, index, readers.length - index);
+                mReaders = readers;
+            }
+        }
+    }
+
+    /**
+     * Cursor over the ring, to be used from a single thread
+     */
+    public class Reader {
+        private final ByteBuffer mView;
+        private long mReadPosition;
+        private int mOverruns;
+        private volatile Thread mWaiter;
+
+        private Reader() {
+            mView = mBuffer.duplicate();
+            mReadPosition = mWritePosition;
+        }
+
+        /**
+         * @return The number of bytes that can be read, which may exceed the capacity if the
+         * reader has been overrun
+         */
+        public long available() {
+            return mWritePosition - mReadPosition;
+        }
+
+        /**
+         * @return The number of times the reader fell too far behind and lost audio
+         */
+        public int getOverrunCount() {
+            return mOverruns;
+        }
+
+        /**
+         * Reads the available audio, up to len bytes
+         * @return The number of bytes read, or 0 if there was nothing to read or if the reader
+         * has been overrun and skipped to the live position
+         */
+        public int read(byte[] dst, int offset, int len) {
+            // The writer can't overwrite what we copy while we hold the lock, and releasing it
+            // makes the bytes it wrote before visible to us
+            mCopyLock.lock();
+            try {
+                final long available = mWritePosition - mReadPosition;
+                if (available > mCapacity) {
+                    onOverrun();
+                    return 0;
+                }
+
+                len = (int) Math.min(len, available);
+                if (len <= 0) {
+                    return 0;
+                }
+
+                final int start = (int) (mReadPosition & mMask);
+                final int first = Math.min(len, mCapacity - start);
+                mView.position(start);
+                mView.get(dst, offset, first);
+                if (first < len) {
+                    mView.position(0);
+                    mView.get(dst, offset + first, len - first);
+                }
+            } finally {
+                mCopyLock.unlock();
+            }
+
+            mReadPosition += len;
+            return len;
+        }
+
+        /**
+         * @return The position of the reader, in bytes since the ring was created
+         */
+        public long getPosition() {
+            return mReadPosition;
+        }
+
+        /**
+         * Moves the reader forward without reading, for instance to follow another reader that
+         * was at the same position and has just read the same data
+         */
+        public void skip(long len) {
+            mReadPosition = Math.min(mReadPosition + len, mWritePosition);
+        }
+
+        /**
+         * Drops the pending audio and moves the reader to the live position
+         */
+        public void skipToLive() {
+            mReadPosition = mWritePosition;
+        }
+
+        /**
+         * Waits until audio is available to read, the timeout expires, or the thread is
+         * interrupted
+         * @return true if audio is available
+         */
+        public boolean await(long timeout, TimeUnit unit) {
+            if (available() > 0) {
+                return true;
+            }
+
+            mWaiter = Thread.currentThread();
+            try {
+                // Check again now that the producer can see us, so we don't miss a wakeup
+                if (available() == 0) {
+                    LockSupport.parkNanos(this, unit.toNanos(timeout));
+                }
+            } finally {
+                mWaiter = null;
+            }
+
+            return available() > 0;
+        }
+
+        /**
+         * Detaches the reader from the ring
+         */
+        public void close() {
+            removeReader(this);
+        }
+
+        private void onOverrun() {
+            mOverruns++;
+            skipToLive();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.service;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.Build;
+
+/**
+ * Playback position of the current track, derived from the bytes written to the native sink
+ * rather than from accumulated durations. The audio thread anchors the clock on each buffer it
+ * hands to OpenSL, and the position is interpolated from there at the rate of the stream, up to
+ * the end of what was written and minus the latency of the output. Positions are computed from
+ * byte counts, so no rounding builds up over a track, and have a microsecond resolution.
+ * The clock may be read from any thread without locking.
+ */
+public class PlaybackClock {
+    /**
+     * Output latency assumed when the device doesn't report its mixer buffer size
+     */
+    private static final long DEFAULT_OUTPUT_LATENCY_US = 40000;
+
+    /**
+     * The audio track and the mixer each hold about this many mixer buffers past OpenSL
+     */
+    private static final int OUTPUT_BUFFERS = 2;
+
+    /**
+     * Byte counters of the sink the clock follows
+     */
+    interface SinkCounters {
+        /**
+         * @return The number of bytes handed to OpenSL since the last flush
+         */
+        long getTotalWrittenSamples();
+
+        /**
+         * @return The number of bytes queued in the sink but not handed to OpenSL yet
+         */
+        int getPendingCount();
+    }
+
+    private final SinkCounters mPlayer;
+    private final Object mLock = new Object();
+
+    // Written under mLock, bracketed by mSequence being odd so that readers can detect a torn
+    // snapshot and retry instead of locking
+    private volatile int mSequence;
+    private volatile int mBytesPerSecond;
+    private volatile long mBaseBytes;
+    private volatile long mBaseNanos;
+    private volatile long mWrittenBytes;
+    private volatile boolean mPaused;
+    private volatile long mTrackStartBytes;
+    private volatile long mTrackStartUs;
+    private volatile long mLatencyUs = DEFAULT_OUTPUT_LATENCY_US;
+
+    PlaybackClock(SinkCounters player) {
+        mPlayer = player;
+    }
+
+    /**
+     * Estimates the latency of the audio output past OpenSL from the mixer buffer size
+     * @return The latency in microseconds
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    public static long estimateOutputLatencyUs(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            String frames = am.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+            String rate = am.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+
+            try {
+                if (frames != null && rate != null && Integer.parseInt(rate) > 0) {
+                    return OUTPUT_BUFFERS * Integer.parseInt(frames) * 1000000L
+                            / Integer.parseInt(rate);
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        return DEFAULT_OUTPUT_LATENCY_US;
+    }
+
+    /**
+     * Sets the latency between OpenSL consuming the audio and the audio being heard
+     */
+    public void setOutputLatencyUs(long latencyUs) {
+        synchronized (mLock) {
+            mSequence++;
+            mLatencyUs = latencyUs;
+            mSequence++;
+        }
+    }
+
+    /**
+     * Called from the audio thread once a buffer has been handed to OpenSL: the previous ones
+     * have been played by now, and this one starts playing.
+     * @param len The length of the buffer in bytes
+     */
+    public void onSampleWritten(int len, int sampleRate, int channels) {
+        final long written = mPlayer.getTotalWrittenSamples();
+        final long now = System.nanoTime();
+
+        synchronized (mLock) {
+            mSequence++;
+            mBytesPerSecond = sampleRate * channels * 2;
+            mBaseBytes = written - len;
+            mBaseNanos = now;
+            mWrittenBytes = written;
+            mSequence++;
+        }
+    }
+
+    /**
+     * Sets the position of the audio about to be written to the sink, on track start or seek.
+     * The new position is reported right away: while the audio still buffered in the sink is
+     * played, the clock holds at that position, and it starts advancing with the new audio.
+     * @param positionMs The position in the track, in milliseconds
+     */
+    public void setTrackPosition(long positionMs) {
+        synchronized (mLock) {
+            // Only the audio not handed to OpenSL yet is ahead of the written count. A buffer
+            // handed over between the two reads would be counted twice, so read again then.
+            long written;
+            long pending;
+            do {
+                written = mPlayer.getTotalWrittenSamples();
+                pending = mPlayer.getPendingCount();
+            } while (written != mPlayer.getTotalWrittenSamples());
+
+            mSequence++;
+            mTrackStartBytes = written + pending;
+            mTrackStartUs = positionMs * 1000;
+            mSequence++;
+        }
+    }
+
+    /**
+     * Called after the sink has been flushed, which resets its counters
+     */
+    public void onFlush() {
+        synchronized (mLock) {
+            mSequence++;
+            mBaseBytes = 0;
+            mBaseNanos = System.nanoTime();
+            mWrittenBytes = 0;
+            mTrackStartBytes = 0;
+            mSequence++;
+        }
+    }
+
+    /**
+     * Freezes or resumes the clock along with the sink
+     */
+    public void setPaused(boolean paused) {
+        final long now = System.nanoTime();
+
+        synchronized (mLock) {
+            if (paused == mPaused) {
+                return;
+            }
+
+            mSequence++;
+            if (paused) {
+                mBaseBytes = getPipelineBytes(now);
+            }
+            mBaseNanos = now;
+            mPaused = paused;
+            mSequence++;
+        }
+    }
+
+    /**
+     * @return The position heard in the current track, in microseconds
+     */
+    public long getPositionUs() {
+        return getPositionUs(System.nanoTime());
+    }
+
+    /**
+     * @return The position heard in the current track at the provided System.nanoTime(),
+     * in microseconds
+     */
+    public long getPositionUs(long nowNanos) {
+        long position;
+        int sequence;
+
+        do {
+            sequence = mSequence;
+            position = computePositionUs(nowNanos);
+        } while ((sequence & 1) != 0 || sequence != mSequence);
+
+        return position;
+    }
+
+    /**
+     * @return The position heard in the current track, in milliseconds
+     */
+    public int getPositionMs() {
+        return (int) (getPositionUs() / 1000);
+    }
+
+    /**
+     * @return true if the position is currently advancing
+     */
+    public boolean isRunning() {
+        return !mPaused && mBytesPerSecond > 0
+                && getPipelineBytes(System.nanoTime()) < mWrittenBytes;
+    }
+
+    private long getPipelineBytes(long nowNanos) {
+        if (mPaused || mBytesPerSecond <= 0) {
+            return mBaseBytes;
+        }
+
+        // Interpolate at the stream rate, but never past what was actually written
+        final double elapsed = (nowNanos - mBaseNanos) / 1000000000.0;
+        final long bytes = mBaseBytes + (long) (Math.max(0, elapsed) * mBytesPerSecond);
+        return Math.min(mWrittenBytes, bytes);
+    }
+
+    private long computePositionUs(long nowNanos) {
+        final int bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            return mTrackStartUs;
+        }
+
+        final long heard = getPipelineBytes(nowNanos) - mLatencyUs * bytesPerSecond / 1000000;
+        final long trackBytes = Math.max(0, heard - mTrackStartBytes);
+        return mTrackStartUs + (long) (trackBytes * 1000000.0 / bytesPerSecond);
+    }
+}
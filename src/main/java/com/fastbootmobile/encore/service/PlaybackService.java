@@ -127,7 +127,6 @@ public class PlaybackService extends Service
     private List<IPlaybackCallback> mCallbacks;
     private ServiceNotification mNotification;
     private int mCurrentTrack = -1;
-    private long mCurrentTrackElapsedMs;
     private int mState = STATE_STOPPED;
     private boolean mIsResuming;
     private boolean mIsStopping;
@@ -254,6 +253,7 @@ public class PlaybackService extends Service
         // Native playback initialization
         mNativeHub = new NativeHub(getApplicationContext());
         mNativeSink = new NativeAudioSink();
+        mNativeSink.getClock().setOutputLatencyUs(PlaybackClock.estimateOutputLatencyUs(this));
         mNativeHub.setSinkPointer(mNativeSink.getPlayer().getHandle());
         mNativeHub.setOnAudioWrittenListener(this);
         mNativeHub.onStart();
@@ -1016,7 +1016,7 @@ public class PlaybackService extends Service
     }
 
     public int getCurrentTrackPositionImpl() {
-        return (int) mCurrentTrackElapsedMs;
+        return mNativeSink.getClock().getPositionMs();
     }
 
     void seekImpl(final long timeMs) {
@@ -1035,7 +1035,7 @@ public class PlaybackService extends Service
                     try {
                         provider.seek(timeMs);
                         success = true;
-                        mCurrentTrackElapsedMs = timeMs;
+                        mNativeSink.getClock().setTrackPosition(timeMs);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Cannot seek to time", e);
                     } catch (Exception e) {
@@ -1266,6 +1266,19 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public long[] getCurrentTrackPositionAnchor() throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                final PlaybackClock clock = service.mNativeSink.getClock();
+                final long now = System.nanoTime();
+                return new long[] {clock.getPositionUs(now), now, clock.isRunning() ? 1 : 0};
+            } else {
+                return null;
+            }
+        }
+
         @Override
         public Song getCurrentTrack() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1529,12 +1542,11 @@ public class PlaybackService extends Service
                 if (wasPaused) {
                     service.mIsResuming = false;
                 } else {
-                    service.mCurrentTrackElapsedMs = 0;
-
                     // Flush and unpause the sink to clear previous track data (if from user action)
                     if (service.mShouldFlushBuffers) {
                         service.mNativeSink.flushSamples();
                     }
+                    service.mNativeSink.getClock().setTrackPosition(0);
                     service.mNativeSink.setPaused(false);
                 }
 
@@ -1697,9 +1709,7 @@ public class PlaybackService extends Service
 
 
     @Override
-    public void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels) {
-        len = len / 2; // first, we want the number of samples, and we assume 16 bits audio
-        len = len / channels; // then, we count "mono"
-        mCurrentTrackElapsedMs += len * 1000 / sampleRate;
+    public void onSampleWritten(int len, int sampleRate, int channels) {
+        mNativeSink.getClock().onSampleWritten(len, sampleRate, channels);
     }
 }
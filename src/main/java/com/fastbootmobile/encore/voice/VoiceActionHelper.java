@@ -219,6 +219,14 @@ public class VoiceActionHelper implements VoiceCommander.ResultListener {
     }
 
     public void onSearchResult(List<SearchResult> results) {
+        if (results != mPreviousSearchResults && !results.isEmpty()) {
+            // Callbacks only carry the new results, match against all of them
+            List<SearchResult> allResults = ProviderAggregator.getDefault()
+                    .getSearchResults(results.get(0).getQuery());
+            if (allResults != null) {
+                results = allResults;
+            }
+        }
         mPreviousSearchResults = results;
 
         // Match the result to one or multiple songs. We first try to look for an exact match,
@@ -152,7 +152,7 @@ public class WebSocketImpl implements WebSocket {
 		assert ( socketBuffer.hasRemaining() );
 
 		if( DEBUG )
-			System.out.println( "process(" + socketBuffer.remaining() + "): {" + ( socketBuffer.remaining() > 1000 ? "too big to display" : new String( socketBuffer.array(), socketBuffer.position(), socketBuffer.remaining() ) ) + "}" );
+			System.out.println( "process(" + socketBuffer.remaining() + "): {" + ( socketBuffer.remaining() > 1000 ? "too big to display" : ( socketBuffer.hasArray() ? new String( socketBuffer.array(), socketBuffer.arrayOffset() + socketBuffer.position(), socketBuffer.remaining() ) : "no backing array" ) ) + "}" );
 
 		if( readystate != READYSTATE.NOT_YET_CONNECTED ) {
 			decodeFrames( socketBuffer );;
@@ -588,6 +588,20 @@ public class WebSocketImpl implements WebSocket {
 		write( draft.createBinaryFrame( framedata ) );
 	}
 
+	/**
+	 * Queues frames that have already been encoded with the draft of this connection, for instance frames shared with other connections.
+	 * The frames are queued as read-only views, so their content and position are left untouched.
+	 * 
+	 * @throws WebsocketNotConnectedException
+	 */
+	public void sendEncodedFrames( List<ByteBuffer> frames ) throws WebsocketNotConnectedException {
+		if( !isOpen() )
+			throw new WebsocketNotConnectedException();
+		for( ByteBuffer frame : frames ) {
+			write( frame.asReadOnlyBuffer() );
+		}
+	}
+
 	@Override
 	public boolean hasBufferedData() {
 		return !this.outQueue.isEmpty();
@@ -637,7 +651,7 @@ public class WebSocketImpl implements WebSocket {
 
 	private void write( ByteBuffer buf ) {
 		if( DEBUG )
-			System.out.println( "write(" + buf.remaining() + "): {" + ( buf.remaining() > 1000 ? "too big to display" : new String( buf.array() ) ) + "}" );
+			System.out.println( "write(" + buf.remaining() + "): {" + ( buf.remaining() > 1000 ? "too big to display" : ( buf.hasArray() ? new String( buf.array(), buf.arrayOffset() + buf.position(), buf.remaining() ) : "no backing array" ) ) + "}" );
 
 		outQueue.add( buf );
 		/*try {
@@ -239,6 +239,16 @@ public class Draft_10 extends Draft {
 		}
 	}
 
+	/**
+	 * Moves count bytes from src to dst. Unlike going through src.array(), this also works with the direct buffers the server reads into.
+	 */
+	private static void putBytes( ByteBuffer dst, ByteBuffer src, int count ) {
+		int limit = src.limit();
+		src.limit( src.position() + count );
+		dst.put( src );
+		src.limit( limit );
+	}
+
 	@Override
 	public List<Framedata> translateFrame( ByteBuffer buffer ) throws LimitExedeedException , InvalidDataException {
 		List<Framedata> frames = new LinkedList<Framedata>();
@@ -254,12 +264,10 @@ public class Draft_10 extends Draft {
 
 					if( expected_next_byte_count > available_next_byte_count ) {
 						// did not receive enough bytes to complete the frame
-						incompleteframe.put( buffer.array(), buffer.position(), available_next_byte_count );
-						buffer.position( buffer.position() + available_next_byte_count );
+						putBytes( incompleteframe, buffer, available_next_byte_count );
 						return Collections.emptyList();
 					}
-					incompleteframe.put( buffer.array(), buffer.position(), expected_next_byte_count );
-					buffer.position( buffer.position() + expected_next_byte_count );
+					putBytes( incompleteframe, buffer, expected_next_byte_count );
 
 					cur = translateSingleFrame( (ByteBuffer) incompleteframe.duplicate().position( 0 ) );
 					frames.add( cur );
@@ -363,8 +371,7 @@ public class Draft_10 extends Draft {
 				payload.put( (byte) ( (byte) buffer.get( /*payloadstart + i*/) ^ (byte) maskskey[ i % 4 ] ) );
 			}
 		} else {
-			payload.put( buffer.array(), buffer.position(), payload.limit() );
-			buffer.position( buffer.position() + payload.limit() );
+			putBytes( payload, buffer, payload.limit() );
 		}
 
 		FrameBuilder frame;
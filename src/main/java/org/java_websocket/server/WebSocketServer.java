@@ -17,10 +17,12 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -36,6 +38,7 @@ import org.java_websocket.WebSocketImpl;
 import org.java_websocket.WrappedByteChannel;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
@@ -246,6 +249,64 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 		return this.connections;
 	}
 
+	/**
+	 * Sends binary data to all the connected clients.
+	 * 
+	 * @see #broadcast(ByteBuffer, Collection)
+	 */
+	public void broadcast( ByteBuffer payload ) {
+		List<WebSocket> clients;
+		synchronized ( connections ) {
+			clients = new ArrayList<WebSocket>( connections );
+		}
+		broadcast( payload, clients );
+	}
+
+	/**
+	 * Sends binary data to the given clients. The data is framed once for each draft in use, and the resulting frames are shared by all
+	 * the connections of that draft as read-only buffers, instead of being framed again for every connection. Encrypted connections
+	 * still encrypt the shared frames on their own.<br>
+	 * Clients that aren't open, and clients whose draft can't carry binary data, are skipped. The position of the payload is left untouched.
+	 */
+	public void broadcast( ByteBuffer payload, Collection<WebSocket> clients ) {
+		if( payload == null )
+			throw new IllegalArgumentException( "Cannot broadcast 'null' data." );
+
+		Map<Class<? extends Draft>,List<ByteBuffer>> framed = new HashMap<Class<? extends Draft>,List<ByteBuffer>>();
+		for( WebSocket client : clients ) {
+			if( !( client instanceof WebSocketImpl ) || !client.isOpen() )
+				continue;
+
+			WebSocketImpl conn = (WebSocketImpl) client;
+			Draft draft = conn.getDraft();
+			if( draft == null )
+				continue;
+
+			List<ByteBuffer> frames = framed.get( draft.getClass() );
+			if( frames == null ) {
+				frames = new ArrayList<ByteBuffer>();
+				try {
+					for( Framedata frame : draft.createFrames( payload.duplicate(), false ) ) {
+						frames.add( draft.createBinaryFrame( frame ) );
+					}
+				} catch ( RuntimeException e ) {
+					// Drafts 75 and 76 only support text frames
+					frames.clear();
+				}
+				framed.put( draft.getClass(), frames );
+			}
+
+			if( frames.isEmpty() )
+				continue;
+
+			try {
+				conn.sendEncodedFrames( frames );
+			} catch ( WebsocketNotConnectedException e ) {
+				// closed in the meantime
+			}
+		}
+	}
+
 	public InetSocketAddress getAddress() {
 		return this.address;
 	}
@@ -418,8 +479,12 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 		// takeBuffer();
 	}
 
+	/**
+	 * Creates a buffer for the pool the connections are read into.
+	 * The buffers are direct, so that reading from a socket doesn't go through a temporary direct buffer and an extra copy.
+	 */
 	public ByteBuffer createBuffer() {
-		return ByteBuffer.allocate( WebSocketImpl.RCVBUF );
+		return ByteBuffer.allocateDirect( WebSocketImpl.RCVBUF );
 	}
 
 	private void queue( WebSocketImpl ws ) throws InterruptedException {
@@ -34,6 +34,8 @@ static JNINativeMethod gMethodsNativePlayer[] = {
             reinterpret_cast<void*>(om_NativePlayer_enqueueShort)},
     {"nativeGetBufferedCount", "()I",
             reinterpret_cast<void*>(om_NativePlayer_getBufferedCount)},
+    {"nativeGetPendingCount", "()I",
+            reinterpret_cast<void*>(om_NativePlayer_getPendingCount)},
     {"nativeGetUnderflowCount", "()I",
             reinterpret_cast<void*>(om_NativePlayer_getUnderflowCount)},
     {"nativeGetTotalWrittenSamples", "()J",
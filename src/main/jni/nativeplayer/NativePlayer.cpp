@@ -32,7 +32,7 @@
 NativePlayer::NativePlayer() : m_pEngineObj(nullptr), m_pEngine(nullptr),
         m_pOutputMixObj(nullptr), m_pPlayerObj(nullptr), m_pPlayer(nullptr), m_pPlayerVol(nullptr),
         m_pBufferQueue(nullptr), m_iSampleRate(-1), m_iChannels(-1), m_iSampleFormat(-1),
-        m_iWrittenSamples(0), m_iUnderflowCount(0),
+        m_iWrittenSamples(0), m_iUnderflowCount(0), m_iPendingBytes(0),
         m_pPlayingBuffer(nullptr), m_iActiveBuffersTotalSize(0), m_fVolume(1.0f),
         m_pNativeHub(nullptr), m_bUseResampler(false), m_LastBuffersCheckUfCount(0),
         m_bPaused(false), m_bMuted(false) {
@@ -261,6 +261,7 @@ bool NativePlayer::setAudioFormat(uint32_t sample_rate, uint32_t sample_format,
                 delete (*it);
             }
             m_ActiveBuffers.clear();
+            m_iPendingBytes = 0;
 
             for (auto it = m_IdleBuffers.begin(); it != m_IdleBuffers.end(); ++it) {
                 delete (*it);
@@ -432,6 +433,7 @@ uint32_t NativePlayer::enqueue(const void* data, uint32_t len) {
             memcpy(buffer->pBuffer, data, len);
             buffer->iLength = len;
             m_iActiveBuffersTotalSize += len;
+            m_iPendingBytes += len;
             m_ActiveBuffers.push_back(buffer);
             // ALOGE("== BUFFERING IN (%d/%d bytes)", m_iActiveBuffersTotalSize, m_iBufferMaxSize);
         }
@@ -447,6 +449,10 @@ int32_t NativePlayer::getBufferedCount() const {
     return m_iActiveBuffersTotalSize;
 }
 // -------------------------------------------------------------------------------------
+int32_t NativePlayer::getPendingCount() const {
+    return m_iPendingBytes;
+}
+// -------------------------------------------------------------------------------------
 int32_t NativePlayer::getFreeBuffersCount() const {
     return m_iBufferMaxSize - m_iActiveBuffersTotalSize;
 }
@@ -468,6 +474,7 @@ void NativePlayer::flush() {
     m_iUnderflowCount = 0;
     m_LastBuffersCheckUfCount = 0;
     m_iActiveBuffersTotalSize = 0;
+    m_iPendingBytes = 0;
     for (auto it = m_ActiveBuffers.begin(); it != m_ActiveBuffers.end(); ++it) {
         if (m_IdleBuffers.size() > 5) {
             delete *it;
@@ -511,12 +518,14 @@ void NativePlayer::bufferPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void*
                     buffer->iLength);
 
             if (result == SL_RESULT_SUCCESS) {
+                // Count the buffer before mirroring it, like when enqueuing directly, so that
+                // the mirror listeners see it in the written samples
+                p->m_iWrittenSamples += buffer->iLength;
                 if (p->m_pNativeHub) {
                     om_NativeHub_onAudioMirrorWritten(p->m_pNativeHub,
                         reinterpret_cast<const uint8_t*>(buffer->pBuffer),
                         buffer->iLength, p->m_iSampleRate, p->m_iChannels);
                 }
-                p->m_iWrittenSamples += buffer->iLength;
 
 
                 // ALOGE("== BUFFERING OUT (%d/%d bytes)", p->m_iActiveBuffersTotalSize, p->m_iBufferMaxSize);
@@ -524,6 +533,10 @@ void NativePlayer::bufferPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void*
                 ALOGW("Enqueue via callback failed (%d), will retry", result);
                 p->setPlayState(SL_PLAYSTATE_PAUSED);
             }
+
+            // Only after counting it as written, so that readers of both counts can tell when
+            // the buffer moved between their reads
+            p->m_iPendingBytes -= buffer->iLength;
         } else {
             // No more buffers to play, we pause the playback and wait for buffers in enqueue
             p->setPlayState(SL_PLAYSTATE_PAUSED);
@@ -64,6 +64,9 @@ class NativePlayer : public INativeSink {
     // Returns the number of samples in the buffer (not yet enqueued for playback)
     int32_t getBufferedCount() const;
 
+    // Returns the number of samples queued but not yet handed to OpenSL
+    int32_t getPendingCount() const;
+
     // Returns the number of free samples in the buffer
     int32_t getFreeBuffersCount() const;
 
@@ -113,6 +116,7 @@ class NativePlayer : public INativeSink {
     std::atomic<uint32_t> m_iChannels;
     std::atomic<int64_t> m_iWrittenSamples;
     std::atomic<int32_t> m_iUnderflowCount;
+    std::atomic<uint32_t> m_iPendingBytes;
     std::atomic<float> m_fVolume;
     std::atomic<bool> m_bMuted;
 
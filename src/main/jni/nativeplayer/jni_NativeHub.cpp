@@ -17,6 +17,8 @@
 #include "Log.h"
 #include "NativeHub.h"
 #include "Glue.h"
+#include <algorithm>
+#include <cstring>
 #include <string>
 #include <list>
 
@@ -29,6 +31,7 @@ jfieldID field_NativeHub_mHandle;
 jfieldID field_NativeHub_mAudioMirrorBuffer;
 
 // Functions
+jmethodID method_NativeHub_onAudioMirrorWriting;
 jmethodID method_NativeHub_onAudioMirrorWritten;
 
 // -------------------------------------------------------------------------------------
@@ -51,12 +54,19 @@ int JNI_NativeHub_SetupFields(JNIEnv* env) {
         return -1;
     }
 
-    field_NativeHub_mAudioMirrorBuffer = env->GetFieldID(clazz, "mAudioMirrorBuffer", "[B");
+    field_NativeHub_mAudioMirrorBuffer = env->GetFieldID(clazz, "mAudioMirrorBuffer",
+            "Ljava/nio/ByteBuffer;");
     if (field_NativeHub_mAudioMirrorBuffer == NULL) {
         ALOGE("Can't find NativeHub.mAudioMirrorBuffer");
         return -1;
     }
 
+    method_NativeHub_onAudioMirrorWriting = env->GetMethodID(clazz, "onAudioMirrorWriting", "()J");
+    if (method_NativeHub_onAudioMirrorWriting == NULL) {
+        ALOGE("Can't find NativeHub.onAudioMirrorWriting");
+        return -1;
+    }
+
     method_NativeHub_onAudioMirrorWritten = env->GetMethodID(clazz, "onAudioMirrorWritten", "(III)V");
     if (method_NativeHub_onAudioMirrorWritten == NULL) {
         ALOGE("Can't find NativeHub.onAudioMirrorWritten");
@@ -141,15 +151,34 @@ void om_NativeHub_onAudioMirrorWritten(NativeHub* hub, const uint8_t* data, jint
     bool release_jni = JNI_GetEnv(&env);
     jobject thiz = (jobject) hub->getUserData();
 
-    // Write the bytes to the host array
+    // Write the bytes to the host ring buffer, at the current write position. The ring is a
+    // direct buffer whose capacity is a power of two, so we copy straight into its memory.
     jobject audioMirrorBufferObj = env->GetObjectField(thiz, field_NativeHub_mAudioMirrorBuffer);
     if (audioMirrorBufferObj) {
-        jbyteArray arr = reinterpret_cast<jbyteArray>(audioMirrorBufferObj);
-        env->SetByteArrayRegion(arr, 0, len, reinterpret_cast<const jbyte*>(data));
+        uint8_t* ring = reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(audioMirrorBufferObj));
+        jlong capacity = env->GetDirectBufferCapacity(audioMirrorBufferObj);
         env->DeleteLocalRef(audioMirrorBufferObj);
 
-        // Notify Java new bytes are available
-        env->CallVoidMethod(thiz, method_NativeHub_onAudioMirrorWritten, len, sampleRate, channels);
+        if (ring != nullptr && capacity > 0) {
+            if (len > capacity) {
+                // Only the most recent audio would remain anyway
+                data += len - capacity;
+                len = static_cast<jint>(capacity);
+            }
+
+            // Begin the write first, which waits for the readers copying out of the ring
+            jlong position = env->CallLongMethod(thiz, method_NativeHub_onAudioMirrorWriting);
+            jint start = static_cast<jint>(position & (capacity - 1));
+            jint first = std::min(len, static_cast<jint>(capacity - start));
+            memcpy(ring + start, data, first);
+            if (first < len) {
+                memcpy(ring, data + first, len - first);
+            }
+
+            // Notify Java new bytes are available
+            env->CallVoidMethod(thiz, method_NativeHub_onAudioMirrorWritten, len, sampleRate,
+                    channels);
+        }
     }
 
     if (release_jni) {
@@ -107,6 +107,11 @@ jint om_NativePlayer_getBufferedCount(JNIEnv* env, jobject thiz) {
     return player->getBufferedCount();
 }
 // -------------------------------------------------------------------------------------
+jint om_NativePlayer_getPendingCount(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getPendingCount();
+}
+// -------------------------------------------------------------------------------------
 jint om_NativePlayer_getUnderflowCount(JNIEnv* env, jobject thiz) {
     NativePlayer* player = get_layer_from_object(env, thiz);
     return player->getUnderflowCount();
@@ -44,6 +44,9 @@ jint om_NativePlayer_enqueueShort(JNIEnv* env, jobject thiz, jshortArray samples
 // NativePlayer.nativeGetBufferedCount ==> NativePlayer::getBufferedCount
 jint om_NativePlayer_getBufferedCount(JNIEnv* env, jobject thiz);
 
+// NativePlayer.nativeGetPendingCount ==> NativePlayer::getPendingCount
+jint om_NativePlayer_getPendingCount(JNIEnv* env, jobject thiz);
+
 // NativePlayer.nativeGetTotalWrittenSamples ==> NativePlayer::getTotalWrittenSamples
 jlong om_NativePlayer_getTotalWrittenSamples(JNIEnv* env, jobject thiz);
 
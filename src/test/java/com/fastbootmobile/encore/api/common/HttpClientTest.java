@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.api.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the {@link HttpClient} against a local stub server, to which the connections to any host
+ * are redirected
+ */
+public class HttpClientTest {
+    private HttpServer mServer;
+    private HttpClient mClient;
+    private File mDownloadDir;
+    private volatile String mUserAgent;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/data", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mUserAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+                String query = exchange.getRequestURI().getQuery();
+                respond(exchange, 200, ("data " + query).getBytes("UTF-8"));
+            }
+        });
+        mServer.createContext("/moved", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", "/data?from=moved");
+                respond(exchange, 302, new byte[0]);
+            }
+        });
+        mServer.createContext("/limited", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 503, "slow down".getBytes("UTF-8"));
+            }
+        });
+        mServer.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 404, "not found".getBytes("UTF-8"));
+            }
+        });
+        mServer.start();
+
+        final int port = mServer.getAddress().getPort();
+        mClient = new HttpClient();
+        mClient.setConnectionFactory(new HttpClient.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(URL url) throws IOException {
+                return (HttpURLConnection) new URL("http", "127.0.0.1", port, url.getFile())
+                        .openConnection();
+            }
+        });
+
+        mDownloadDir = new File(System.getProperty("java.io.tmpdir"),
+                "httpclient-test-" + System.nanoTime());
+        mClient.setDownloadDirectory(mDownloadDir);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+
+        File[] files = mDownloadDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDownloadDir.delete();
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body)
+            throws IOException {
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    @Test
+    public void getReturnsTheBody() throws Exception {
+        assertEquals("data q=1", mClient.get("http://api.example.com/data", "q=1", false));
+        assertNotNull(mUserAgent);
+    }
+
+    @Test
+    public void getFollowsRelativeRedirects() throws Exception {
+        assertEquals("data from=moved", mClient.get("http://api.example.com/moved", "", false));
+    }
+
+    @Test(expected = RateLimitException.class)
+    public void unavailableIsARateLimit() throws Exception {
+        mClient.get("http://api.example.com/limited", "", false);
+    }
+
+    @Test
+    public void notFoundIsEmpty() throws Exception {
+        assertArrayEquals(new byte[0],
+                mClient.getBytes("http://api.example.com/missing", "", false));
+        assertNull(mClient.download("http://api.example.com/missing", "", false));
+    }
+
+    @Test
+    public void downloadWritesToTheDownloadDirectory() throws Exception {
+        File file = mClient.download("http://api.example.com/data", "q=2", false);
+        assertNotNull(file);
+        assertEquals(mDownloadDir, file.getParentFile());
+
+        byte[] expected = "data q=2".getBytes("UTF-8");
+        byte[] read = new byte[expected.length];
+        InputStream in = new FileInputStream(file);
+        try {
+            assertEquals(expected.length, in.read(read));
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(expected, read);
+    }
+
+    @Test
+    public void failedDownloadLeavesNoFile() throws Exception {
+        // A response whose body can't be opened once the status has been read
+        mClient.setConnectionFactory(new HttpClient.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(URL url) throws IOException {
+                return new HttpURLConnection(url) {
+                    @Override
+                    public int getResponseCode() {
+                        return HTTP_OK;
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+
+                    @Override
+                    public void connect() {
+                    }
+
+                    @Override
+                    public void disconnect() {
+                    }
+
+                    @Override
+                    public boolean usingProxy() {
+                        return false;
+                    }
+                };
+            }
+        });
+
+        try {
+            mClient.download("http://api.example.com/data", "", false);
+            fail("The download should have failed");
+        } catch (IOException expected) {
+            // Expected
+        }
+
+        File[] files = mDownloadDir.listFiles();
+        assertEquals(0, files != null ? files.length : 0);
+    }
+}
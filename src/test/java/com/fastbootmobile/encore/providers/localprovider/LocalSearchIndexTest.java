@@ -0,0 +1,62 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LocalSearchIndexTest {
+    private LocalSearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new LocalSearchIndex();
+        mIndex.put(LocalSearchIndex.TYPE_ARTIST, "artist:beatles", "The Beatles");
+        mIndex.put(LocalSearchIndex.TYPE_ARTIST, "artist:eagles", "Eagles");
+        mIndex.put(LocalSearchIndex.TYPE_ALBUM, "album:abbey", "Abbey Road");
+        mIndex.put(LocalSearchIndex.TYPE_SONG, "song:yesterday", "Yesterday");
+    }
+
+    private List<String> search(String query, int type) {
+        return mIndex.search(query).get(type);
+    }
+
+    @Test
+    public void shortQueriesMatchSubstrings() {
+        assertEquals(Arrays.asList("artist:eagles", "artist:beatles"),
+                search("ea", LocalSearchIndex.TYPE_ARTIST));
+        assertEquals(Collections.singletonList("album:abbey"),
+                search("b", LocalSearchIndex.TYPE_ALBUM));
+    }
+
+    @Test
+    public void longQueriesMatchSubstrings() {
+        assertEquals(Collections.singletonList("artist:beatles"),
+                search("eatl", LocalSearchIndex.TYPE_ARTIST));
+        assertEquals(Collections.singletonList("song:yesterday"),
+                search("TERD", LocalSearchIndex.TYPE_SONG));
+    }
+
+    @Test
+    public void matchesAreRanked() {
+        mIndex.put(LocalSearchIndex.TYPE_SONG, "song:yes", "Yes");
+        mIndex.put(LocalSearchIndex.TYPE_SONG, "song:oh-yes", "Oh Yes");
+        mIndex.put(LocalSearchIndex.TYPE_SONG, "song:eyes", "Eyes");
+
+        assertEquals(Arrays.asList("song:yes", "song:yesterday", "song:oh-yes", "song:eyes"),
+                search("yes", LocalSearchIndex.TYPE_SONG));
+    }
+
+    @Test
+    public void removedEntriesAreNotFound() {
+        mIndex.remove("artist:beatles");
+        assertEquals(Collections.singletonList("artist:eagles"),
+                search("ea", LocalSearchIndex.TYPE_ARTIST));
+        assertEquals(Collections.<String>emptyList(),
+                search("beat", LocalSearchIndex.TYPE_ARTIST));
+    }
+}
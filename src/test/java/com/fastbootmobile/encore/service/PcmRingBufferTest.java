@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static byte[] fill(int len, int value) {
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    public void readWaitsForTheWriteInProgress() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(16);
+        final PcmRingBuffer.Reader reader = ring.newReader();
+        ring.write(fill(8, 1), 0, 8, SAMPLE_RATE, CHANNELS);
+
+        // Write like native code does, straight into the buffer
+        final int start = (int) (ring.beginWrite() & (ring.getCapacity() - 1));
+        for (int i = 0; i < 4; ++i) {
+            ring.getBuffer().put(start + i, (byte) 2);
+        }
+
+        final byte[] dst = new byte[16];
+        Future<Integer> read = mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return reader.read(dst, 0, dst.length);
+            }
+        });
+
+        Thread.sleep(200);
+        assertFalse("The reader copied during a write", read.isDone());
+
+        ring.commit(4, SAMPLE_RATE, CHANNELS);
+        assertEquals(12, (int) read.get(1, TimeUnit.SECONDS));
+        assertTrue(Arrays.equals(new byte[] {1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2},
+                Arrays.copyOf(dst, 12)));
+    }
+
+    @Test
+    public void readsAreNeverTorn() throws Exception {
+        final int chunkSize = 1024;
+        final int chunks = 200000;
+        final PcmRingBuffer ring = new PcmRingBuffer(4 * chunkSize);
+        final PcmRingBuffer.Reader reader = ring.newReader();
+
+        // Each chunk is filled with its own value, so a torn read mixes values
+        Future<Integer> torn = mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                final byte[] dst = new byte[chunkSize];
+                int tornReads = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!reader.await(10, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+
+                    final int len = reader.read(dst, 0, chunkSize);
+                    for (int i = 1; i < len; ++i) {
+                        if (dst[i] != dst[0]) {
+                            tornReads++;
+                            break;
+                        }
+                    }
+                }
+                return tornReads;
+            }
+        });
+
+        final byte[] chunk = new byte[chunkSize];
+        for (int i = 0; i < chunks; ++i) {
+            Arrays.fill(chunk, (byte) i);
+            ring.write(chunk, 0, chunkSize, SAMPLE_RATE, CHANNELS);
+        }
+
+        mExecutor.shutdownNow();
+        assertEquals(0, (int) torn.get(1, TimeUnit.SECONDS));
+    }
+}
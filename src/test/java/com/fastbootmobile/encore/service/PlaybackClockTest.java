@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+
+package com.fastbootmobile.encore.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PlaybackClockTest {
+    // 1 kHz mono: 2000 bytes per second of audio
+    private static final int SAMPLE_RATE = 1000;
+    private static final int CHANNELS = 1;
+    private static final int ONE_SECOND = 2000;
+
+    /**
+     * Far enough in the future for everything written to have been played
+     */
+    private static final long LATER = 60L * 1000000000L;
+
+    private FakeSink mSink;
+    private PlaybackClock mClock;
+
+    private static class FakeSink implements PlaybackClock.SinkCounters {
+        long mWritten;
+        int mPending;
+
+        @Override
+        public long getTotalWrittenSamples() {
+            return mWritten;
+        }
+
+        @Override
+        public int getPendingCount() {
+            return mPending;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSink = new FakeSink();
+        mClock = new PlaybackClock(mSink);
+        mClock.setOutputLatencyUs(0);
+    }
+
+    private void write(int len) {
+        mSink.mWritten += len;
+        mClock.onSampleWritten(len, SAMPLE_RATE, CHANNELS);
+    }
+
+    @Test
+    public void positionFollowsWrittenAudio() {
+        mClock.setTrackPosition(0);
+        write(ONE_SECOND);
+        write(ONE_SECOND);
+
+        // Never past what was written
+        assertEquals(2000000, mClock.getPositionUs(System.nanoTime() + LATER));
+    }
+
+    @Test
+    public void newTrackIsReportedWhileBufferedAudioPlays() {
+        mClock.setTrackPosition(0);
+        write(ONE_SECOND);
+        write(ONE_SECOND);
+
+        // The next track starts after one more second that is still queued in the sink
+        mSink.mPending = ONE_SECOND;
+        mClock.setTrackPosition(0);
+        assertEquals(0, mClock.getPositionUs());
+
+        // The queued audio of the previous track is played: the clock holds at the start
+        mSink.mPending = 0;
+        write(ONE_SECOND);
+        assertEquals(0, mClock.getPositionUs(System.nanoTime() + LATER));
+
+        // Then advances with the new track
+        write(ONE_SECOND);
+        assertEquals(1000000, mClock.getPositionUs(System.nanoTime() + LATER));
+    }
+
+    @Test
+    public void seekIsReportedRightAway() {
+        mClock.setTrackPosition(0);
+        write(ONE_SECOND);
+
+        // Flushing the sink resets its counters
+        mSink.mWritten = 0;
+        mClock.onFlush();
+        mClock.setTrackPosition(30000);
+        assertEquals(30000000, mClock.getPositionUs());
+
+        write(ONE_SECOND);
+        assertEquals(31000000, mClock.getPositionUs(System.nanoTime() + LATER));
+    }
+}